@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.benchmark;
+
+import com.musenkishi.wally.dataprovider.parsing.ApiSearchReader;
+import okio.Buffer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Compares the JSONObject based parsing of API search responses, as done by
+ * Parser.parseImagesFromApi(String), with the streaming {@link ApiSearchReader}.
+ * Both extract the same fields: id, the three thumbs, dimensions, the full image url, purity,
+ * category, colors, file size and file type.
+ * <p>
+ * The *FirstItem benchmarks measure the time until the first wallpaper is available.
+ */
+@State(Scope.Benchmark)
+public class ApiSearchParsingBenchmark {
+
+    @Param({"api_search_toplist.json", "api_search_random_64.json"})
+    public String fixture;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = Fixtures.load(fixture);
+    }
+
+    @Benchmark
+    public int jsonObject(Blackhole blackhole) {
+        // Like the response body, the string is decoded as part of the work.
+        JSONObject root = new JSONObject(new String(data, StandardCharsets.UTF_8));
+        JSONArray array = root.getJSONArray("data");
+        for (int i = 0; i < array.length(); i++) {
+            consume(blackhole, array.getJSONObject(i));
+        }
+        return array.length();
+    }
+
+    @Benchmark
+    public void jsonObjectFirstItem(Blackhole blackhole) {
+        JSONObject root = new JSONObject(new String(data, StandardCharsets.UTF_8));
+        consume(blackhole, root.getJSONArray("data").getJSONObject(0));
+    }
+
+    @Benchmark
+    public int streaming(final Blackhole blackhole) throws IOException {
+        return ApiSearchReader.read(new Buffer().write(data), new ApiSearchReader.OnWallpaperReadListener() {
+            @Override
+            public void onWallpaperRead(ApiSearchReader.Wallpaper wallpaper) {
+                blackhole.consume(wallpaper);
+            }
+        });
+    }
+
+    @Benchmark
+    public int streamingFirstItem(final Blackhole blackhole) throws IOException {
+        return ApiSearchReader.read(new Buffer().write(data), new ApiSearchReader.OnWallpaperReadListener() {
+            @Override
+            public void onWallpaperRead(ApiSearchReader.Wallpaper wallpaper) {
+                blackhole.consume(wallpaper);
+            }
+        }, 1);
+    }
+
+    private static void consume(Blackhole blackhole, JSONObject wallpaper) {
+        JSONObject thumbs = wallpaper.optJSONObject("thumbs");
+        blackhole.consume(wallpaper.optString("id"));
+        blackhole.consume(new String[]{thumbs.optString("small"), thumbs.optString("large"), thumbs.optString("original")});
+        blackhole.consume(wallpaper.optInt("dimension_x", 0));
+        blackhole.consume(wallpaper.optInt("dimension_y", 0));
+        blackhole.consume(wallpaper.optString("path"));
+        blackhole.consume(wallpaper.optString("purity"));
+        blackhole.consume(wallpaper.optString("category"));
+        ArrayList<String> colors = new ArrayList<>();
+        JSONArray colorArray = wallpaper.optJSONArray("colors");
+        for (int i = 0; colorArray != null && i < colorArray.length(); i++) {
+            colors.add(colorArray.optString(i));
+        }
+        blackhole.consume(colors);
+        blackhole.consume(wallpaper.optLong("file_size", 0));
+        blackhole.consume(wallpaper.optString("file_type"));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.benchmark;
+
+import com.musenkishi.wally.dataprovider.download.DownloadEngine;
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a large original from a local MockWebServer that serves byte ranges, with every
+ * response throttled to streamKilobytesPerSecond. That stands in for a mobile connection,
+ * where a single TCP stream doesn't reach the bandwidth of the link.
+ * <p>
+ * chunks = 1 is the single stream download, larger values split the file into that many ranges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkedDownloadBenchmark {
+
+    @Param({"24"})
+    public int sizeMegabytes;
+
+    @Param({"1", "2", "4", "8"})
+    public int chunks;
+
+    @Param({"25600"})
+    public int streamKilobytesPerSecond;
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private DownloadEngine downloadEngine;
+    private File directory;
+    private String url;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] image = new byte[sizeMegabytes * 1024 * 1024];
+        new Random(1).nextBytes(image);
+        // Enough of a JPEG to pass the engine's integrity check.
+        image[0] = (byte) 0xFF;
+        image[1] = (byte) 0xD8;
+        image[2] = (byte) 0xFF;
+        image[image.length - 2] = (byte) 0xFF;
+        image[image.length - 1] = (byte) 0xD9;
+
+        // 10 ms worth of bytes at a time.
+        final long bytesPerPeriod = streamKilobytesPerSecond * 1024L / 100;
+        server = new MockWebServer();
+        server.setDispatcher(new okhttp3.mockwebserver.Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String range = request.getHeader("Range");
+                int first = 0;
+                int last = image.length - 1;
+                MockResponse response = new MockResponse();
+                if (range != null && range.startsWith("bytes=")) {
+                    String[] bounds = range.substring(6).split("-", -1);
+                    first = Integer.parseInt(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        last = Math.min(last, Integer.parseInt(bounds[1]));
+                    }
+                    response.setResponseCode(206)
+                            .setHeader("Content-Range", "bytes " + first + "-" + last + "/" + image.length);
+                }
+                return response
+                        .setHeader("Content-Type", "image/jpeg")
+                        .setBody(new Buffer().write(image, first, last - first + 1))
+                        .throttleBody(bytesPerPeriod, 10, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+        url = server.url("/full/wallhaven-large.jpg").toString();
+
+        client = new OkHttpClient();
+        downloadEngine = new DownloadEngine(client, 1);
+        downloadEngine.setChunking(0, chunks);
+        directory = Files.createTempDirectory("wally-download").toFile();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public long download() throws InterruptedException {
+        final File destination = new File(directory, "wallhaven-large.jpg");
+        destination.delete();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final DataProviderError[] error = new DataProviderError[1];
+        downloadEngine.enqueue(url, destination, "benchmark", RateLimiter.Priority.VISIBLE, new DownloadEngine.OnDownloadListener() {
+            @Override
+            public void onProgress(long id, long bytesDownloaded, long totalBytes) {
+            }
+
+            @Override
+            public void onComplete(long id, File file) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(long id, DataProviderError dataProviderError) {
+                error[0] = dataProviderError;
+                latch.countDown();
+            }
+        });
+        latch.await();
+        if (error[0] != null) {
+            throw new IllegalStateException(error[0].getMessage());
+        }
+        return destination.length();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.benchmark;
+
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.util.BatchFetcher;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ServerSocketFactory;
+
+/**
+ * Fetches and parses the details of a grid page worth of wallpapers from a local MockWebServer
+ * that answers every /api/v1/w/ request with a recorded wallpaper response, after latencyMillis.
+ * <p>
+ * sequential does what DataProvider.getPageDataSync in a loop does, batch runs the same requests
+ * through {@link BatchFetcher} and a {@link RateLimiter} with a budget high enough to never be
+ * the bottleneck. sequential doesn't use the concurrency parameter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PageBatchFetchBenchmark {
+
+    private static final int BATCH_SIZE = 24;
+
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    @Param({"1", "4", "8"})
+    public int concurrency;
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private RateLimiter rateLimiter;
+    private List<String> urls;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] fixture = Fixtures.load("api_wallpaper.json");
+        server = new MockWebServer();
+        server.setDispatcher(new okhttp3.mockwebserver.Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse()
+                        .setHeader("Content-Type", "application/json")
+                        .setBody(new Buffer().write(fixture))
+                        .setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+        // Without TCP_NODELAY, delayed ACKs on the loopback interface add ~40 ms to every response.
+        server.setServerSocketFactory(new ServerSocketFactory() {
+            @Override
+            public ServerSocket createServerSocket() throws IOException {
+                return new ServerSocket() {
+                    @Override
+                    public Socket accept() throws IOException {
+                        Socket socket = super.accept();
+                        socket.setTcpNoDelay(true);
+                        return socket;
+                    }
+                };
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        });
+        server.start();
+
+        // Same limits as OkHttpClientProvider.
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(64);
+        dispatcher.setMaxRequestsPerHost(8);
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(8, 5, TimeUnit.MINUTES))
+                .build();
+        rateLimiter = new RateLimiter(Integer.MAX_VALUE);
+
+        urls = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            urls.add(server.url("/api/v1/w/" + Integer.toString(100000 + i, 36)).toString());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    @Benchmark
+    public void sequential(Blackhole blackhole) throws IOException {
+        for (String url : urls) {
+            try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+                blackhole.consume(parse(response));
+            }
+        }
+    }
+
+    @Benchmark
+    public void batch(final Blackhole blackhole) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        BatchFetcher.start(urls, concurrency, new BatchFetcher.Fetcher<String>() {
+            @Override
+            public void fetch(final String url, final BatchFetcher.Callback<String> callback) {
+                rateLimiter.submit(url, RateLimiter.Priority.VISIBLE, new Runnable() {
+                    @Override
+                    public void run() {
+                        client.newCall(new Request.Builder().url(url).build()).enqueue(new Callback() {
+                            @Override
+                            public void onFailure(Call call, IOException e) {
+                                callback.onError(new DataProviderError(DataProviderError.Type.NETWORK, 400, e.getMessage(), true));
+                            }
+
+                            @Override
+                            public void onResponse(Call call, Response response) throws IOException {
+                                try (Response closeableResponse = response) {
+                                    callback.onResult(parse(closeableResponse));
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        }, new BatchFetcher.OnBatchListener<String>() {
+            @Override
+            public void onResult(String key, String result) {
+                blackhole.consume(result);
+            }
+
+            @Override
+            public void onError(String key, DataProviderError error) {
+                throw new IllegalStateException(key + ": " + error.getMessage());
+            }
+
+            @Override
+            public void onComplete(int succeeded, int failed) {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * Picks the fields an ImagePage is made of.
+     */
+    private static String parse(Response response) throws IOException {
+        JSONObject wallpaper = new JSONObject(response.body().string()).getJSONObject("data");
+        return wallpaper.optString("id") + " " + wallpaper.optString("path") + " "
+                + wallpaper.optInt("dimension_x") + "x" + wallpaper.optInt("dimension_y") + " "
+                + wallpaper.optJSONArray("tags").length();
+    }
+}
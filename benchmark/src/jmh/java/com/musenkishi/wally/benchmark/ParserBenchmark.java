@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.benchmark;
+
+import com.musenkishi.wally.dataprovider.util.Parser;
+import com.musenkishi.wally.models.ExceptionReporter;
+import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ImagePage;
+import okio.Buffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Runs the app's {@link Parser} over the fixtures of every kind of page it reads: toplist and
+ * search listings as HTML and API JSON, and wallpaper details as HTML and API JSON. With the
+ * module's defaults this reports throughput, average time and, through the gc profiler,
+ * allocation per page, so a change to Parser can be compared with the numbers before it.
+ * <p>
+ * The String methods are given a String that was decoded in the setup, like the app does
+ * with a response body. The BufferedSource methods get a fresh Buffer of the bytes each time.
+ * <p>
+ * Parser runs against small JVM stand-ins for android.net.Uri and android.text.TextUtils
+ * (src/shims) and the reference org.json, which may differ slightly in cost from Android's.
+ */
+public class ParserBenchmark {
+
+    private static final String WALLPAPER_URL = "https://wallhaven.cc/w/8o2dpo";
+
+    /**
+     * Fails the setup if the parser reports a problem with a fixture, since the numbers
+     * would then be for an error path.
+     */
+    private static final ExceptionReporter.OnReportListener FAIL_ON_REPORT = new ExceptionReporter.OnReportListener() {
+        @Override
+        public void report(Class fromClass, String reason, String exceptionMessage) {
+            throw new IllegalStateException(reason + ": " + exceptionMessage);
+        }
+    };
+
+    @State(Scope.Benchmark)
+    public static class ListingPage {
+
+        @Param({"toplist_page.html", "search_page_64.html"})
+        public String fixture;
+
+        byte[] data;
+        String string;
+
+        @Setup
+        public void setup() throws IOException {
+            data = Fixtures.load(fixture);
+            string = new String(data, StandardCharsets.UTF_8);
+            Parser parser = new Parser(FAIL_ON_REPORT);
+            expectSameCount(parser.parseImages(string), parser.parseImages(new Buffer().write(data)), fixture);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ApiSearchPage {
+
+        @Param({"api_search_toplist.json", "api_search_random_64.json"})
+        public String fixture;
+
+        byte[] data;
+        String string;
+
+        @Setup
+        public void setup() {
+            data = Fixtures.load(fixture);
+            string = new String(data, StandardCharsets.UTF_8);
+            Parser parser = new Parser(FAIL_ON_REPORT);
+            expectSameCount(parser.parseImagesFromApi(string), parser.parseImagesFromApi(new Buffer().write(data)), fixture);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class WallpaperPage {
+
+        @Param({"wallpaper_page.html", "wallpaper_page_sketchy.html"})
+        public String fixture;
+
+        String string;
+
+        @Setup
+        public void setup() {
+            string = new String(Fixtures.load(fixture), StandardCharsets.UTF_8);
+            expectComplete(new Parser(FAIL_ON_REPORT).parseImagePage(string, WALLPAPER_URL), fixture);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ApiWallpaperPage {
+
+        String string;
+
+        @Setup
+        public void setup() {
+            string = new String(Fixtures.load("api_wallpaper.json"), StandardCharsets.UTF_8);
+            expectComplete(new Parser(FAIL_ON_REPORT).parseImagePageFromApi(string, WALLPAPER_URL), "api_wallpaper.json");
+        }
+    }
+
+    private final Parser parser = new Parser(new ExceptionReporter.OnReportListener() {
+        @Override
+        public void report(Class fromClass, String reason, String exceptionMessage) {
+        }
+    });
+
+    @Benchmark
+    public ArrayList<Image> parseImages(ListingPage page) {
+        return parser.parseImages(page.string);
+    }
+
+    @Benchmark
+    public ArrayList<Image> parseImagesFromSource(ListingPage page) throws IOException {
+        return parser.parseImages(new Buffer().write(page.data));
+    }
+
+    @Benchmark
+    public ArrayList<Image> parseImagesFromApi(ApiSearchPage page) {
+        return parser.parseImagesFromApi(page.string);
+    }
+
+    @Benchmark
+    public ArrayList<Image> parseImagesFromApiSource(ApiSearchPage page) {
+        return parser.parseImagesFromApi(new Buffer().write(page.data));
+    }
+
+    @Benchmark
+    public ImagePage parseImagePage(WallpaperPage page) {
+        return parser.parseImagePage(page.string, WALLPAPER_URL);
+    }
+
+    @Benchmark
+    public ImagePage parseImagePageFromApi(ApiWallpaperPage page) {
+        return parser.parseImagePageFromApi(page.string, WALLPAPER_URL);
+    }
+
+    private static void expectSameCount(ArrayList<Image> fromString, ArrayList<Image> fromSource, String fixture) {
+        if (fromString.isEmpty() || fromString.size() != fromSource.size()) {
+            throw new IllegalStateException(fixture + ": " + fromString.size() + " images from the String, "
+                    + fromSource.size() + " from the source");
+        }
+    }
+
+    private static void expectComplete(ImagePage imagePage, String fixture) {
+        if (imagePage == null || imagePage.tags().isEmpty() || "Unknown".equals(imagePage.category())
+                || "Unknown".equals(imagePage.rating()) || "Unknown".equals(imagePage.uploader())) {
+            throw new IllegalStateException(fixture + " didn't parse completely: " + imagePage);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.benchmark;
+
+import com.musenkishi.wally.dataprovider.parsing.ThumbListingScanner;
+import okio.Buffer;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares Parser.parseImages(String), which builds a jsoup Document of a search or toplist page,
+ * with the {@link ThumbListingScanner}. Run with the gc profiler (the default for this module)
+ * to compare allocation per page.
+ * <p>
+ * Uri.parse isn't available on the JVM, so the jsoup baseline takes the id with a substring.
+ * It is slightly cheaper than the app's code because of that.
+ */
+@State(Scope.Benchmark)
+public class ThumbListingParsingBenchmark {
+
+    private static final String BASE_URL = "https://wallhaven.cc/";
+
+    @Param({"toplist_page.html", "search_page_64.html"})
+    public String fixture;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+        data = Fixtures.load(fixture);
+        Blackhole blackhole = new Blackhole("Today's password is swordfish. I understand instantiating Blackholes directly is dangerous.");
+        int jsoupCount = jsoup(blackhole);
+        int scannerCount = scanner(blackhole);
+        if (jsoupCount != scannerCount) {
+            throw new IllegalStateException("jsoup found " + jsoupCount + " thumbs, the scanner " + scannerCount);
+        }
+    }
+
+    @Benchmark
+    public int jsoup(Blackhole blackhole) {
+        Document document = Jsoup.parse(new String(data, StandardCharsets.UTF_8), BASE_URL);
+        int count = 0;
+        for (Element wrapperElement : document.select("section.thumb-listing-page figure")) {
+            Element resElement = wrapperElement.getElementsByClass("thumb-info").first();
+            String resolution = resElement.select("span.wall-res").text();
+            Element linkElement = wrapperElement.select("a.preview").first();
+            String imagePageURL = linkElement.absUrl("href");
+            Element imageElement = wrapperElement.getElementsByTag("img").first();
+            if (imageElement != null) {
+                String thumbURL = imageElement.attr("data-src");
+                if (!imagePageURL.isEmpty() && !thumbURL.isEmpty()) {
+                    String imageId = imagePageURL.substring(imagePageURL.lastIndexOf('/') + 1);
+                    consume(blackhole, imageId, thumbURL, imagePageURL, resolution);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int scanner(final Blackhole blackhole) throws IOException {
+        return ThumbListingScanner.scan(new Buffer().write(data), new ThumbListingScanner.OnThumbReadListener() {
+            @Override
+            public void onThumbRead(String id, String thumbUrl, String pageUrl, String resolution) {
+                consume(blackhole, id, thumbUrl, pageUrl, resolution);
+            }
+        });
+    }
+
+    private static void consume(Blackhole blackhole, String id, String thumbUrl, String pageUrl, String resolution) {
+        blackhole.consume(id);
+        blackhole.consume(thumbUrl);
+        blackhole.consume(pageUrl);
+        blackhole.consume(resolution);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.benchmark;
+
+import com.musenkishi.wally.dataprovider.util.WallhavenUrlBuilder;
+import com.musenkishi.wally.models.Filter;
+import com.musenkishi.wally.models.filters.FilterAspectRatioKeys;
+import com.musenkishi.wally.models.filters.FilterBoardsKeys;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+import com.musenkishi.wally.models.filters.FilterPurityKeys;
+import com.musenkishi.wally.models.filters.FilterResolutionKeys;
+import okhttp3.HttpUrl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares building a page url with {@link WallhavenUrlBuilder}, with and without the memoized
+ * filter prefix, against encoding every parameter with a url builder on each call. The app used
+ * android.net.Uri.Builder for that, which doesn't run on a JVM, so OkHttp's HttpUrl.Builder
+ * stands in for it.
+ * <p>
+ * Like in the app, every call gets a new {@link FilterGroupsStructure} with the same values.
+ */
+@State(Scope.Benchmark)
+public class UrlBuilderBenchmark {
+
+    @Param({"", "cats & dogs"})
+    public String query;
+
+    private WallhavenUrlBuilder memoized;
+    private WallhavenUrlBuilder uncached;
+    private String queryOrNull;
+    private int page;
+
+    @Setup
+    public void setup() {
+        memoized = new WallhavenUrlBuilder();
+        uncached = new WallhavenUrlBuilder(0);
+        queryOrNull = query.isEmpty() ? null : query;
+    }
+
+    @Benchmark
+    public String memoized() {
+        return memoized.apiSearchUrl(nextPage(), WallhavenUrlBuilder.PATH_SEARCH, newFilters(), queryOrNull, null);
+    }
+
+    @Benchmark
+    public String uncached() {
+        return uncached.apiSearchUrl(nextPage(), WallhavenUrlBuilder.PATH_SEARCH, newFilters(), queryOrNull, null);
+    }
+
+    @Benchmark
+    public String httpUrlBuilder() {
+        FilterGroupsStructure filters = newFilters();
+        HttpUrl.Builder builder = new HttpUrl.Builder()
+                .scheme("https")
+                .host("wallhaven.cc")
+                .addPathSegments("api/v1/search")
+                .addQueryParameter(FilterBoardsKeys.PARAMETER_KEY, filters.getBoardsFilter())
+                .addQueryParameter(FilterPurityKeys.PARAMETER_KEY, filters.getPurityFilter())
+                .addQueryParameter(FilterResolutionKeys.PARAMETER_KEY, filters.getResolutionFilter().getValue())
+                .addQueryParameter(FilterAspectRatioKeys.PARAMETER_KEY, filters.getAspectRatioFilter().getValue())
+                .addQueryParameter("sorting", "relevance")
+                .addQueryParameter("order", "desc")
+                .addQueryParameter("page", nextPage() + "");
+        if (queryOrNull != null) {
+            builder.addQueryParameter("q", queryOrNull);
+        }
+        return builder.build().toString();
+    }
+
+    private int nextPage() {
+        page = page % 100 + 1;
+        return page;
+    }
+
+    private static FilterGroupsStructure newFilters() {
+        FilterGroupsStructure filters = new FilterGroupsStructure();
+        filters.setBoardsFilter("111");
+        filters.setPurityFilter("100");
+        filters.setResolutionFilter(new Filter<String, String>("1920x1080", "1920x1080"));
+        filters.setAspectRatioFilter(new Filter<String, String>("16:9, 21:9", "16x9,21x9"));
+        return filters;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+/**
+ * The part of android.net.Uri that Parser and the models use, so they can run on a plain JVM.
+ * Like the framework class, parse() doesn't validate and only splits the string on demand.
+ */
+public final class Uri {
+
+    public static final Uri EMPTY = new Uri(null, "");
+
+    private final String scheme;
+    private final String schemeSpecificPart;
+
+    private Uri(String scheme, String schemeSpecificPart) {
+        this.scheme = scheme;
+        this.schemeSpecificPart = schemeSpecificPart;
+    }
+
+    public static Uri parse(String uriString) {
+        int colon = uriString.indexOf(':');
+        int firstDelimiter = firstIndexOf(uriString, "/?#");
+        if (colon > 0 && (firstDelimiter == -1 || colon < firstDelimiter)) {
+            return new Uri(uriString.substring(0, colon), uriString.substring(colon + 1));
+        }
+        return new Uri(null, uriString);
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getLastPathSegment() {
+        String path = schemeSpecificPart;
+        int end = firstIndexOf(path, "?#");
+        if (end != -1) {
+            path = path.substring(0, end);
+        }
+        if (path.startsWith("//")) {
+            int pathStart = path.indexOf('/', 2);
+            path = pathStart != -1 ? path.substring(pathStart) : "";
+        }
+        String last = null;
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                last = segment;
+            }
+        }
+        return last;
+    }
+
+    public Builder buildUpon() {
+        return new Builder(scheme, schemeSpecificPart);
+    }
+
+    @Override
+    public String toString() {
+        return scheme != null ? scheme + ":" + schemeSpecificPart : schemeSpecificPart;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Uri && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    private static int firstIndexOf(String value, String characters) {
+        for (int i = 0; i < value.length(); i++) {
+            if (characters.indexOf(value.charAt(i)) != -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static final class Builder {
+
+        private String scheme;
+        private final String schemeSpecificPart;
+
+        private Builder(String scheme, String schemeSpecificPart) {
+            this.scheme = scheme;
+            this.schemeSpecificPart = schemeSpecificPart;
+        }
+
+        public Builder scheme(String scheme) {
+            this.scheme = scheme;
+            return this;
+        }
+
+        public Uri build() {
+            return new Uri(scheme, schemeSpecificPart);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * The methods the code generated by AutoParcel refers to. The benchmarks never parcel
+ * anything, so none of them is implemented.
+ */
+public final class Parcel {
+
+    private Parcel() {
+    }
+
+    public Object readValue(ClassLoader loader) {
+        throw new UnsupportedOperationException("Parcel isn't available on the JVM");
+    }
+
+    public void writeValue(Object value) {
+        throw new UnsupportedOperationException("Parcel isn't available on the JVM");
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException("Parcel isn't available on the JVM");
+    }
+
+    public void writeInt(int value) {
+        throw new UnsupportedOperationException("Parcel isn't available on the JVM");
+    }
+
+    public String readString() {
+        throw new UnsupportedOperationException("Parcel isn't available on the JVM");
+    }
+
+    public void writeString(String value) {
+        throw new UnsupportedOperationException("Parcel isn't available on the JVM");
+    }
+}
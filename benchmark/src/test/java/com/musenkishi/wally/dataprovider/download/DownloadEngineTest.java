@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider.download;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadEngineTest {
+
+    private static final long MIB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void chunksCoverTheFileWithoutGapsOrOverlap() {
+        long[] sizes = {8 * MIB, 10 * MIB + 3, 4 * MIB - 1, 64 * MIB + 1};
+        for (long totalBytes : sizes) {
+            DownloadEngine.Chunk[] chunks = DownloadEngine.splitIntoChunks(totalBytes, 4);
+            assertEquals(0, chunks[0].first);
+            for (int i = 1; i < chunks.length; i++) {
+                assertEquals(totalBytes + ": chunk " + i, chunks[i - 1].last + 1, chunks[i].first);
+            }
+            assertEquals(totalBytes - 1, chunks[chunks.length - 1].last);
+        }
+    }
+
+    @Test
+    public void chunksAreSplitEvenly() {
+        DownloadEngine.Chunk[] chunks = DownloadEngine.splitIntoChunks(8 * MIB, 4);
+        assertEquals(4, chunks.length);
+        for (DownloadEngine.Chunk chunk : chunks) {
+            assertEquals(2 * MIB, chunk.last - chunk.first + 1);
+            assertEquals(chunk.first, chunk.next);
+            assertFalse(chunk.isDone());
+        }
+    }
+
+    @Test
+    public void chunksAreNeverSmallerThanTheMinimum() {
+        assertEquals(2, DownloadEngine.splitIntoChunks(2 * MIB + MIB / 2, 4).length);
+        assertEquals(1, DownloadEngine.splitIntoChunks(DownloadEngine.MIN_CHUNK_BYTES - 1, 4).length);
+        assertEquals(4, DownloadEngine.splitIntoChunks(100 * MIB, 4).length);
+    }
+
+    @Test
+    public void aFileSmallerThanOneChunkIsOneRange() {
+        DownloadEngine.Chunk[] chunks = DownloadEngine.splitIntoChunks(1000, 4);
+        assertEquals(1, chunks.length);
+        assertEquals(0, chunks[0].first);
+        assertEquals(999, chunks[0].last);
+    }
+
+    @Test
+    public void contentRangeWithAllValues() {
+        assertArrayEquals(new long[]{0, 99, 1000}, DownloadEngine.parseContentRange("bytes 0-99/1000"));
+        assertArrayEquals(new long[]{500, 999, 1000}, DownloadEngine.parseContentRange("bytes 500-999/1000"));
+    }
+
+    @Test
+    public void contentRangeWithAnUnknownTotal() {
+        assertArrayEquals(new long[]{100, 199, -1}, DownloadEngine.parseContentRange("bytes 100-199/*"));
+    }
+
+    @Test
+    public void unsatisfiedContentRangeOnlyHasTheTotal() {
+        // Sent with a 416 when the part file already has every byte.
+        assertArrayEquals(new long[]{-1, -1, 1000}, DownloadEngine.parseContentRange("bytes */1000"));
+    }
+
+    @Test
+    public void malformedContentRangesAreNotRead() {
+        String[] headers = {null, "", "bytes", "bytes 0-99", "items 0-99/100", "bytes 0-/100",
+                "bytes -99/100", "bytes 99/100", "bytes a-b/100", "bytes 0-99/abc", "bytes 0-99/"};
+        for (String header : headers) {
+            assertNull(header, DownloadEngine.parseContentRange(header));
+        }
+    }
+
+    @Test
+    public void completeJpegAndPngPass() throws IOException {
+        assertTrue(DownloadEngine.isCompleteImage(write(jpeg(true)), -1));
+        assertTrue(DownloadEngine.isCompleteImage(write(png(true)), -1));
+    }
+
+    @Test
+    public void truncatedJpegAndPngFail() throws IOException {
+        assertFalse(DownloadEngine.isCompleteImage(write(jpeg(false)), -1));
+        assertFalse(DownloadEngine.isCompleteImage(write(png(false)), -1));
+    }
+
+    @Test
+    public void gifAndWebpOnlyNeedTheirHeader() throws IOException {
+        byte[] gif = Arrays.copyOf("GIF89a".getBytes("US-ASCII"), 64);
+        byte[] webp = Arrays.copyOf("RIFF\0\0\0\0WEBPVP8 ".getBytes("US-ASCII"), 64);
+        assertTrue(DownloadEngine.isCompleteImage(write(gif), -1));
+        assertTrue(DownloadEngine.isCompleteImage(write(webp), -1));
+    }
+
+    @Test
+    public void theAnnouncedLengthHasToMatch() throws IOException {
+        byte[] jpeg = jpeg(true);
+        File file = write(jpeg);
+        assertTrue(DownloadEngine.isCompleteImage(file, jpeg.length));
+        assertFalse(DownloadEngine.isCompleteImage(file, jpeg.length + 1));
+    }
+
+    @Test
+    public void anythingElseFails() throws IOException {
+        assertFalse(DownloadEngine.isCompleteImage(write("<!DOCTYPE html><html>Not found</html>".getBytes("US-ASCII")), -1));
+        assertFalse(DownloadEngine.isCompleteImage(write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9}), -1));
+        assertFalse(DownloadEngine.isCompleteImage(write(new byte[0]), -1));
+    }
+
+    private static byte[] jpeg(boolean complete) {
+        byte[] bytes = new byte[256];
+        bytes[0] = (byte) 0xFF;
+        bytes[1] = (byte) 0xD8;
+        bytes[2] = (byte) 0xFF;
+        bytes[3] = (byte) 0xE0;
+        if (complete) {
+            bytes[254] = (byte) 0xFF;
+            bytes[255] = (byte) 0xD9;
+        }
+        return bytes;
+    }
+
+    private static byte[] png(boolean complete) throws IOException {
+        byte[] bytes = new byte[256];
+        byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+        System.arraycopy(signature, 0, bytes, 0, signature.length);
+        if (complete) {
+            // The IEND chunk's type followed by its CRC.
+            byte[] end = {'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82};
+            System.arraycopy(end, 0, bytes, bytes.length - end.length, end.length);
+        }
+        return bytes;
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = temporaryFolder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+}
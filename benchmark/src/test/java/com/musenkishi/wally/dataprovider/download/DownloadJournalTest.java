@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider.download;
+
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void aMissingFileHasNoDownloads() throws IOException {
+        File file = new File(temporaryFolder.getRoot(), "downloads.journal");
+        assertTrue(new DownloadJournal(file).load().isEmpty());
+    }
+
+    @Test
+    public void queuedDownloadsAreReadBackInOrder() throws IOException {
+        File file = temporaryFolder.newFile();
+        DownloadJournal journal = new DownloadJournal(file);
+        journal.load();
+        journal.add(entry(2, "b"));
+        journal.add(entry(1, "a"));
+        journal.add(entry(3, "c"));
+        journal.setPriority(1, RateLimiter.Priority.BACKGROUND);
+        journal.remove(3);
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(file).load();
+        assertEquals(2, entries.size());
+        assertEquals(2, entries.get(0).id);
+        assertEquals(RateLimiter.Priority.VISIBLE, entries.get(0).priority);
+        assertEquals("https://example.com/b.jpg", entries.get(0).url);
+        assertEquals(new File("/pictures/b.jpg"), entries.get(0).destination);
+        assertEquals("b", entries.get(0).title);
+        assertEquals(1, entries.get(1).id);
+        assertEquals(RateLimiter.Priority.BACKGROUND, entries.get(1).priority);
+    }
+
+    @Test
+    public void tabsAndLineBreaksInTitlesDoNotSplitLines() throws IOException {
+        File file = temporaryFolder.newFile();
+        DownloadJournal journal = new DownloadJournal(file);
+        journal.load();
+        journal.add(new DownloadJournal.Entry(1, RateLimiter.Priority.VISIBLE, "https://example.com/a.jpg",
+                new File("/pictures/a.jpg"), "a\tb\nc"));
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(file).load();
+        assertEquals(1, entries.size());
+        assertEquals("a b c", entries.get(0).title);
+    }
+
+    @Test
+    public void aTornRemoveLineIsSkipped() throws IOException {
+        // "R 12" cut off after the 1 must not remove download 1.
+        File file = write(add(1, "a") + add(12, "b") + "R\t1");
+        List<DownloadJournal.Entry> entries = new DownloadJournal(file).load();
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).id);
+        assertEquals(12, entries.get(1).id);
+    }
+
+    @Test
+    public void aTornAddLineIsSkipped() throws IOException {
+        // Every field is there but the title was cut short.
+        File file = write(add(1, "a") + "A\t2\tVISIBLE\thttps://example.com/b.jpg\t/pictures/b.jpg\tsunse");
+        List<DownloadJournal.Entry> entries = new DownloadJournal(file).load();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).id);
+    }
+
+    @Test
+    public void aTornPriorityLineIsSkipped() throws IOException {
+        File file = write(add(1, "a") + "P\t1\tBACKGR");
+        List<DownloadJournal.Entry> entries = new DownloadJournal(file).load();
+        assertEquals(RateLimiter.Priority.VISIBLE, entries.get(0).priority);
+    }
+
+    @Test
+    public void unreadableLinesAreSkipped() throws IOException {
+        File file = write(add(1, "a")
+                + "\n"
+                + "X\t1\n"
+                + "A\t2\tVISIBLE\n"
+                + "A\tx\tVISIBLE\thttps://example.com/b.jpg\t/pictures/b.jpg\tb\n"
+                + "A\t3\tLOUD\thttps://example.com/c.jpg\t/pictures/c.jpg\tc\n"
+                + "P\t1\tLOUD\n"
+                + "R\tone\n"
+                + "P\t9\tBACKGROUND\n"
+                + "R\t9\n"
+                + add(4, "d"));
+        List<DownloadJournal.Entry> entries = new DownloadJournal(file).load();
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).id);
+        assertEquals(RateLimiter.Priority.VISIBLE, entries.get(0).priority);
+        assertEquals(4, entries.get(1).id);
+    }
+
+    @Test
+    public void loadingCompactsTheFile() throws IOException {
+        File file = write(add(1, "a") + add(2, "b") + "P\t2\tBACKGROUND\n" + "R\t1\n" + "R\t2");
+        DownloadJournal journal = new DownloadJournal(file);
+        journal.load();
+        assertEquals(1, journal.size());
+        assertEquals(1, lines(file).size());
+        assertEquals("A\t2\tBACKGROUND\thttps://example.com/b.jpg\t/pictures/b.jpg\tb", lines(file).get(0));
+    }
+
+    @Test
+    public void removingTheLastDownloadEmptiesTheFile() throws IOException {
+        File file = temporaryFolder.newFile();
+        DownloadJournal journal = new DownloadJournal(file);
+        journal.load();
+        journal.add(entry(1, "a"));
+        journal.add(entry(2, "b"));
+        journal.remove(1);
+        assertEquals(3, lines(file).size());
+        journal.remove(2);
+        assertEquals(0, file.length());
+    }
+
+    private static DownloadJournal.Entry entry(long id, String name) {
+        return new DownloadJournal.Entry(id, RateLimiter.Priority.VISIBLE, "https://example.com/" + name + ".jpg",
+                new File("/pictures/" + name + ".jpg"), name);
+    }
+
+    private static String add(long id, String name) {
+        return "A\t" + id + "\tVISIBLE\thttps://example.com/" + name + ".jpg\t/pictures/" + name + ".jpg\t" + name + "\n";
+    }
+
+    private File write(String contents) throws IOException {
+        File file = temporaryFolder.newFile();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(contents);
+        }
+        return file;
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+}
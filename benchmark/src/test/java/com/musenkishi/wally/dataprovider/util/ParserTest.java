@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider.util;
+
+import com.musenkishi.wally.models.ExceptionReporter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParserTest {
+
+    private static final String WALLPAPER_URL = "https://wallhaven.cc/w/8o2dpo";
+
+    private final Parser parser = new Parser(new ExceptionReporter.OnReportListener() {
+        @Override
+        public void report(Class fromClass, String reason, String exceptionMessage) {
+        }
+    });
+
+    @Test
+    public void purityIsReadFromTheActiveLabel() {
+        assertEquals("SFW", rating(label("sfw", true) + label("sketchy", false) + label("nsfw", false)));
+        assertEquals("Sketchy", rating(label("sfw", false) + label("sketchy", true) + label("nsfw", false)));
+        assertEquals("NSFW", rating(label("sfw", false) + label("sketchy", false) + label("nsfw", true)));
+    }
+
+    @Test
+    public void purityFallsBackToTheFieldsetWithoutAnActiveLabel() {
+        assertEquals("SFW", rating(label("sfw", false)));
+        assertEquals("Sketchy", rating(label("sketchy", false)));
+    }
+
+    @Test
+    public void purityIsUnknownWithoutAFieldset() {
+        assertEquals("Unknown", parser.parseImagePage("<html><body></body></html>", WALLPAPER_URL).rating());
+        assertEquals("Unknown", rating(""));
+    }
+
+    private String rating(String labels) {
+        String page = "<html><body><div class=\"sidebar-section\"><h2>Purity</h2><fieldset class=\"framed\">"
+                + labels + "</fieldset></div></body></html>";
+        return parser.parseImagePage(page, WALLPAPER_URL).rating();
+    }
+
+    private static String label(String purity, boolean active) {
+        return "<label for=\"purity-" + purity + "\" class=\"purity " + purity + (active ? " active" : "") + "\">"
+                + purity + "</label>";
+    }
+}
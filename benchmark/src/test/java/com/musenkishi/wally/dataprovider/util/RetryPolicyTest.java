@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider.util;
+
+import okhttp3.internal.http2.ConnectionShutdownException;
+import okhttp3.internal.http2.ErrorCode;
+import okhttp3.internal.http2.StreamResetException;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void transportFailuresAreRetried() {
+        assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException("timeout")));
+        assertTrue(RetryPolicy.isRetryable(new ConnectException("Connection refused")));
+        assertTrue(RetryPolicy.isRetryable(new SocketException("Connection reset")));
+        assertTrue(RetryPolicy.isRetryable(new UnknownHostException("wallhaven.cc")));
+        assertTrue(RetryPolicy.isRetryable(new ProtocolException("unexpected end of stream on https://wallhaven.cc/...")));
+    }
+
+    @Test
+    public void okHttpStreamFailuresAreRetried() {
+        assertTrue(RetryPolicy.isRetryable(new StreamResetException(ErrorCode.REFUSED_STREAM)));
+        assertTrue(RetryPolicy.isRetryable(new ConnectionShutdownException()));
+    }
+
+    @Test
+    public void tlsFailuresAreOnlyRetriedWhenTheConnectionBroke() {
+        assertTrue(RetryPolicy.isRetryable(new SSLException("Read error", new SocketException("Connection reset by peer"))));
+        assertFalse(RetryPolicy.isRetryable(new SSLException("Handshake failed")));
+        assertFalse(RetryPolicy.isRetryable(new SSLPeerUnverifiedException("Hostname wallhaven.cc not verified")));
+        assertFalse(RetryPolicy.isRetryable(new SSLException("Wrapped", new SSLException("Bad record MAC"))));
+    }
+
+    @Test
+    public void otherFailuresAreNotRetried() {
+        assertFalse(RetryPolicy.isRetryable(new IOException("Couldn't parse response")));
+        assertFalse(RetryPolicy.isRetryable(new EOFException()));
+        assertFalse(RetryPolicy.isRetryable(new ProtocolException("Too many follow-up requests: 21")));
+    }
+
+    @Test
+    public void onlyTransientStatusCodesAreRetried() {
+        int[] retryable = {408, 429, 500, 502, 503, 504};
+        for (int status : retryable) {
+            assertTrue(String.valueOf(status), RetryPolicy.isRetryable(status));
+        }
+        int[] notRetryable = {200, 301, 400, 401, 403, 404, 501};
+        for (int status : notRetryable) {
+            assertFalse(String.valueOf(status), RetryPolicy.isRetryable(status));
+        }
+    }
+
+    @Test
+    public void delaysStayBelowTheExponentialBound() {
+        RetryPolicy retryPolicy = new RetryPolicy(10, 100, 1000, 60000);
+        long[] bounds = {100, 200, 400, 800, 1000, 1000};
+        for (int retry = 1; retry <= bounds.length; retry++) {
+            for (int i = 0; i < 200; i++) {
+                long delay = retryPolicy.getDelayMillis(retry);
+                assertTrue("retry " + retry + " waited " + delay, delay >= 0 && delay <= bounds[retry - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void lateRetriesDontOverflow() {
+        RetryPolicy retryPolicy = new RetryPolicy(100, 1000, 30000, 60000);
+        for (int retry = 20; retry < 100; retry++) {
+            long delay = retryPolicy.getDelayMillis(retry);
+            assertTrue("retry " + retry + " waited " + delay, delay >= 0 && delay <= 30000);
+        }
+    }
+
+    @Test
+    public void noneNeverWaitsOrRetries() {
+        RetryPolicy retryPolicy = RetryPolicy.none();
+        assertEquals(0, retryPolicy.getDelayMillis(1));
+        assertFalse(retryPolicy.shouldRetry(1, 0, 0));
+    }
+
+    @Test
+    public void retriesStopAtTheAttemptLimitAndTheDeadline() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 100, 1000, 5000);
+        assertTrue(retryPolicy.shouldRetry(1, 0, 100));
+        assertTrue(retryPolicy.shouldRetry(2, 4000, 1000));
+        assertFalse(retryPolicy.shouldRetry(3, 0, 0));
+        assertFalse(retryPolicy.shouldRetry(2, 4500, 501));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider.util;
+
+import com.musenkishi.wally.models.Filter;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class WallhavenUrlBuilderTest {
+
+    @Test
+    public void toplistHasItsOwnPage() {
+        WallhavenUrlBuilder urlBuilder = new WallhavenUrlBuilder();
+        assertEquals("https://wallhaven.cc/toplist?categories=111&purity=100&resolutions=1920x1080&ratios=16x9%2C21x9&page=2",
+                urlBuilder.listingUrl(2, WallhavenUrlBuilder.PATH_TOPLIST, newFilters("100"), null, null));
+    }
+
+    @Test
+    public void otherListingsGoThroughSearchWithTheirSorting() {
+        WallhavenUrlBuilder urlBuilder = new WallhavenUrlBuilder();
+        assertEquals("https://wallhaven.cc/search?categories=111&resolutions=1920x1080&purity=100&ratios=16x9%2C21x9&sorting=date_added&order=desc&page=1",
+                urlBuilder.listingUrl(1, WallhavenUrlBuilder.PATH_LATEST, newFilters("100"), null, null));
+        assertEquals("https://wallhaven.cc/search?categories=111&resolutions=1920x1080&purity=100&ratios=16x9%2C21x9&sorting=random&order=desc&page=1",
+                urlBuilder.listingUrl(1, WallhavenUrlBuilder.PATH_RANDOM, newFilters("100"), null, null));
+        assertEquals("https://wallhaven.cc/search?categories=111&resolutions=1920x1080&purity=100&ratios=16x9%2C21x9&sorting=relevance&order=desc&page=3&color=66cccc&q=cats%20%26%20dogs",
+                urlBuilder.listingUrl(3, WallhavenUrlBuilder.PATH_SEARCH, newFilters("100"), "cats & dogs", "66cccc"));
+    }
+
+    @Test
+    public void apiSearchUrlPutsTheQueryBeforeTheColor() {
+        WallhavenUrlBuilder urlBuilder = new WallhavenUrlBuilder();
+        assertEquals("https://wallhaven.cc/api/v1/search?categories=111&purity=110&resolutions=1920x1080&ratios=16x9%2C21x9&sorting=toplist&order=desc&page=4",
+                urlBuilder.apiSearchUrl(4, WallhavenUrlBuilder.PATH_TOPLIST, newFilters("110"), null, null));
+        assertEquals("https://wallhaven.cc/api/v1/search?categories=111&purity=100&resolutions=1920x1080&ratios=16x9%2C21x9&sorting=relevance&order=desc&page=1&q=id%3A37&color=424153",
+                urlBuilder.apiSearchUrl(1, WallhavenUrlBuilder.PATH_SEARCH, newFilters("100"), "id:37", "424153"));
+    }
+
+    @Test
+    public void encodeMatchesUriEncode() {
+        assertEquals("AZaz09_-!.~'()*", encode("AZaz09_-!.~'()*"));
+        assertEquals("a%20b%2Bc%2Fd%3F%3D%26", encode("a b+c/d?=&"));
+        assertEquals("%E7%8C%AB%20caf%C3%A9", encode("\u732b caf\u00e9"));
+        assertEquals("null", encode(null));
+    }
+
+    @Test
+    public void pagesOfTheSameFiltersOnlyDifferInThePageNumber() {
+        WallhavenUrlBuilder urlBuilder = new WallhavenUrlBuilder();
+        String first = urlBuilder.listingUrl(1, WallhavenUrlBuilder.PATH_LATEST, newFilters("100"), null, null);
+        String second = urlBuilder.listingUrl(2, WallhavenUrlBuilder.PATH_LATEST, newFilters("100"), null, null);
+        assertEquals(first.substring(0, first.length() - 1) + "2", second);
+        assertEquals(1, urlBuilder.getMissCount());
+        assertEquals(1, urlBuilder.getHitCount());
+    }
+
+    @Test
+    public void changedFiltersAreEncodedAgain() {
+        WallhavenUrlBuilder urlBuilder = new WallhavenUrlBuilder();
+        String sfw = urlBuilder.listingUrl(1, WallhavenUrlBuilder.PATH_LATEST, newFilters("100"), null, null);
+        String sketchy = urlBuilder.listingUrl(1, WallhavenUrlBuilder.PATH_LATEST, newFilters("010"), null, null);
+        assertNotEquals(sfw, sketchy);
+        assertEquals(sfw, urlBuilder.listingUrl(1, WallhavenUrlBuilder.PATH_LATEST, newFilters("100"), null, null));
+        assertEquals(2, urlBuilder.getMissCount());
+        assertEquals(1, urlBuilder.getHitCount());
+    }
+
+    @Test
+    public void withoutCacheEveryCallIsEncoded() {
+        WallhavenUrlBuilder cached = new WallhavenUrlBuilder();
+        WallhavenUrlBuilder uncached = new WallhavenUrlBuilder(0);
+        for (int page = 1; page <= 3; page++) {
+            assertEquals(cached.apiSearchUrl(page, WallhavenUrlBuilder.PATH_RANDOM, newFilters("100"), "sky", null),
+                    uncached.apiSearchUrl(page, WallhavenUrlBuilder.PATH_RANDOM, newFilters("100"), "sky", null));
+        }
+        assertEquals(0, uncached.getHitCount());
+        assertEquals(3, uncached.getMissCount());
+    }
+
+    private static String encode(String value) {
+        StringBuilder builder = new StringBuilder();
+        WallhavenUrlBuilder.encode(builder, value);
+        return builder.toString();
+    }
+
+    private static FilterGroupsStructure newFilters(String purity) {
+        FilterGroupsStructure filters = new FilterGroupsStructure();
+        filters.setBoardsFilter("111");
+        filters.setPurityFilter(purity);
+        filters.setResolutionFilter(new Filter<String, String>("1920x1080", "1920x1080"));
+        filters.setAspectRatioFilter(new Filter<String, String>("16:9, 21:9", "16x9,21x9"));
+        return filters;
+    }
+}
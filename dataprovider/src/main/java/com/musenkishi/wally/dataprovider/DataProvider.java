@@ -16,15 +16,25 @@
 
 package com.musenkishi.wally.dataprovider;
 
-import android.app.DownloadManager;
 import android.content.Context;
+import android.content.Intent;
 import android.net.Uri;
-import android.os.Environment;
+import android.util.Log;
 import androidx.core.content.FileProvider;
 
+import com.musenkishi.wally.dataprovider.download.DownloadEngine;
+import com.musenkishi.wally.dataprovider.download.DownloadJournal;
 import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.models.DataProviderException;
 import com.musenkishi.wally.dataprovider.models.SaveImageRequest;
+import com.musenkishi.wally.dataprovider.okhttp.OkHttpClientProvider;
+import com.musenkishi.wally.dataprovider.source.WallhavenApiSource;
+import com.musenkishi.wally.dataprovider.source.WallhavenHtmlSource;
+import com.musenkishi.wally.dataprovider.source.WallpaperSource;
+import com.musenkishi.wally.dataprovider.util.BatchFetcher;
+import com.musenkishi.wally.dataprovider.util.Futures;
 import com.musenkishi.wally.dataprovider.util.Parser;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
 import com.musenkishi.wally.models.ExceptionReporter;
 import com.musenkishi.wally.models.Filter;
 import com.musenkishi.wally.models.Image;
@@ -33,22 +43,118 @@ import com.musenkishi.wally.models.filters.FilterGroupsStructure;
 import com.musenkishi.wally.models.filters.FilterPurityKeys;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-
-import static com.musenkishi.wally.dataprovider.NetworkDataProvider.OnDataReceivedListener;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.musenkishi.wally.dataprovider.NetworkDataProvider.OnResultReceivedListener;
 
 /**
- * <strong>No threading shall take place here.</strong>
  * Use this class to get and set data.
+ * Only the *Sync methods block the calling thread. The class owns one small executor, shared by
+ * every instance, that runs work chained onto its futures and reads of the wallpaper page cache.
+ * Listeners are called on that executor or on OkHttp's threads, or right away on the calling
+ * thread when the answer is already in memory.
  * Created by Musenkishi on 2014-02-28.
  */
 public class DataProvider {
 
     private static final String TAG = "DataProvider";
+    private static final String WALLPAPER_PAGE_URL = NetworkDataProvider.WALLHAVEN_BASE_URL + "w/";
+    /**
+     * Half of the shared client's requests per host, so a batch leaves room for the grid and thumbnails.
+     */
+    public static final int DEFAULT_BATCH_CONCURRENCY = 4;
+    public static final long DEFAULT_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Broadcast to this app when a download started by {@link #downloadImageIfNeeded(Uri, String, String)}
+     * has finished and been saved to the gallery, with {@link #EXTRA_DOWNLOAD_ID},
+     * {@link #EXTRA_DOWNLOAD_SUCCESSFUL} and, if it was, {@link #EXTRA_DOWNLOAD_URI}.
+     */
+    public static final String ACTION_DOWNLOAD_COMPLETE = "com.musenkishi.wally.dataprovider.DOWNLOAD_COMPLETE";
+    public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
+    public static final String EXTRA_DOWNLOAD_SUCCESSFUL = "extra_download_successful";
+    public static final String EXTRA_DOWNLOAD_URI = "extra_download_uri";
+    private static final String DOWNLOAD_JOURNAL_NAME = "downloads.journal";
+    /**
+     * Where downloads are written until they're complete, see {@link GalleryPublisher}.
+     */
+    private static final String DOWNLOAD_DIRECTORY = "downloads";
+    private static final String IMAGE_PAGE_CACHE_DIRECTORY = "image_pages";
+
+    /**
+     * Runs the work that callers chain onto the futures of this class, like decoding or
+     * fetching the details of a page. Shared by every screen, instead of a thread each.
+     */
+    private static final Executor EXECUTOR = Futures.newBoundedExecutor("DataProvider", 4, 128);
+
     private final Context context;
     private final SharedPreferencesDataProvider sharedPreferencesDataProvider;
-    private final DownloadManager downloadManager;
-    private final Parser parser;
+    private final DownloadEngine downloadEngine;
+    /**
+     * The journal is read on the engine's thread, so that it doesn't slow down the app's start.
+     */
+    private final CompletableFuture<List<Long>> restoredDownloads;
+    private final GalleryPublisher galleryPublisher;
+    private final OnDownloadStatusListener onDownloadStatusListener;
+    private final NetworkDataProvider networkDataProvider;
+    private final PagePrefetcher pagePrefetcher;
+    private final ImagePageCache imagePageCache;
+    private final WallhavenApiSource apiSource;
+
+    /**
+     * Replaces the Wallhaven sources when set, see {@link #setWallpaperSource(WallpaperSource)}.
+     */
+    private volatile WallpaperSource wallpaperSource;
+
+    private final DownloadEngine.OnDownloadListener downloadListener = new DownloadEngine.OnDownloadListener() {
+        @Override
+        public void onProgress(long id, long bytesDownloaded, long totalBytes) {
+            if (onDownloadStatusListener != null) {
+                int percent = totalBytes > 0 ? (int) (bytesDownloaded * 100 / totalBytes) : -1;
+                onDownloadStatusListener.onDownloadProgress(id, downloadEngine.getTitle(id), percent);
+            }
+        }
+
+        @Override
+        public void onComplete(long id, File file) {
+            Uri uri;
+            try {
+                uri = galleryPublisher.publish(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't save download " + id + " to the gallery: " + e.getMessage());
+                file.delete();
+                uri = null;
+            }
+            if (onDownloadStatusListener != null) {
+                if (uri != null) {
+                    onDownloadStatusListener.onDownloadSaved(id, file.getName(), uri);
+                } else {
+                    onDownloadStatusListener.onDownloadFailed(id);
+                }
+            }
+            sendDownloadComplete(id, uri);
+        }
+
+        @Override
+        public void onError(long id, DataProviderError error) {
+            Log.w(TAG, "Download " + id + " failed: " + error.getMessage());
+            if (onDownloadStatusListener != null) {
+                onDownloadStatusListener.onDownloadFailed(id);
+            }
+            sendDownloadComplete(id, null);
+        }
+    };
 
     public interface OnImagesReceivedListener {
         void onImagesReceived(ArrayList<Image> images);
@@ -62,229 +168,419 @@ public class DataProvider {
         void onError(DataProviderError dataProviderError);
     }
 
+    /**
+     * Told about downloads started by {@link #downloadImageIfNeeded(Uri, String, String)}, and
+     * the ones restored from before the process was restarted, on the download engine's threads.
+     * Meant for notifications, which show whether or not an activity is running.
+     */
+    public interface OnDownloadStatusListener {
+        /**
+         * @param title   what the download was started with.
+         * @param percent how much is downloaded, or -1 if the size isn't known yet.
+         */
+        void onDownloadProgress(long downloadId, String title, int percent);
+
+        /**
+         * @param uri the image in the gallery.
+         */
+        void onDownloadSaved(long downloadId, String filename, Uri uri);
+
+        void onDownloadFailed(long downloadId);
+    }
+
     public DataProvider(Context context, ExceptionReporter.OnReportListener onReportListener) {
+        this(context, onReportListener, null);
+    }
+
+    /**
+     * @param onDownloadStatusListener may be null. It's given here rather than set later so
+     *                                 that it hears about the downloads restored right away.
+     */
+    public DataProvider(Context context, ExceptionReporter.OnReportListener onReportListener,
+                        OnDownloadStatusListener onDownloadStatusListener) {
+        this.onDownloadStatusListener = onDownloadStatusListener;
         sharedPreferencesDataProvider = new SharedPreferencesDataProvider(context);
-        parser = new Parser(onReportListener);
-        downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        Parser parser = new Parser(onReportListener);
+        networkDataProvider = new NetworkDataProvider();
+        WallhavenHtmlSource htmlSource = new WallhavenHtmlSource(networkDataProvider, parser);
+        apiSource = new WallhavenApiSource(networkDataProvider, parser, htmlSource, new WallhavenApiSource.ApiKeyProvider() {
+            @Override
+            public String getApiKey() {
+                return sharedPreferencesDataProvider.getWallhavenApiKey();
+            }
+        });
+        pagePrefetcher = new PagePrefetcher();
+        imagePageCache = new ImagePageCache(new File(context.getCacheDir(), IMAGE_PAGE_CACHE_DIRECTORY));
+        downloadEngine = new DownloadEngine(OkHttpClientProvider.getInstance().getImageClient());
+        galleryPublisher = new GalleryPublisher(context);
         this.context = context;
+        restoredDownloads = downloadEngine.restoreInBackground(
+                new DownloadJournal(new File(context.getFilesDir(), DOWNLOAD_JOURNAL_NAME)), downloadListener);
+        restoredDownloads.exceptionally(new Function<Throwable, List<Long>>() {
+            @Override
+            public List<Long> apply(Throwable throwable) {
+                Log.w(TAG, "Couldn't restore downloads: " + throwable.getMessage());
+                return null;
+            }
+        });
     }
 
     public SharedPreferencesDataProvider getSharedPreferencesDataProviderInstance() {
         return sharedPreferencesDataProvider;
     }
 
-    public DownloadManager getDownloadManager() {
-        return downloadManager;
+    public DownloadEngine getDownloadEngine() {
+        return downloadEngine;
     }
 
-    public void getImages(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure, final OnImagesReceivedListener onImagesReceivedListener) {
-        String apiKey = sharedPreferencesDataProvider.getWallhavenApiKey();
-        boolean wantsNsfw = sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).length() >= 3 && sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).charAt(2) == '1';
-        if (wantsNsfw) {
-            // Check if API key is available when NSFW is enabled
-            if (apiKey == null || apiKey.length() == 0) {
-                if (onImagesReceivedListener != null) {
-                    DataProviderError apiKeyError = new DataProviderError(DataProviderError.Type.LOCAL, 401, "API key required for NSFW content");
-                    onImagesReceivedListener.onError(apiKeyError);
-                }
-                return;
-            }
-            
-            new NetworkDataProvider().getDataApi(path, query, color, index, filterGroupsStructure, apiKey, new OnDataReceivedListener() {
-                @Override
-                public void onData(String data, String url) {
-                    ArrayList<Image> images = parser.parseImagesFromApi(data);
-                    if (onImagesReceivedListener != null) {
-                        onImagesReceivedListener.onImagesReceived(images);
-                    }
-                }
+    public boolean isDownloading(long downloadId) {
+        return downloadEngine.isDownloading(downloadId);
+    }
 
-                @Override
-                public void onError(DataProviderError dataProviderError) {
-                    if (onImagesReceivedListener != null) {
-                        onImagesReceivedListener.onError(dataProviderError);
-                    }
-                }
-            });
-            return;
-        }
-        new NetworkDataProvider().getData(path, query, color, index, filterGroupsStructure, apiKey, new OnDataReceivedListener() {
+    /**
+     * @see DownloadEngine#getProgress(long)
+     */
+    public float getDownloadProgress(long downloadId) {
+        return downloadEngine.getProgress(downloadId);
+    }
+
+    /**
+     * @return a handle to cancel the request, after which the listener won't be called.
+     */
+    public RequestHandle getImages(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure, final OnImagesReceivedListener onImagesReceivedListener) {
+        return getImages(path, query, color, index, filterGroupsStructure, false, onImagesReceivedListener);
+    }
+
+    /**
+     * Like {@link #getImages(String, int, FilterGroupsStructure, OnImagesReceivedListener)}, as a future
+     * that fails with a {@link DataProviderException} if the request does, or with a timeout after
+     * {@link #DEFAULT_TIMEOUT_SECONDS}. Cancelling the future cancels the request.
+     * <p>
+     * The future completes on a network thread, so chain work onto it with the async variants
+     * and {@link #getExecutor()}.
+     */
+    public CompletableFuture<ArrayList<Image>> getImagesAsync(String path, int index, FilterGroupsStructure filterGroupsStructure) {
+        return getImagesAsync(path, null, null, index, filterGroupsStructure, true);
+    }
+
+    public CompletableFuture<ArrayList<Image>> getImagesAsync(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure) {
+        return getImagesAsync(path, query, color, index, filterGroupsStructure, false);
+    }
+
+    private CompletableFuture<ArrayList<Image>> getImagesAsync(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure, boolean reportEmptyResult) {
+        final CompletableFuture<ArrayList<Image>> future = new CompletableFuture<>();
+        RequestHandle requestHandle = getImages(path, query, color, index, filterGroupsStructure, reportEmptyResult, new OnImagesReceivedListener() {
             @Override
-            public void onData(String data, String url) {
-                ArrayList<Image> images = parser.parseImages(data);
-                if (onImagesReceivedListener != null) {
-                    onImagesReceivedListener.onImagesReceived(images);
-                }
+            public void onImagesReceived(ArrayList<Image> images) {
+                future.complete(images);
             }
 
             @Override
             public void onError(DataProviderError dataProviderError) {
-                if (onImagesReceivedListener != null) {
-                    onImagesReceivedListener.onError(dataProviderError);
-                }
+                future.completeExceptionally(new DataProviderException(dataProviderError));
             }
         });
+        return withTimeout(future, requestHandle);
     }
 
-    public ArrayList<Image> getImagesSync(String path, int index, FilterGroupsStructure filterGroupsStructure) {
-        String apiKey = sharedPreferencesDataProvider.getWallhavenApiKey();
-        boolean wantsNsfw = sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).length() >= 3 && sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).charAt(2) == '1';
-        String data;
-        if (wantsNsfw) {
-            // Check if API key is available when NSFW is enabled
-            if (apiKey == null || apiKey.length() == 0) {
-                // Return null to indicate failure - caller should handle this
-                return null;
-            }
-            
-            Uri uri = new NetworkDataProvider().buildWallhavenApiUrl(index, path, filterGroupsStructure, null, null);
-            data = new NetworkDataProvider().getDataSync(uri.toString(), apiKey);
-            if (data != null) {
-                return parser.parseImagesFromApi(data);
+    /**
+     * A feed of the pages of a listing, starting at firstPage. Subscribers request pages as the
+     * user scrolls and get them in order, each fetched once. The page prefetcher already fetches
+     * ahead of the last page handed out, so the feed itself doesn't look ahead.
+     */
+    public ImagePagePublisher getImagePages(String path, int firstPage, FilterGroupsStructure filterGroupsStructure) {
+        return getImagePages(path, null, null, firstPage, filterGroupsStructure);
+    }
+
+    public ImagePagePublisher getImagePages(final String path, final String query, final String color, int firstPage, final FilterGroupsStructure filterGroupsStructure) {
+        return new ImagePagePublisher(new ImagePagePublisher.PageFetcher() {
+            @Override
+            public RequestHandle fetch(int page, OnImagesReceivedListener listener) {
+                // An empty page ends the feed instead of being reported as an error.
+                return getImages(path, query, color, page, filterGroupsStructure, false, listener);
             }
-            return null;
-        } else {
-            data = new NetworkDataProvider().getDataSync(path, index, filterGroupsStructure, apiKey);
-        }
-        if (data != null) {
-            return parser.parseImages(data);
-        } else {
+        }, firstPage, 0);
+    }
+
+    public ArrayList<Image> getImagesSync(String path, int index, FilterGroupsStructure filterGroupsStructure) {
+        if (isApiKeyMissing()) {
+            // Return null to indicate failure - caller should handle this
             return null;
         }
+        WallpaperSource source = getImagesSource();
+        return copyOf(source.getImagesSync(source.getImagesKey(path, null, null, index, filterGroupsStructure)));
     }
 
     /**
      */
-    public void getImages(String path, int index, FilterGroupsStructure filterGroupsStructure, final OnImagesReceivedListener onImagesReceivedListener) {
+    public RequestHandle getImages(String path, int index, FilterGroupsStructure filterGroupsStructure, final OnImagesReceivedListener onImagesReceivedListener) {
+        return getImages(path, null, null, index, filterGroupsStructure, true, onImagesReceivedListener);
+    }
 
-        String apiKey = sharedPreferencesDataProvider.getWallhavenApiKey();
-        boolean wantsNsfw = sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).length() >= 3 && sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).charAt(2) == '1';
-        if (wantsNsfw) {
-            // Check if API key is available when NSFW is enabled
-            if (apiKey == null || apiKey.length() == 0) {
-                if (onImagesReceivedListener != null) {
-                    DataProviderError apiKeyError = new DataProviderError(DataProviderError.Type.LOCAL, 401, "API key required for NSFW content");
-                    onImagesReceivedListener.onError(apiKeyError);
-                }
-                return;
+    private RequestHandle getImages(final String path, final String query, final String color, final int index, final FilterGroupsStructure filterGroupsStructure, boolean reportEmptyResult, final OnImagesReceivedListener onImagesReceivedListener) {
+        if (isApiKeyMissing()) {
+            if (onImagesReceivedListener != null) {
+                DataProviderError apiKeyError = new DataProviderError(DataProviderError.Type.LOCAL, 401, "API key required for NSFW content");
+                onImagesReceivedListener.onError(apiKeyError);
             }
-            
-            new NetworkDataProvider().getDataApi(path, index, filterGroupsStructure, apiKey, new OnDataReceivedListener() {
+            return RequestHandle.completed();
+        }
+
+        final WallpaperSource source = getImagesSource();
+        String imagesKey = source.getImagesKey(path, query, color, index, filterGroupsStructure);
+        ImagesResultListener imagesResultListener = new ImagesResultListener(onImagesReceivedListener, reportEmptyResult, new Runnable() {
+            @Override
+            public void run() {
+                prefetchImages(source, path, query, color, index, filterGroupsStructure);
+            }
+        });
+
+        ArrayList<Image> prefetchedImages = index > 1 ? pagePrefetcher.take(imagesKey) : null;
+        if (prefetchedImages != null) {
+            imagesResultListener.onResult(prefetchedImages, imagesKey);
+            return RequestHandle.completed();
+        }
+        return source.getImages(imagesKey, RateLimiter.Priority.VISIBLE, imagesResultListener);
+    }
+
+    /**
+     * Fetches and parses the pages following index in the background, so they are ready
+     * when the user scrolls down to them.
+     */
+    private void prefetchImages(WallpaperSource source, String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure) {
+        int lookAheadDepth = pagePrefetcher.getLookAheadDepth();
+        for (int nextIndex = index + 1; nextIndex <= index + lookAheadDepth; nextIndex++) {
+            final String imagesKey = source.getImagesKey(path, query, color, nextIndex, filterGroupsStructure);
+            final int generation = pagePrefetcher.startPrefetch(imagesKey);
+            if (generation < 0) {
+                continue;
+            }
+            source.getImages(imagesKey, RateLimiter.Priority.PREFETCH, new OnResultReceivedListener<ArrayList<Image>>() {
                 @Override
-                public void onData(String data, String url) {
-                    ArrayList<Image> images = parser.parseImagesFromApi(data);
-                    if (onImagesReceivedListener != null) {
-                        if (!images.isEmpty()) {
-                            onImagesReceivedListener.onImagesReceived(images);
-                        } else {
-                            DataProviderError noImagesError = new DataProviderError(DataProviderError.Type.LOCAL, 204, "No images");
-                            onImagesReceivedListener.onError(noImagesError);
-                        }
-                    }
+                public void onResult(ArrayList<Image> images, String url) {
+                    pagePrefetcher.onPrefetched(imagesKey, generation, images);
                 }
 
                 @Override
-                public void onError(DataProviderError dataProviderError) {
-                    if (onImagesReceivedListener != null) {
-                        onImagesReceivedListener.onError(dataProviderError);
-                    }
+                public void onError(DataProviderError error) {
+                    pagePrefetcher.onPrefetchFailed(imagesKey, generation);
                 }
             });
-            return;
         }
-        new NetworkDataProvider().getData(path, index, filterGroupsStructure, apiKey, new OnDataReceivedListener() {
+    }
+
+    /**
+     * Makes the grids and detail screens use the source instead of Wallhaven, or Wallhaven
+     * again if it is null. Pages prefetched from the previous source are discarded.
+     */
+    public void setWallpaperSource(WallpaperSource wallpaperSource) {
+        this.wallpaperSource = wallpaperSource;
+        pagePrefetcher.invalidate();
+    }
+
+    /**
+     * The source listings and wallpaper details are currently read from: the one set with
+     * {@link #setWallpaperSource(WallpaperSource)}, or the Wallhaven API, which falls back to the
+     * website if it fails.
+     */
+    public WallpaperSource getImagesSource() {
+        WallpaperSource wallpaperSource = this.wallpaperSource;
+        if (wallpaperSource != null) {
+            return wallpaperSource;
+        }
+        return apiSource;
+    }
+
+    /**
+     * @see WallhavenApiSource#getFallbackCount()
+     */
+    public long getApiFallbackCount() {
+        return apiSource.getFallbackCount();
+    }
+
+    /**
+     * NSFW listings need the API, which needs a key. Other sources don't.
+     */
+    private boolean isApiKeyMissing() {
+        return wallpaperSource == null && isNsfwEnabledButMissingApiKey();
+    }
+
+    /**
+     * Sets how many pages ahead of the current one the grids fetch in the background.
+     */
+    public void setPrefetchLookAheadDepth(int lookAheadDepth) {
+        pagePrefetcher.setLookAheadDepth(lookAheadDepth);
+    }
+
+    /**
+     * Hit rate of the next page prefetching.
+     */
+    public PagePrefetcher getPagePrefetcher() {
+        return pagePrefetcher;
+    }
+
+    /**
+     * Hit rate of the wallpaper pages cached by id, shared by the details screen, saving and Muzei.
+     */
+    public ImagePageCache getImagePageCache() {
+        return imagePageCache;
+    }
+
+    public ImagePage getPageDataSync(String imagePageUrl) {
+        String wallpaperId = getCacheableWallpaperId(imagePageUrl);
+        if (wallpaperId == null) {
+            return getImagesSource().getImagePageSync(imagePageUrl);
+        }
+        ImagePage imagePage = imagePageCache.get(wallpaperId);
+        if (imagePage == null) {
+            imagePage = apiSource.getImagePageSync(imagePageUrl);
+            imagePageCache.put(wallpaperId, imagePage);
+        }
+        return imagePage;
+    }
+
+    /**
+     * @return a handle to cancel the request, after which the listener won't be called.
+     */
+    public RequestHandle getPageData(String imagePageUrl, final OnPageReceivedListener onPageReceivedListener) {
+        return getPageData(imagePageUrl, RateLimiter.Priority.VISIBLE, new PageResultListener(onPageReceivedListener));
+    }
+
+    /**
+     * Like {@link #getPageData(String, OnPageReceivedListener)}, as a future. See
+     * {@link #getImagesAsync(String, int, FilterGroupsStructure)} for how it completes.
+     */
+    public CompletableFuture<ImagePage> getPageDataAsync(String imagePageUrl) {
+        final CompletableFuture<ImagePage> future = new CompletableFuture<>();
+        RequestHandle requestHandle = getPageData(imagePageUrl, new OnPageReceivedListener() {
             @Override
-            public void onData(String data, String url) {
-                ArrayList<Image> images = parser.parseImages(data);
-                if (onImagesReceivedListener != null) {
-                    if (!images.isEmpty()) {
-                        onImagesReceivedListener.onImagesReceived(images);
-                    } else {
-                        DataProviderError noImagesError = new DataProviderError(DataProviderError.Type.LOCAL, 204, "No images");
-                        onImagesReceivedListener.onError(noImagesError);
-                    }
-                }
+            public void onPageReceived(ImagePage imagePage) {
+                future.complete(imagePage);
             }
 
             @Override
             public void onError(DataProviderError dataProviderError) {
-                if (onImagesReceivedListener != null) {
-                    onImagesReceivedListener.onError(dataProviderError);
-                }
+                future.completeExceptionally(new DataProviderException(dataProviderError));
             }
         });
+        return withTimeout(future, requestHandle);
     }
 
-    public ImagePage getPageDataSync(String imagePageUrl) {
-        String apiKey = sharedPreferencesDataProvider.getWallhavenApiKey();
-        boolean wantsNsfw = sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).length() >= 3 && sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).charAt(2) == '1';
-        
-        if (wantsNsfw && apiKey != null && apiKey.length() > 0) {
-            // Extract wallpaper ID from URL (e.g., "https://wallhaven.cc/w/123456" -> "123456")
-            String wallpaperId = extractWallpaperId(imagePageUrl);
-            if (wallpaperId != null) {
-                String data = new NetworkDataProvider().getDataSync("https://wallhaven.cc/api/v1/w/" + wallpaperId, apiKey);
-                if (data != null) {
-                    return parser.parseImagePageFromApi(data, imagePageUrl);
+    /**
+     * The executor to run work chained onto the futures of this class on.
+     */
+    public Executor getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Adds the default timeout to the future and cancels the request if the future is
+     * cancelled or times out first.
+     */
+    private static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, final RequestHandle requestHandle) {
+        Futures.withTimeout(future, DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable throwable) {
+                // Does nothing if the request is what completed the future.
+                requestHandle.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Answers from the page cache if it can. Pages in memory are passed to the listener right away,
+     * the disk is read on the executor so the main thread never waits for it.
+     */
+    private RequestHandle getPageData(final String imagePageUrl, final RateLimiter.Priority priority, OnResultReceivedListener<ImagePage> listener) {
+        final String wallpaperId = getCacheableWallpaperId(imagePageUrl);
+        if (wallpaperId == null) {
+            return getImagesSource().getImagePage(imagePageUrl, priority, listener);
+        }
+        ImagePage imagePage = imagePageCache.getFromMemory(wallpaperId);
+        if (imagePage != null) {
+            listener.onResult(imagePage, imagePageUrl);
+            return RequestHandle.completed();
+        }
+        final CachedPageRequest request = new CachedPageRequest(imagePageCache, wallpaperId, listener);
+        Runnable lookUp = new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled()) {
+                    return;
+                }
+                ImagePage imagePage = imagePageCache.getFromDisk(wallpaperId);
+                if (imagePage != null) {
+                    request.onResult(imagePage, imagePageUrl);
+                } else {
+                    request.setCurrent(apiSource.getImagePage(imagePageUrl, priority, request));
                 }
             }
+        };
+        try {
+            EXECUTOR.execute(lookUp);
+        } catch (RejectedExecutionException e) {
+            lookUp.run();
         }
-        
-        // Fallback to regular HTML parsing
-        String data = new NetworkDataProvider().getDataSync(imagePageUrl);
-        return parser.parseImagePage(data, imagePageUrl);
+        return request;
     }
 
-    public void getPageData(String imagePageUrl, final OnPageReceivedListener onPageReceivedListener) {
-        String apiKey = sharedPreferencesDataProvider.getWallhavenApiKey();
-        boolean wantsNsfw = sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).length() >= 3 && sharedPreferencesDataProvider.getPurity(FilterPurityKeys.PARAMETER_KEY).charAt(2) == '1';
-        
-        if (wantsNsfw && apiKey != null && apiKey.length() > 0) {
-            // Extract wallpaper ID from URL (e.g., "https://wallhaven.cc/w/123456" -> "123456")
-            String wallpaperId = extractWallpaperId(imagePageUrl);
-            if (wallpaperId != null) {
-                new NetworkDataProvider().getData("https://wallhaven.cc/api/v1/w/" + wallpaperId, apiKey, new OnDataReceivedListener() {
+    /**
+     * Pages are only cached for Wallhaven, since ids of other sources may mean something else.
+     *
+     * @return the id to cache the page under, or null if it shouldn't be cached.
+     */
+    private String getCacheableWallpaperId(String imagePageUrl) {
+        if (wallpaperSource != null) {
+            return null;
+        }
+        return WallhavenApiSource.extractWallpaperId(imagePageUrl);
+    }
+
+    /**
+     * Fetches the pages of several wallpapers with at most maxConcurrency requests running at once.
+     * Every request still goes through the rate limiter with the given priority. Each page is passed
+     * to the listener as soon as it's done, on a background thread.
+     *
+     * @param imagePagesOrIds page urls like https://wallhaven.cc/w/123456, or just the ids.
+     * @return the running batch, which can be cancelled.
+     */
+    public BatchFetcher<ImagePage> getPageDataBatch(List<String> imagePagesOrIds, int maxConcurrency, final RateLimiter.Priority priority,
+                                                    final BatchFetcher.OnBatchListener<ImagePage> onBatchListener) {
+        List<String> imagePageUrls = new ArrayList<>(imagePagesOrIds.size());
+        for (String imagePageOrId : imagePagesOrIds) {
+            imagePageUrls.add(imagePageOrId.contains("/") ? imagePageOrId : WALLPAPER_PAGE_URL + imagePageOrId);
+        }
+        return BatchFetcher.start(imagePageUrls, maxConcurrency, new BatchFetcher.Fetcher<ImagePage>() {
+            @Override
+            public void fetch(String imagePageUrl, final BatchFetcher.Callback<ImagePage> callback) {
+                getPageData(imagePageUrl, priority, new OnResultReceivedListener<ImagePage>() {
                     @Override
-                    public void onData(String data, String url) {
-                        ImagePage imagePage = parser.parseImagePageFromApi(data, imagePageUrl);
-                        if (onPageReceivedListener != null) {
-                            onPageReceivedListener.onPageReceived(imagePage);
+                    public void onResult(ImagePage imagePage, String url) {
+                        if (imagePage != null) {
+                            callback.onResult(imagePage);
+                        } else {
+                            callback.onError(new DataProviderError(DataProviderError.Type.LOCAL, 204, "No page data"));
                         }
                     }
 
                     @Override
                     public void onError(DataProviderError error) {
-                        if (onPageReceivedListener != null) {
-                            onPageReceivedListener.onError(error);
-                        }
+                        callback.onError(error);
                     }
                 });
-                return;
-            }
-        }
-        
-        // Fallback to regular HTML parsing
-        new NetworkDataProvider().getData(imagePageUrl, new OnDataReceivedListener() {
-            @Override
-            public void onData(String data, String url) {
-                ImagePage imagePage = parser.parseImagePage(data, url);
-
-                if (onPageReceivedListener != null) {
-                    onPageReceivedListener.onPageReceived(imagePage);
-                }
             }
+        }, onBatchListener);
+    }
 
-            @Override
-            public void onError(DataProviderError error) {
-                if (onPageReceivedListener != null) {
-                    onPageReceivedListener.onError(error);
-                }
-            }
-        });
+    public BatchFetcher<ImagePage> getPageDataBatch(List<String> imagePagesOrIds, BatchFetcher.OnBatchListener<ImagePage> onBatchListener) {
+        return getPageDataBatch(imagePagesOrIds, DEFAULT_BATCH_CONCURRENCY, RateLimiter.Priority.VISIBLE, onBatchListener);
     }
 
     public void setTimeSpan(String tag, Filter<String, String> timespan) {
         sharedPreferencesDataProvider.setTimespan(tag, timespan);
+        pagePrefetcher.invalidate();
     }
 
     public Filter<String, String> getTimespan(String tag) {
@@ -293,6 +589,7 @@ public class DataProvider {
 
     public void setBoards(String tag, String paramValue) {
         sharedPreferencesDataProvider.setBoards(tag, paramValue);
+        pagePrefetcher.invalidate();
     }
 
     public String getBoards(String tag) {
@@ -301,6 +598,7 @@ public class DataProvider {
 
     public void setPurity(String tag, String paramValue) {
         sharedPreferencesDataProvider.setPurity(tag, paramValue);
+        pagePrefetcher.invalidate();
     }
 
     public String getPurity(String tag) {
@@ -309,6 +607,7 @@ public class DataProvider {
 
     public void setAspectRatio(String tag, Filter<String, String> aspectRatio) {
         sharedPreferencesDataProvider.setAspectRatio(tag, aspectRatio);
+        pagePrefetcher.invalidate();
     }
 
     public Filter<String, String> getAspectRatio(String tag) {
@@ -317,6 +616,7 @@ public class DataProvider {
 
     public void setResolutionOption(String tag, String paramValue) {
         sharedPreferencesDataProvider.setResolutionOption(tag, paramValue);
+        pagePrefetcher.invalidate();
     }
 
     public String getResolutionOption(String tag) {
@@ -325,35 +625,13 @@ public class DataProvider {
 
     public void setResolution(String tag, Filter<String, String> resolution) {
         sharedPreferencesDataProvider.setResolution(tag, resolution);
+        pagePrefetcher.invalidate();
     }
 
     public Filter<String, String> getResolution(String tag) {
         return sharedPreferencesDataProvider.getResolution(tag);
     }
 
-    private String extractWallpaperId(String imagePageUrl) {
-        try {
-            // Extract wallpaper ID from URL (e.g., "https://wallhaven.cc/w/123456" -> "123456")
-            if (imagePageUrl != null && imagePageUrl.contains("/w/")) {
-                String[] parts = imagePageUrl.split("/w/");
-                if (parts.length > 1) {
-                    String idPart = parts[1];
-                    // Remove any query parameters or fragments
-                    if (idPart.contains("?")) {
-                        idPart = idPart.split("\\?")[0];
-                    }
-                    if (idPart.contains("#")) {
-                        idPart = idPart.split("#")[0];
-                    }
-                    return idPart;
-                }
-            }
-        } catch (Exception e) {
-            // If extraction fails, return null to fallback to HTML parsing
-        }
-        return null;
-    }
-
     /**
      * Checks if NSFW is enabled and validates that an API key is available
      * @return true if NSFW is enabled and API key is valid, false otherwise
@@ -378,6 +656,15 @@ public class DataProvider {
         return sharedPreferencesDataProvider.getWallhavenApiKey();
     }
 
+    /**
+     * Stores the API key. Pages prefetched with the previous key are discarded.
+     * @param apiKey the Wallhaven API key
+     */
+    public void setApiKey(String apiKey) {
+        sharedPreferencesDataProvider.setWallhavenApiKey(apiKey);
+        pagePrefetcher.invalidate();
+    }
+
     /**
      * Checks if NSFW is enabled but API key is missing
      * @return true if NSFW is enabled but no API key is set
@@ -445,7 +732,23 @@ public class DataProvider {
         return null; // No issues
     }
 
+    /**
+     * Returns the saved file if there is one, otherwise starts downloading it and returns the
+     * download id. The download is kept in the app's cache until it's complete and then saved
+     * to Pictures/Wally, after which {@link #ACTION_DOWNLOAD_COMPLETE} is broadcast.
+     *
+     * @param notificationTitle describes the download in its notification, see {@link OnDownloadStatusListener}.
+     */
     public SaveImageRequest downloadImageIfNeeded(Uri path, String filename, String notificationTitle) {
+        return downloadImageIfNeeded(path, filename, notificationTitle, RateLimiter.Priority.BACKGROUND);
+    }
+
+    /**
+     * Like {@link #downloadImageIfNeeded(Uri, String, String)}, where priority decides which
+     * queued download starts first. Use {@link RateLimiter.Priority#VISIBLE} when the user waits
+     * for the file, like when setting it as wallpaper.
+     */
+    public SaveImageRequest downloadImageIfNeeded(Uri path, String filename, String notificationTitle, RateLimiter.Priority priority) {
         FileManager fileManager = new FileManager();
 
         if (fileManager.fileExists(filename)) {
@@ -461,37 +764,53 @@ public class DataProvider {
             type = path.toString().substring(path.toString().lastIndexOf("."));
         }
 
-        try {
-            DownloadManager.Request request = new DownloadManager.Request(path);
-            request.setTitle(notificationTitle);
-            request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-            
-            // Use MediaStore for Android Q and above, fallback to legacy method for older versions
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.Q) {
-                request.setDestinationInExternalPublicDir(Environment.DIRECTORY_PICTURES, "Wally/" + filename + type);
-            } else {
-                // Create the Wally directory if it doesn't exist (legacy approach)
-                File wallsDir = new File(Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_PICTURES), "Wally");
-                if (!wallsDir.exists()) {
-                    wallsDir.mkdirs();
-                }
-                request.setDestinationInExternalPublicDir(Environment.DIRECTORY_PICTURES, "Wally/" + filename + type);
-            }
-            long downloadId = downloadManager.enqueue(request);
-            
-            // Double check if the download was actually queued
-            DownloadManager.Query query = new DownloadManager.Query();
-            query.setFilterById(downloadId);
-            if (downloadManager.query(query).getCount() > 0) {
-                return new SaveImageRequest(downloadId);
-            } else {
-                return new SaveImageRequest((Long)null);
+        File downloadDir = new File(context.getCacheDir(), DOWNLOAD_DIRECTORY);
+        if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+            return new SaveImageRequest((Long) null);
+        }
+
+        long downloadId = downloadEngine.enqueue(path.toString(), new File(downloadDir, filename + type),
+                notificationTitle, priority, downloadListener);
+        return new SaveImageRequest(downloadId);
+    }
+
+    /**
+     * The filename, without extension, of every download that hasn't finished by id. Downloads
+     * from before the process was restarted are only included once they're restored, see
+     * {@link #getPendingDownloadsAsync()}.
+     */
+    public HashMap<Long, String> getPendingDownloads() {
+        HashMap<Long, String> pendingDownloads = new HashMap<>();
+        for (Map.Entry<Long, File> entry : downloadEngine.getDestinations().entrySet()) {
+            String name = entry.getValue().getName();
+            int extension = name.lastIndexOf('.');
+            pendingDownloads.put(entry.getKey(), extension != -1 ? name.substring(0, extension) : name);
+        }
+        return pendingDownloads;
+    }
+
+    /**
+     * Like {@link #getPendingDownloads()}, once the downloads from before the process was
+     * restarted have been restored.
+     */
+    public CompletableFuture<HashMap<Long, String>> getPendingDownloadsAsync() {
+        return restoredDownloads.handle(new BiFunction<List<Long>, Throwable, HashMap<Long, String>>() {
+            @Override
+            public HashMap<Long, String> apply(List<Long> ids, Throwable throwable) {
+                return getPendingDownloads();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new SaveImageRequest((Long)null);
+        });
+    }
+
+    private void sendDownloadComplete(long downloadId, Uri uri) {
+        Intent intent = new Intent(ACTION_DOWNLOAD_COMPLETE);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
+        intent.putExtra(EXTRA_DOWNLOAD_SUCCESSFUL, uri != null);
+        if (uri != null) {
+            intent.putExtra(EXTRA_DOWNLOAD_URI, uri);
         }
+        context.sendBroadcast(intent);
     }
 
     public Uri getFilePath(String filename) {
@@ -502,4 +821,123 @@ public class DataProvider {
         }
         return null;
     }
+
+    /**
+     * Parsed lists are shared between coalesced callers and the parsed response cache,
+     * so every caller gets its own list to modify.
+     */
+    private static ArrayList<Image> copyOf(ArrayList<Image> images) {
+        return images != null ? new ArrayList<>(images) : null;
+    }
+
+    private static class ImagesResultListener implements OnResultReceivedListener<ArrayList<Image>> {
+
+        private final OnImagesReceivedListener onImagesReceivedListener;
+        private final boolean reportEmptyResult;
+        private final Runnable onImagesDelivered;
+
+        ImagesResultListener(OnImagesReceivedListener onImagesReceivedListener, boolean reportEmptyResult, Runnable onImagesDelivered) {
+            this.onImagesReceivedListener = onImagesReceivedListener;
+            this.reportEmptyResult = reportEmptyResult;
+            this.onImagesDelivered = onImagesDelivered;
+        }
+
+        @Override
+        public void onResult(ArrayList<Image> images, String url) {
+            if (onImagesReceivedListener != null) {
+                if (reportEmptyResult && (images == null || images.isEmpty())) {
+                    DataProviderError noImagesError = new DataProviderError(DataProviderError.Type.LOCAL, 204, "No images");
+                    onImagesReceivedListener.onError(noImagesError);
+                } else {
+                    onImagesReceivedListener.onImagesReceived(copyOf(images));
+                    if (onImagesDelivered != null && images != null && !images.isEmpty()) {
+                        onImagesDelivered.run();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onError(DataProviderError dataProviderError) {
+            if (onImagesReceivedListener != null) {
+                onImagesReceivedListener.onError(dataProviderError);
+            }
+        }
+    }
+
+    /**
+     * A page request that missed the cache. Whatever the source answers with is put in the cache.
+     */
+    private static class CachedPageRequest extends RequestHandle implements OnResultReceivedListener<ImagePage> {
+
+        private final ImagePageCache imagePageCache;
+        private final String wallpaperId;
+        private final OnResultReceivedListener<ImagePage> listener;
+        private RequestHandle current;
+
+        CachedPageRequest(ImagePageCache imagePageCache, String wallpaperId, OnResultReceivedListener<ImagePage> listener) {
+            this.imagePageCache = imagePageCache;
+            this.wallpaperId = wallpaperId;
+            this.listener = listener;
+        }
+
+        private void setCurrent(RequestHandle requestHandle) {
+            synchronized (this) {
+                if (!isCancelled()) {
+                    current = requestHandle;
+                    return;
+                }
+            }
+            requestHandle.cancel();
+        }
+
+        @Override
+        public void onResult(ImagePage imagePage, String url) {
+            imagePageCache.put(wallpaperId, imagePage);
+            if (finish()) {
+                listener.onResult(imagePage, url);
+            }
+        }
+
+        @Override
+        public void onError(DataProviderError error) {
+            if (finish()) {
+                listener.onError(error);
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            RequestHandle requestHandle;
+            synchronized (this) {
+                requestHandle = current;
+            }
+            if (requestHandle != null) {
+                requestHandle.cancel();
+            }
+        }
+    }
+
+    private static class PageResultListener implements OnResultReceivedListener<ImagePage> {
+
+        private final OnPageReceivedListener onPageReceivedListener;
+
+        PageResultListener(OnPageReceivedListener onPageReceivedListener) {
+            this.onPageReceivedListener = onPageReceivedListener;
+        }
+
+        @Override
+        public void onResult(ImagePage imagePage, String url) {
+            if (onPageReceivedListener != null) {
+                onPageReceivedListener.onPageReceived(imagePage);
+            }
+        }
+
+        @Override
+        public void onError(DataProviderError dataProviderError) {
+            if (onPageReceivedListener != null) {
+                onPageReceivedListener.onError(dataProviderError);
+            }
+        }
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.webkit.MimeTypeMap;
+import androidx.core.content.FileProvider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Moves finished downloads from the app's own storage to Pictures/Wally, where the gallery and
+ * {@link FileManager} find them.
+ * <p>
+ * From Android 10 the app can't create files in Pictures itself, so the image is inserted into
+ * MediaStore. The entry stays hidden (IS_PENDING) until every byte is written. Older versions
+ * copy the file and have the media scanner add it.
+ */
+public class GalleryPublisher {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String DEFAULT_MIME_TYPE = "image/jpeg";
+
+    private final Context context;
+
+    public GalleryPublisher(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Copies the file to Pictures/Wally under its own name and deletes it. Blocks while copying.
+     *
+     * @return the published image, which other apps can be given to view it.
+     */
+    public Uri publish(File file) throws IOException {
+        String mimeType = getMimeType(file.getName());
+        Uri uri;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            uri = insertIntoMediaStore(file, mimeType);
+        } else {
+            uri = copyToPictures(file, mimeType);
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        return uri;
+    }
+
+    private Uri insertIntoMediaStore(File file, String mimeType) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, file.getName());
+        values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, Environment.DIRECTORY_PICTURES + FileManager.DIRECTORY_BASE);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        Uri uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) {
+            throw new IOException("MediaStore didn't accept " + file.getName());
+        }
+        boolean published = false;
+        try {
+            OutputStream out = resolver.openOutputStream(uri);
+            if (out == null) {
+                throw new IOException("Couldn't open " + uri);
+            }
+            copy(file, out);
+            values.clear();
+            values.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            resolver.update(uri, values, null, null);
+            published = true;
+        } finally {
+            if (!published) {
+                resolver.delete(uri, null, null);
+            }
+        }
+        return uri;
+    }
+
+    private Uri copyToPictures(File file, String mimeType) throws IOException {
+        File directory = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), FileManager.DIRECTORY_BASE);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        File target = new File(directory, file.getName());
+        boolean copied = false;
+        try {
+            copy(file, new FileOutputStream(target));
+            copied = true;
+        } finally {
+            if (!copied) {
+                target.delete();
+            }
+        }
+        MediaScannerConnection.scanFile(context, new String[]{target.getPath()}, new String[]{mimeType}, null);
+        return FileProvider.getUriForFile(context, context.getPackageName() + ".provider", target);
+    }
+
+    /**
+     * Copies the file to the stream and closes it.
+     */
+    private static void copy(File file, OutputStream out) throws IOException {
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            if (out instanceof FileOutputStream) {
+                ((FileOutputStream) out).getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String getMimeType(String filename) {
+        int dot = filename.lastIndexOf('.');
+        if (dot == -1) {
+            return DEFAULT_MIME_TYPE;
+        }
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(filename.substring(dot + 1).toLowerCase());
+        return mimeType != null && mimeType.startsWith("image/") ? mimeType : DEFAULT_MIME_TYPE;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider;
+
+import android.net.Uri;
+
+import com.musenkishi.wally.models.Author;
+import com.musenkishi.wally.models.ImagePage;
+import com.musenkishi.wally.models.Tag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps parsed wallpaper pages, keyed by wallpaper id, so opening the details, saving from a grid
+ * and Muzei don't fetch and parse the same page again. The most recent pages are kept in memory,
+ * and every page is also written to a small file of its own in the directory given, so they
+ * survive restarts. Pages older than the time to live are fetched again.
+ * <p>
+ * Reading and writing files happens on the calling thread. Failing to do so only costs a miss.
+ */
+public class ImagePageCache {
+
+    public static final int DEFAULT_MAX_MEMORY_ENTRIES = 64;
+    public static final int DEFAULT_MAX_DISK_ENTRIES = 500;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final int FORMAT_VERSION = 1;
+    private static final Pattern WALLPAPER_ID = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final File directory;
+    private final int maxDiskEntries;
+    private final long ttlMillis;
+    private final Object diskLock = new Object();
+
+    private final LinkedHashMap<String, Entry> memory;
+
+    /**
+     * Files in the directory, or -1 until they have been counted.
+     */
+    private int diskEntryCount = -1;
+
+    private long memoryHitCount;
+    private long diskHitCount;
+    private long missCount;
+    private long expiredCount;
+
+    public ImagePageCache(File directory) {
+        this(directory, DEFAULT_MAX_MEMORY_ENTRIES, DEFAULT_MAX_DISK_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param directory where pages are written, or null to only keep them in memory.
+     */
+    public ImagePageCache(File directory, final int maxMemoryEntries, int maxDiskEntries, long ttlMillis) {
+        this.directory = directory;
+        this.maxDiskEntries = maxDiskEntries;
+        this.ttlMillis = ttlMillis;
+        memory = new LinkedHashMap<String, Entry>(maxMemoryEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+    }
+
+    /**
+     * Looks for the page in memory, then on disk.
+     *
+     * @return the page, or null if it isn't cached or has expired.
+     */
+    public ImagePage get(String wallpaperId) {
+        ImagePage imagePage = getFromMemory(wallpaperId);
+        if (imagePage != null) {
+            return imagePage;
+        }
+        return getFromDisk(wallpaperId);
+    }
+
+    /**
+     * Only looks in memory, so it is safe to call on the main thread. A miss here isn't counted,
+     * since the page should be looked for with {@link #getFromDisk(String)} next.
+     */
+    public synchronized ImagePage getFromMemory(String wallpaperId) {
+        Entry entry = memory.get(wallpaperId);
+        if (entry == null) {
+            return null;
+        }
+        if (isExpired(entry.savedAt)) {
+            memory.remove(wallpaperId);
+            return null;
+        }
+        memoryHitCount++;
+        return entry.imagePage;
+    }
+
+    /**
+     * Reads the page from its file and keeps it in memory if it is there and hasn't expired.
+     */
+    public ImagePage getFromDisk(String wallpaperId) {
+        File file = getFile(wallpaperId);
+        Entry entry = null;
+        boolean expired = false;
+        if (file != null) {
+            synchronized (diskLock) {
+                if (file.exists()) {
+                    entry = read(file);
+                    if (entry != null && isExpired(entry.savedAt)) {
+                        entry = null;
+                        expired = true;
+                    }
+                    if (entry == null) {
+                        deleteFile(file);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            if (entry == null) {
+                missCount++;
+                if (expired) {
+                    expiredCount++;
+                }
+                return null;
+            }
+            diskHitCount++;
+            memory.put(wallpaperId, entry);
+            return entry.imagePage;
+        }
+    }
+
+    /**
+     * Keeps the page in memory and writes it to disk.
+     */
+    public void put(String wallpaperId, ImagePage imagePage) {
+        if (wallpaperId == null || imagePage == null) {
+            return;
+        }
+        Entry entry = new Entry(imagePage, System.currentTimeMillis());
+        synchronized (this) {
+            memory.put(wallpaperId, entry);
+        }
+        File file = getFile(wallpaperId);
+        if (file == null) {
+            return;
+        }
+        synchronized (diskLock) {
+            boolean existed = file.exists();
+            if (write(file, entry) && !existed) {
+                onFileAdded();
+            }
+        }
+    }
+
+    /**
+     * Drops every page, in memory and on disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            memory.clear();
+        }
+        if (directory == null) {
+            return;
+        }
+        synchronized (diskLock) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    deleteFile(file);
+                }
+            }
+            diskEntryCount = 0;
+        }
+    }
+
+    private boolean isExpired(long savedAt) {
+        long age = System.currentTimeMillis() - savedAt;
+        return age < 0 || age > ttlMillis;
+    }
+
+    private File getFile(String wallpaperId) {
+        if (directory == null || wallpaperId == null || !WALLPAPER_ID.matcher(wallpaperId).matches()) {
+            return null;
+        }
+        return new File(directory, wallpaperId);
+    }
+
+    private void deleteFile(File file) {
+        if (file.delete() && diskEntryCount > 0) {
+            diskEntryCount--;
+        }
+    }
+
+    /**
+     * Deletes the oldest files once there are more than maxDiskEntries, down to three quarters
+     * of that, so the directory isn't listed on every write.
+     */
+    private void onFileAdded() {
+        if (diskEntryCount >= 0) {
+            diskEntryCount++;
+            if (diskEntryCount <= maxDiskEntries) {
+                return;
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        diskEntryCount = files.length;
+        if (files.length <= maxDiskEntries) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(lastModified[first], lastModified[second]);
+            }
+        });
+        int toDelete = files.length - maxDiskEntries * 3 / 4;
+        for (int i = 0; i < toDelete; i++) {
+            deleteFile(files[order[i]]);
+        }
+    }
+
+    private boolean write(File file, Entry entry) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return false;
+        }
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        ImagePage imagePage = entry.imagePage;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(entry.savedAt);
+                writeString(out, imagePage.title());
+                writeString(out, imagePage.imageId());
+                writeUri(out, imagePage.imagePath());
+                writeString(out, imagePage.resolution());
+                writeString(out, imagePage.category());
+                writeString(out, imagePage.rating());
+                writeString(out, imagePage.uploader());
+                writeString(out, imagePage.uploadDate());
+                Author author = imagePage.author();
+                out.writeBoolean(author != null);
+                if (author != null) {
+                    writeString(out, author.name());
+                    writeUri(out, author.page());
+                }
+                ArrayList<Tag> tags = imagePage.tags();
+                out.writeInt(tags != null ? tags.size() : -1);
+                if (tags != null) {
+                    for (Tag tag : tags) {
+                        writeString(out, tag.name());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (tempFile.renameTo(file)) {
+                return true;
+            }
+        } catch (IOException ignored) {
+        }
+        tempFile.delete();
+        return false;
+    }
+
+    /**
+     * @return the entry, or null if the file couldn't be read or was written in another format.
+     */
+    private static Entry read(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                long savedAt = in.readLong();
+                String title = readString(in);
+                String imageId = readString(in);
+                Uri imagePath = readUri(in);
+                String resolution = readString(in);
+                String category = readString(in);
+                String rating = readString(in);
+                String uploader = readString(in);
+                String uploadDate = readString(in);
+                Author author = null;
+                if (in.readBoolean()) {
+                    author = Author.create(readString(in), readUri(in));
+                }
+                ArrayList<Tag> tags = null;
+                int tagCount = in.readInt();
+                if (tagCount >= 0) {
+                    tags = new ArrayList<>(tagCount);
+                    for (int i = 0; i < tagCount; i++) {
+                        tags.add(Tag.create(readString(in)));
+                    }
+                }
+                ImagePage imagePage = ImagePage.create(title, imageId, imagePath, resolution, category, rating, uploader, uploadDate, author, tags);
+                return new Entry(imagePage, savedAt);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeUri(DataOutputStream out, Uri uri) throws IOException {
+        writeString(out, uri != null ? uri.toString() : null);
+    }
+
+    /**
+     * Empty uris come back as {@link Uri#EMPTY}, which the app compares against.
+     */
+    private static Uri readUri(DataInputStream in) throws IOException {
+        String value = readString(in);
+        if (value == null) {
+            return null;
+        }
+        return value.isEmpty() ? Uri.EMPTY : Uri.parse(value);
+    }
+
+    public synchronized long getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    public synchronized long getDiskHitCount() {
+        return diskHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Misses because the page was cached longer than the time to live.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Share of lookups that were answered from memory or disk.
+     */
+    public synchronized float getHitRate() {
+        long total = memoryHitCount + diskHitCount + missCount;
+        if (total == 0) {
+            return 0f;
+        }
+        return (float) (memoryHitCount + diskHitCount) / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "in memory: " + memory.size()
+                + ", memory hits: " + memoryHitCount
+                + ", disk hits: " + diskHitCount
+                + ", misses: " + missCount
+                + ", expired: " + expiredCount
+                + ", hit rate: " + getHitRate();
+    }
+
+    private static class Entry {
+
+        private final ImagePage imagePage;
+        private final long savedAt;
+
+        private Entry(ImagePage imagePage, long savedAt) {
+            this.imagePage = imagePage;
+            this.savedAt = savedAt;
+        }
+    }
+}
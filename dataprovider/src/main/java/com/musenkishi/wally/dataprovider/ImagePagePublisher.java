@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider;
+
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.models.DataProviderException;
+import com.musenkishi.wally.models.Image;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+
+/**
+ * An infinite feed of image pages. Each subscriber gets the pages in order, starting from
+ * the first page of the publisher, and only as many as it requests.
+ * <p>
+ * At most one page is fetched at a time, and only when the subscriber has asked for more than
+ * it has been given, plus a few pages of look-ahead. That makes fetching a page twice or out of
+ * order impossible. The feed completes at the first empty page and fails at the first error;
+ * to retry, subscribe to a new publisher that starts at the page that failed.
+ * <p>
+ * Pages are delivered on whichever thread completed the fetch, or the thread calling
+ * {@link Flow.Subscription#request(long)}.
+ */
+public class ImagePagePublisher implements Flow.Publisher<ArrayList<Image>> {
+
+    /**
+     * Fetches one page, reporting back exactly once unless the returned handle is cancelled.
+     * An empty list means there are no more pages.
+     */
+    public interface PageFetcher {
+        RequestHandle fetch(int page, DataProvider.OnImagesReceivedListener listener);
+    }
+
+    private final PageFetcher pageFetcher;
+    private final int firstPage;
+    private final int lookAhead;
+
+    /**
+     * @param lookAhead how many pages to fetch ahead of what the subscriber asked for.
+     */
+    public ImagePagePublisher(PageFetcher pageFetcher, int firstPage, int lookAhead) {
+        if (firstPage < 1) {
+            throw new IllegalArgumentException("firstPage must be at least 1");
+        }
+        this.pageFetcher = pageFetcher;
+        this.firstPage = firstPage;
+        this.lookAhead = Math.max(0, lookAhead);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ArrayList<Image>> subscriber) {
+        PageSubscription pageSubscription = new PageSubscription(subscriber);
+        subscriber.onSubscribe(pageSubscription);
+    }
+
+    /**
+     * One subscriber's position in the feed. It is also a {@link RequestHandle}, so it can be
+     * cancelled together with the owner's other requests through a {@link RequestGroup}.
+     */
+    private class PageSubscription extends RequestHandle implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ArrayList<Image>> subscriber;
+        private final ArrayDeque<ArrayList<Image>> buffer = new ArrayDeque<>();
+
+        private int nextPage = firstPage;
+        private long demand;
+        private RequestHandle inFlight;
+        private boolean endReached;
+        private Throwable failure;
+        private boolean terminated;
+        private boolean draining;
+
+        private PageSubscription(Flow.Subscriber<? super ArrayList<Image>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (terminated) {
+                    return;
+                }
+                if (n <= 0) {
+                    buffer.clear();
+                    failure = new IllegalArgumentException("Requested " + n + " pages, must be positive");
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        protected void onCancel() {
+            RequestHandle requestHandle;
+            synchronized (this) {
+                terminated = true;
+                buffer.clear();
+                requestHandle = inFlight;
+                inFlight = null;
+            }
+            if (requestHandle != null) {
+                requestHandle.cancel();
+            }
+        }
+
+        private void onPage(int page, ArrayList<Image> images) {
+            synchronized (this) {
+                inFlight = null;
+                if (images == null || images.isEmpty()) {
+                    endReached = true;
+                } else {
+                    buffer.add(images);
+                    nextPage = page + 1;
+                }
+            }
+            drain();
+        }
+
+        private void onPageFailed(DataProviderError error) {
+            synchronized (this) {
+                inFlight = null;
+                failure = new DataProviderException(error);
+            }
+            drain();
+        }
+
+        /**
+         * Delivers what can be delivered and starts the next fetch if needed. Only one thread
+         * drains at a time, so the subscriber is never called concurrently or reentrantly.
+         */
+        private void drain() {
+            synchronized (this) {
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            while (true) {
+                ArrayList<Image> images = null;
+                boolean complete = false;
+                Throwable error = null;
+                int pageToFetch = -1;
+                synchronized (this) {
+                    if (terminated) {
+                        draining = false;
+                        return;
+                    }
+                    if (demand > 0 && !buffer.isEmpty()) {
+                        demand--;
+                        images = buffer.poll();
+                    } else if (buffer.isEmpty() && failure != null) {
+                        error = failure;
+                        terminated = true;
+                    } else if (buffer.isEmpty() && endReached) {
+                        complete = true;
+                        terminated = true;
+                    } else {
+                        if (inFlight == null && !endReached && failure == null
+                                && buffer.size() - lookAhead < demand) {
+                            pageToFetch = nextPage;
+                            // Placeholder so that a result arriving during fetch() sees a page in flight.
+                            inFlight = RequestHandle.completed();
+                        } else {
+                            draining = false;
+                            return;
+                        }
+                    }
+                }
+
+                if (images != null) {
+                    subscriber.onNext(images);
+                } else if (error != null) {
+                    finish();
+                    subscriber.onError(error);
+                    clearDraining();
+                    return;
+                } else if (complete) {
+                    finish();
+                    subscriber.onComplete();
+                    clearDraining();
+                    return;
+                } else {
+                    fetch(pageToFetch);
+                }
+            }
+        }
+
+        private void fetch(final int page) {
+            RequestHandle requestHandle = pageFetcher.fetch(page, new DataProvider.OnImagesReceivedListener() {
+                @Override
+                public void onImagesReceived(ArrayList<Image> images) {
+                    onPage(page, images);
+                }
+
+                @Override
+                public void onError(DataProviderError dataProviderError) {
+                    onPageFailed(dataProviderError);
+                }
+            });
+            boolean cancelled;
+            synchronized (this) {
+                cancelled = terminated;
+                // Still the placeholder, unless the result already came in.
+                if (!cancelled && inFlight != null) {
+                    inFlight = requestHandle;
+                }
+            }
+            if (cancelled) {
+                requestHandle.cancel();
+            }
+        }
+
+        private synchronized void clearDraining() {
+            draining = false;
+        }
+    }
+}
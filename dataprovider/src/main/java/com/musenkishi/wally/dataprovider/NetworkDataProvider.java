@@ -16,267 +16,555 @@
 
 package com.musenkishi.wally.dataprovider;
 
-import android.net.Uri;
+import android.util.LruCache;
 
 import com.musenkishi.wally.dataprovider.models.DataProviderError;
-import com.musenkishi.wally.models.filters.FilterAspectRatioKeys;
-import com.musenkishi.wally.models.filters.FilterBoardsKeys;
+import com.musenkishi.wally.dataprovider.okhttp.Endpoint;
+import com.musenkishi.wally.dataprovider.okhttp.NetworkMetrics;
+import com.musenkishi.wally.dataprovider.okhttp.OkHttpClientProvider;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.dataprovider.util.RequestCoalescer;
+import com.musenkishi.wally.dataprovider.util.RetryPolicy;
+import com.musenkishi.wally.dataprovider.util.WallhavenUrlBuilder;
 import com.musenkishi.wally.models.filters.FilterGroupsStructure;
-import com.musenkishi.wally.models.filters.FilterPurityKeys;
-import com.musenkishi.wally.models.filters.FilterResolutionKeys;
+import okhttp3.CacheControl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.net.HttpURLConnection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Musenkishi on 2014-03-01 15:31.
- * No threading shall take place in this class.
+ * Requests run on OkHttp's dispatcher and their results are delivered on its threads. Retries
+ * wait out their backoff on a single scheduler thread that all providers share. Only the
+ * getDataSync methods block the calling thread.
  */
 public class NetworkDataProvider {
 
-    public static final String WALLHAVEN_BASE_URL = "https://wallhaven.cc/";
-    public static final String PATH_TOPLIST = "toplist";
-    public static final String PATH_RANDOM = "random";
-    public static final String PATH_SEARCH = "search";
-    public static final String PATH_LATEST = "latest";
+    public static final String WALLHAVEN_BASE_URL = WallhavenUrlBuilder.WALLHAVEN_BASE_URL;
+    public static final String PATH_TOPLIST = WallhavenUrlBuilder.PATH_TOPLIST;
+    public static final String PATH_RANDOM = WallhavenUrlBuilder.PATH_RANDOM;
+    public static final String PATH_SEARCH = WallhavenUrlBuilder.PATH_SEARCH;
+    public static final String PATH_LATEST = WallhavenUrlBuilder.PATH_LATEST;
     public static final int THUMBS_PER_PAGE = 24;
 
+    private static final int PARSED_RESPONSE_CACHE_SIZE = 32;
+
+    /**
+     * How much longer than the retry deadline a synchronous caller waits, to cover the time in
+     * the rate limiter's queue and the connect and read timeouts of the last attempt.
+     */
+    private static final long SYNC_TIMEOUT_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Asks for a fresh cached response only. The cache answers 504 if it doesn't have one.
+     */
+    private static final CacheControl ONLY_IF_CACHED = new CacheControl.Builder().onlyIfCached().build();
+
+    /**
+     * Waits out the backoff between attempts. Retries are rare, so all providers share one thread.
+     */
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NetworkDataProvider retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final OkHttpClient client;
+    private final RateLimiter rateLimiter;
+    private final NetworkMetrics networkMetrics;
+
+    /**
+     * Parsed results of recent responses, keyed by parser and url. Used when a response
+     * comes from the disk cache (or was revalidated with a 304) so the body doesn't have
+     * to be parsed again.
+     */
+    private final LruCache<String, Object> parsedResponses = new LruCache<>(PARSED_RESPONSE_CACHE_SIZE);
+
+    private final RequestCoalescer requestCoalescer = new RequestCoalescer();
+
+    private final WallhavenUrlBuilder urlBuilder = new WallhavenUrlBuilder();
+
+    /**
+     * Requests that are queued, on the network or waiting for a retry, by coalescing key.
+     */
+    private final ConcurrentHashMap<String, Exchange<?>> exchanges = new ConcurrentHashMap<>();
+
+    private final EnumMap<RateLimiter.Priority, RetryPolicy> retryPolicies = new EnumMap<>(RateLimiter.Priority.class);
+    private final AtomicLong retryCount = new AtomicLong();
+
     public NetworkDataProvider() {
+        this(OkHttpClientProvider.getInstance().getClient(),
+                OkHttpClientProvider.getInstance().getRateLimiter(),
+                OkHttpClientProvider.getInstance().getNetworkMetrics());
     }
 
-    private Uri buildWallhavenUrl(int page, String path, FilterGroupsStructure filterGroupsStructure) {
-        Uri.Builder builder = new Uri.Builder();
-        builder.scheme("https").authority("wallhaven.cc");
-
-        if (PATH_TOPLIST.equalsIgnoreCase(path)) {
-            // For toplist, use the direct path with just page number and filters
-            builder.appendEncodedPath(path)
-                  .appendQueryParameter(FilterBoardsKeys.PARAMETER_KEY, filterGroupsStructure.getBoardsFilter())
-                  .appendQueryParameter(FilterPurityKeys.PARAMETER_KEY, filterGroupsStructure.getPurityFilter())
-                  .appendQueryParameter(FilterResolutionKeys.PARAMETER_KEY, filterGroupsStructure.getResolutionFilter().getValue())
-                  .appendQueryParameter(FilterAspectRatioKeys.PARAMETER_KEY, filterGroupsStructure.getAspectRatioFilter().getValue())
-                  .appendQueryParameter("page", page+"");
-        } else {
-            // For other paths (search, random, latest), use the search endpoint
-            String sorting = "views";
-            if (PATH_SEARCH.equalsIgnoreCase(path)) {
-                sorting = "relevance";
-            } else if (PATH_RANDOM.equalsIgnoreCase(path)) {
-                sorting = "random";
-            } else if (PATH_LATEST.equalsIgnoreCase(path)) {
-                sorting = "date_added";
-            }
+    public NetworkDataProvider(OkHttpClient client) {
+        this(client, new RateLimiter());
+    }
 
-            builder.appendEncodedPath("search")
-                  .appendQueryParameter(FilterBoardsKeys.PARAMETER_KEY, filterGroupsStructure.getBoardsFilter())
-                  .appendQueryParameter(FilterResolutionKeys.PARAMETER_KEY, filterGroupsStructure.getResolutionFilter().getValue())
-                  .appendQueryParameter(FilterPurityKeys.PARAMETER_KEY, filterGroupsStructure.getPurityFilter())
-                  .appendQueryParameter(FilterAspectRatioKeys.PARAMETER_KEY, filterGroupsStructure.getAspectRatioFilter().getValue())
-                  .appendQueryParameter("sorting", sorting)
-                  .appendQueryParameter("order", "desc")
-                  .appendQueryParameter("page", page+"");
-        }
+    public NetworkDataProvider(OkHttpClient client, RateLimiter rateLimiter) {
+        this(client, rateLimiter, new NetworkMetrics());
+    }
 
-        return builder.build();
+    public NetworkDataProvider(OkHttpClient client, RateLimiter rateLimiter, NetworkMetrics networkMetrics) {
+        this.client = client;
+        this.rateLimiter = rateLimiter;
+        this.networkMetrics = networkMetrics;
+        // The user is looking at a loader, so give up early and let them decide.
+        retryPolicies.put(RateLimiter.Priority.VISIBLE, new RetryPolicy(3, 500, 4000, 15000));
+        retryPolicies.put(RateLimiter.Priority.PREFETCH, new RetryPolicy(2, 1000, 4000, 20000));
+        retryPolicies.put(RateLimiter.Priority.BACKGROUND, new RetryPolicy(5, 2000, 30000, 120000));
     }
 
-    public Uri buildWallhavenApiUrl(int page, String path, FilterGroupsStructure filterGroupsStructure, String query, String color) {
-        String sorting = "views";
-        if (PATH_SEARCH.equalsIgnoreCase(path)) {
-            sorting = "relevance";
-        } else if (PATH_RANDOM.equalsIgnoreCase(path)) {
-            sorting = "random";
-        } else if (PATH_LATEST.equalsIgnoreCase(path)) {
-            sorting = "date_added";
-        } else if (PATH_TOPLIST.equalsIgnoreCase(path)) {
-            sorting = "toplist";
-        }
+    public String buildWallhavenUrl(int page, String path, FilterGroupsStructure filterGroupsStructure, String query, String color) {
+        return urlBuilder.listingUrl(page, path, filterGroupsStructure, query, color);
+    }
+
+    public String buildWallhavenApiWallpaperUrl(String wallpaperId) {
+        return WallhavenUrlBuilder.apiWallpaperUrl(wallpaperId);
+    }
+
+    public String buildWallhavenApiUrl(int page, String path, FilterGroupsStructure filterGroupsStructure, String query, String color) {
+        return urlBuilder.apiSearchUrl(page, path, filterGroupsStructure, query, color);
+    }
+
+    /**
+     * Fetches the url and hands the response body to the given parser.
+     * The parsed result is delivered on an OkHttp thread. Concurrent requests for the
+     * same url, api key and parser share one call and one parsed result.
+     *
+     * @return a handle to stop the listener from being called. The call itself is cancelled
+     * once nobody else is waiting for it.
+     */
+    public <T> RequestHandle getData(String url, String apiKey, ResponseParser<T> responseParser, OnResultReceivedListener<T> onResultReceivedListener) {
+        return getData(url, apiKey, responseParser, RateLimiter.Priority.VISIBLE, onResultReceivedListener);
+    }
 
-        Uri.Builder builder = new Uri.Builder();
-        builder.scheme("https").authority("wallhaven.cc")
-                .appendEncodedPath("api/v1/search")
-                .appendQueryParameter(FilterBoardsKeys.PARAMETER_KEY, filterGroupsStructure.getBoardsFilter())
-                .appendQueryParameter(FilterPurityKeys.PARAMETER_KEY, filterGroupsStructure.getPurityFilter())
-                .appendQueryParameter(FilterResolutionKeys.PARAMETER_KEY, filterGroupsStructure.getResolutionFilter().getValue())
-                .appendQueryParameter(FilterAspectRatioKeys.PARAMETER_KEY, filterGroupsStructure.getAspectRatioFilter().getValue())
-                .appendQueryParameter("sorting", sorting)
-                .appendQueryParameter("order", "desc")
-                .appendQueryParameter("page", page+"");
-
-        if (query != null) {
-            builder.appendQueryParameter("q", query);
+    /**
+     * Like {@link #getData(String, String, ResponseParser, OnResultReceivedListener)}, but the request
+     * waits for the rate limiter with the given priority.
+     */
+    public <T> RequestHandle getData(String url, String apiKey, ResponseParser<T> responseParser, RateLimiter.Priority priority, OnResultReceivedListener<T> onResultReceivedListener) {
+        String key = RequestCoalescer.createKey(url, apiKey, responseParser);
+        Registration<T> registration = new Registration<>(key, onResultReceivedListener);
+        if (!requestCoalescer.register(key, registration)) {
+            rateLimiter.promote(key, priority);
+            return registration;
         }
-        if (color != null) {
-            builder.appendQueryParameter("color", color);
+
+        Request request;
+        try {
+            request = buildRequest(url, apiKey);
+        } catch (IllegalArgumentException e) {
+            requestCoalescer.fail(key, new DataProviderError(DataProviderError.Type.NETWORK, 400, "Invalid URL format"));
+            return registration;
         }
+        Exchange<T> exchange = new Exchange<>(key, request, url, responseParser, priority);
+        exchanges.put(key, exchange);
+        exchange.start();
+        return registration;
+    }
 
-        return builder.build();
+    /**
+     * Fetches the url as a background request and returns the parsed body, or null if the request failed.
+     * Blocks the calling thread. If the same request is already running, waits for that one instead.
+     * Gives up once the retry deadline of the priority, plus a margin, has passed.
+     */
+    public <T> T getDataSync(String url, String apiKey, ResponseParser<T> responseParser) {
+        return getDataSync(url, apiKey, responseParser, RateLimiter.Priority.BACKGROUND);
     }
 
-    public String getDataSync(String path, int index, FilterGroupsStructure filterGroupsStructure){
-        Uri uri = buildWallhavenUrl(index, path, filterGroupsStructure);
-        String url = uri.toString();
-        return getDataSync(url, null);
+    public <T> T getDataSync(String url, String apiKey, ResponseParser<T> responseParser, RateLimiter.Priority priority) {
+        RequestCoalescer.BlockingListener<T> blockingListener = new RequestCoalescer.BlockingListener<>();
+        RequestHandle requestHandle = getData(url, apiKey, responseParser, priority, blockingListener);
+        long timeoutMillis = getRetryPolicy(priority).getDeadlineMillis() + SYNC_TIMEOUT_MARGIN_MILLIS;
+        T result = blockingListener.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        // Does nothing if the request completed, otherwise stops waiting for it.
+        requestHandle.cancel();
+        return result;
     }
 
-    public String getDataSync(String path, int index, FilterGroupsStructure filterGroupsStructure, String apiKey){
-        Uri uri = buildWallhavenUrl(index, path, filterGroupsStructure);
-        String url = uri.toString();
-        return getDataSync(url, apiKey);
+    /**
+     * Called when a caller cancels. If it was the last one waiting for the key, the request is
+     * taken out of the rate limiter's queue, or its call is cancelled so the connection is freed.
+     */
+    private void cancel(String key, OnResultReceivedListener<?> listener) {
+        // Looked up while the listener is still registered, so it can't be a newer request for the same key.
+        Exchange<?> exchange = exchanges.get(key);
+        if (requestCoalescer.unregister(key, listener) && exchange != null) {
+            exchanges.remove(key, exchange);
+            exchange.cancel();
+        }
     }
 
-    public String getDataSync(String url){
-        return getDataSync(url, null);
+    /**
+     * Number of requests that are queued, running or waiting for a retry.
+     */
+    public int getActiveRequestCount() {
+        return exchanges.size();
     }
 
-    public String getDataSync(String url, String apiKey){
+    /**
+     * Reads Retry-After, which is either a number of seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds, or -1 if the response doesn't say.
+     */
+    private static long getRetryAfterMillis(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
         try {
-            OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(10, TimeUnit.SECONDS)
-                .build();
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate("Retry-After");
+            if (date == null) {
+                return -1;
+            }
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
 
-            Request.Builder requestBuilder = new Request.Builder()
-                    .url(url);
+    /**
+     * Sets how failed requests of the given priority are retried. Use {@link RetryPolicy#none()} to turn retries off.
+     */
+    public void setRetryPolicy(RateLimiter.Priority priority, RetryPolicy retryPolicy) {
+        synchronized (retryPolicies) {
+            retryPolicies.put(priority, retryPolicy);
+        }
+    }
 
-            if (apiKey != null && apiKey.length() > 0) {
-                requestBuilder.addHeader("X-API-Key", apiKey);
-            }
+    public RetryPolicy getRetryPolicy(RateLimiter.Priority priority) {
+        synchronized (retryPolicies) {
+            return retryPolicies.get(priority);
+        }
+    }
 
-            Request request = requestBuilder.build();
-            try (Response response = client.newCall(request).execute()) {
-                if (response.body() != null) {
-                    return response.body().string();
-                }
-                return null;
+    /**
+     * Number of times a failed request has been sent again.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Latencies of this provider's requests. Parse times are recorded here, network phases
+     * only if the client was built with a {@link com.musenkishi.wally.dataprovider.okhttp.MetricsEventListener}.
+     */
+    public NetworkMetrics getNetworkMetrics() {
+        return networkMetrics;
+    }
+
+    /**
+     * Admission control of this provider's requests.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Number of requests and how many of them were served by an already running call.
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Parses a response and completes the request.
+     *
+     * @return the error if the response couldn't be used, null if the request was completed.
+     */
+    private <T> DataProviderError handleResponse(String key, Response response, String url, ResponseParser<T> responseParser) {
+        T result;
+        try (Response closeableResponse = response) {
+            if (!closeableResponse.isSuccessful()) {
+                return new DataProviderError(
+                        DataProviderError.Type.NETWORK,
+                        closeableResponse.code(),
+                        closeableResponse.message(),
+                        RetryPolicy.isRetryable(closeableResponse.code()));
             }
+            result = parseResponse(closeableResponse, url, responseParser);
         } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-            return null;
+            // Most likely the connection dropped while the body was read.
+            return new DataProviderError(DataProviderError.Type.NETWORK, 400, e.getMessage(), RetryPolicy.isRetryable(e));
+        } catch (RuntimeException e) {
+            // A parser that throws would otherwise leave everyone waiting for the key without an answer.
+            return new DataProviderError(DataProviderError.Type.LOCAL, 500, "Couldn't parse response: " + e.getMessage(), false);
         }
+        requestCoalescer.complete(key, result, url);
+        return null;
     }
 
-    public void getData(String path, int index, FilterGroupsStructure filterGroupsStructure, final OnDataReceivedListener onDataReceivedListener) {
-        Uri uri = buildWallhavenUrl(index, path, filterGroupsStructure);
-        String url = uri.toString();
-        getData(url, onDataReceivedListener);
-    }
+    private Request buildRequest(String url, String apiKey) {
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(url);
 
-    public void getData(String path, int index, FilterGroupsStructure filterGroupsStructure, String apiKey, final OnDataReceivedListener onDataReceivedListener) {
-        Uri uri = buildWallhavenUrl(index, path, filterGroupsStructure);
-        String url = uri.toString();
-        getData(url, apiKey, onDataReceivedListener);
+        if (apiKey != null && apiKey.length() > 0) {
+            requestBuilder.addHeader("X-API-Key", apiKey);
+        }
+        return requestBuilder.build();
     }
 
-    public void getDataApi(String path, int index, FilterGroupsStructure filterGroupsStructure, String apiKey, final OnDataReceivedListener onDataReceivedListener) {
-        Uri uri = buildWallhavenApiUrl(index, path, filterGroupsStructure, null, null);
-        String url = uri.toString();
-        getData(url, apiKey, onDataReceivedListener);
-    }
+    @SuppressWarnings("unchecked")
+    private <T> T parseResponse(Response response, String url, ResponseParser<T> responseParser) throws IOException {
+        String key = responseParser.getClass().getName() + " " + url;
+        Response networkResponse = response.networkResponse();
+        boolean bodyUnchanged = networkResponse == null
+                || networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED;
+
+        if (bodyUnchanged) {
+            Object parsed = parsedResponses.get(key);
+            if (parsed != null) {
+                return (T) parsed;
+            }
+        }
 
-    public void getData(String url, final OnDataReceivedListener onDataReceivedListener) {
-        getData(url, null, onDataReceivedListener);
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("Empty response body");
+        }
+        long parseStartNanos = System.nanoTime();
+        T result = responseParser.parse(body, url);
+        networkMetrics.record(Endpoint.classify(url), NetworkMetrics.Phase.PARSE, System.nanoTime() - parseStartNanos);
+        if (result != null) {
+            parsedResponses.put(key, result);
+        } else {
+            parsedResponses.remove(key);
+        }
+        return result;
     }
 
-    public void getData(String url, String apiKey, final OnDataReceivedListener onDataReceivedListener) {
-        try {
-            OkHttpClient client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.SECONDS)
-                .readTimeout(10, TimeUnit.SECONDS)
-                .build();
+    /**
+     * One request of the generic fetch path, from the first attempt until it completes or gives up.
+     */
+    private class Exchange<T> {
+
+        private final String key;
+        private final Request request;
+        private final String url;
+        private final ResponseParser<T> responseParser;
+        private final RateLimiter.Priority priority;
+        private final long startNanos = System.nanoTime();
+        /**
+         * Written on the thread the rate limiter admits the request on, read on OkHttp's threads.
+         */
+        private volatile int attempts;
+        private volatile boolean cancelled;
+        private volatile okhttp3.Call call;
+
+        /**
+         * The same task every attempt, so {@link #cancel()} can take exactly this exchange out of
+         * the rate limiter's queue.
+         */
+        private final Runnable admittedTask = new Runnable() {
+            @Override
+            public void run() {
+                execute();
+            }
+        };
+
+        private Exchange(String key, Request request, String url, ResponseParser<T> responseParser, RateLimiter.Priority priority) {
+            this.key = key;
+            this.request = request;
+            this.url = url;
+            this.responseParser = responseParser;
+            this.priority = priority;
+        }
 
-            Request.Builder requestBuilder = new Request.Builder()
-                    .url(url);
+        /**
+         * Answers from the disk cache if it has a fresh response, so cache hits don't wait for
+         * a token. Everything else is sent to the network.
+         */
+        private void start() {
+            if (client.cache() == null) {
+                send();
+                return;
+            }
+            call = client.newCall(request.newBuilder().cacheControl(ONLY_IF_CACHED).build());
+            if (cancelled) {
+                call.cancel();
+            }
+            call.enqueue(new okhttp3.Callback() {
+                @Override
+                public void onFailure(okhttp3.Call call, IOException e) {
+                    send();
+                }
+
+                @Override
+                public void onResponse(okhttp3.Call call, Response response) {
+                    if (cancelled) {
+                        response.close();
+                        return;
+                    }
+                    if (response.cacheResponse() == null) {
+                        // Not cached, or stale and has to be revalidated.
+                        response.close();
+                        send();
+                        return;
+                    }
+                    if (handleResponse(key, response, url, responseParser) != null) {
+                        // A cached error or a body that can't be parsed, let the network have a go.
+                        send();
+                    } else {
+                        exchanges.remove(key, Exchange.this);
+                    }
+                }
+            });
+        }
 
-            if (apiKey != null && apiKey.length() > 0) {
-                requestBuilder.addHeader("X-API-Key", apiKey);
+        /**
+         * Sends the request once the rate limiter admits it.
+         */
+        private void send() {
+            if (cancelled) {
+                return;
             }
+            rateLimiter.submit(key, priority, admittedTask);
+        }
 
-            Request request = requestBuilder.build();
-            client.newCall(request).enqueue(new okhttp3.Callback() {
+        private void execute() {
+            if (cancelled) {
+                rateLimiter.refund();
+                return;
+            }
+            attempts++;
+            call = client.newCall(request);
+            if (cancelled) {
+                // cancel() ran before the call was visible to it.
+                call.cancel();
+            }
+            call.enqueue(new okhttp3.Callback() {
                 @Override
                 public void onFailure(okhttp3.Call call, IOException e) {
-                    if (onDataReceivedListener != null) {
-                        DataProviderError dataProviderError = new DataProviderError(
-                                DataProviderError.Type.NETWORK,
-                                400,
-                                e.getMessage());
-                        onDataReceivedListener.onError(dataProviderError);
+                    if (cancelled) {
+                        return;
                     }
+                    boolean retryable = !call.isCanceled() && RetryPolicy.isRetryable(e);
+                    onError(new DataProviderError(DataProviderError.Type.NETWORK, 400, e.getMessage(), retryable), 0);
                 }
 
                 @Override
-                public void onResponse(okhttp3.Call call, Response response) throws IOException {
-                    if (onDataReceivedListener != null) {
-                        if (response.body() != null) {
-                            onDataReceivedListener.onData(response.body().string(), url);
-                        } else {
-                            DataProviderError dataProviderError = new DataProviderError(
-                                    DataProviderError.Type.NETWORK,
-                                    response.code(),
-                                    "Empty response body");
-                            onDataReceivedListener.onError(dataProviderError);
+                public void onResponse(okhttp3.Call call, Response response) {
+                    if (cancelled) {
+                        // Nobody wants the result, don't spend time parsing it.
+                        response.close();
+                        return;
+                    }
+                    long retryAfterMillis = 0;
+                    if (response.code() == RetryPolicy.HTTP_TOO_MANY_REQUESTS) {
+                        retryAfterMillis = getRetryAfterMillis(response);
+                        rateLimiter.onTooManyRequests(retryAfterMillis);
+                        if (retryAfterMillis < 0) {
+                            retryAfterMillis = RateLimiter.DEFAULT_RETRY_AFTER_MILLIS;
                         }
+                    } else if (response.networkResponse() == null) {
+                        rateLimiter.refund();
+                    }
+                    DataProviderError error = handleResponse(key, response, url, responseParser);
+                    if (error != null) {
+                        onError(error, retryAfterMillis);
+                    } else {
+                        exchanges.remove(key, Exchange.this);
                     }
                 }
             });
-        } catch (IllegalArgumentException e) {
-            if (onDataReceivedListener != null) {
-                DataProviderError dataProviderError = new DataProviderError(
-                        DataProviderError.Type.NETWORK,
-                        400,
-                        "Invalid URL format");
-                onDataReceivedListener.onError(dataProviderError);
+        }
+
+        /**
+         * Tries again after a backoff if the error and the retry policy allow it, otherwise fails the request.
+         *
+         * @param minDelayMillis the least time to wait, like a Retry-After delay.
+         */
+        private void onError(DataProviderError error, long minDelayMillis) {
+            RetryPolicy retryPolicy = getRetryPolicy(priority);
+            long delayMillis = Math.max(minDelayMillis, retryPolicy.getDelayMillis(attempts));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            if (!error.isRetryable() || !retryPolicy.shouldRetry(attempts, elapsedMillis, delayMillis)) {
+                exchanges.remove(key, this);
+                requestCoalescer.fail(key, error);
+                return;
             }
-            e.printStackTrace();
+            retryCount.incrementAndGet();
+            RETRY_SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
         }
-    }
 
-    public void getData(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure, OnDataReceivedListener onDataReceivedListener) {
-        Uri uri = buildWallhavenUrl(index, path, filterGroupsStructure);
-        if (color != null) {
-            uri = uri.buildUpon().appendQueryParameter("color", color).build();
+        /**
+         * Stops the request wherever it is: waiting for a token, on the network or between attempts.
+         */
+        private void cancel() {
+            cancelled = true;
+            rateLimiter.remove(key, admittedTask);
+            okhttp3.Call currentCall = call;
+            if (currentCall != null) {
+                currentCall.cancel();
+            }
         }
-        uri = uri.buildUpon().appendQueryParameter("q", query).build();
-        String url = uri.toString();
-        getData(url, onDataReceivedListener);
     }
 
-    public void getData(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure, String apiKey, OnDataReceivedListener onDataReceivedListener) {
-        Uri uri = buildWallhavenUrl(index, path, filterGroupsStructure);
-        if (color != null) {
-            uri = uri.buildUpon().appendQueryParameter("color", color).build();
+    /**
+     * One caller's interest in a request, handed out as its {@link RequestHandle}.
+     */
+    private class Registration<T> extends RequestHandle implements OnResultReceivedListener<T> {
+
+        private final String key;
+        private final OnResultReceivedListener<T> onResultReceivedListener;
+
+        private Registration(String key, OnResultReceivedListener<T> onResultReceivedListener) {
+            this.key = key;
+            this.onResultReceivedListener = onResultReceivedListener;
         }
-        uri = uri.buildUpon().appendQueryParameter("q", query).build();
-        String url = uri.toString();
-        getData(url, apiKey, onDataReceivedListener);
-    }
 
-    public void getDataApi(String path, String query, String color, int index, FilterGroupsStructure filterGroupsStructure, String apiKey, OnDataReceivedListener onDataReceivedListener) {
-        Uri uri = buildWallhavenApiUrl(index, path, filterGroupsStructure, query, color);
-        String url = uri.toString();
-        getData(url, apiKey, onDataReceivedListener);
+        @Override
+        public void onResult(T result, String url) {
+            if (finish()) {
+                onResultReceivedListener.onResult(result, url);
+            }
+        }
+
+        @Override
+        public void onError(DataProviderError error) {
+            if (finish()) {
+                onResultReceivedListener.onError(error);
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            NetworkDataProvider.this.cancel(key, this);
+        }
     }
 
-    public void getDataApiForWallpaper(String wallpaperId, String apiKey, OnDataReceivedListener onDataReceivedListener) {
-        Uri.Builder builder = new Uri.Builder();
-        builder.scheme("https").authority("wallhaven.cc")
-                .appendEncodedPath("api/v1/w")
-                .appendEncodedPath(wallpaperId);
-        
-        String url = builder.build().toString();
-        getData(url, apiKey, onDataReceivedListener);
+    /**
+     * Turns a response body into something usable. Implementations should be stateless,
+     * since parsed results are cached per parser class.
+     */
+    public interface ResponseParser<T> {
+        T parse(ResponseBody body, String url) throws IOException;
     }
 
-    public interface OnDataReceivedListener {
-        void onData(String data, String url);
+    public interface OnResultReceivedListener<T> {
+        void onResult(T result, String url);
 
         void onError(DataProviderError error);
     }
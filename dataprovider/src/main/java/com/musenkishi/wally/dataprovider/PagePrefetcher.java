@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider;
+
+import com.musenkishi.wally.models.Image;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of pages that were fetched and parsed ahead of time, keyed by their url.
+ * Since the url contains every filter, a page fetched for old filters is never handed out
+ * for new ones. {@link #invalidate()} drops everything when the filters change anyway,
+ * including results of prefetches that are still running.
+ */
+public class PagePrefetcher {
+
+    public static final int DEFAULT_LOOK_AHEAD_DEPTH = 1;
+    private static final int MAX_READY_PAGES = 6;
+
+    private final LinkedHashMap<String, ArrayList<Image>> readyPages = new LinkedHashMap<String, ArrayList<Image>>(MAX_READY_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Image>> eldest) {
+            return size() > MAX_READY_PAGES;
+        }
+    };
+    private final HashSet<String> pendingUrls = new HashSet<>();
+
+    private int generation;
+    private int lookAheadDepth = DEFAULT_LOOK_AHEAD_DEPTH;
+
+    private long hitCount;
+    private long inFlightHitCount;
+    private long missCount;
+
+    /**
+     * How many pages after the one being shown should be fetched in advance. 0 turns prefetching off.
+     */
+    public synchronized void setLookAheadDepth(int lookAheadDepth) {
+        this.lookAheadDepth = Math.max(0, lookAheadDepth);
+    }
+
+    public synchronized int getLookAheadDepth() {
+        return lookAheadDepth;
+    }
+
+    /**
+     * Marks the url as being prefetched.
+     *
+     * @return a generation to pass to {@link #onPrefetched(String, int, ArrayList)}, or -1 if the
+     * page is already available or being fetched.
+     */
+    public synchronized int startPrefetch(String url) {
+        if (readyPages.containsKey(url) || pendingUrls.contains(url)) {
+            return -1;
+        }
+        pendingUrls.add(url);
+        return generation;
+    }
+
+    public synchronized void onPrefetched(String url, int generation, ArrayList<Image> images) {
+        if (generation != this.generation || !pendingUrls.remove(url)) {
+            // Invalidated, or taken while in flight by a request that joined the call.
+            return;
+        }
+        if (images != null && !images.isEmpty()) {
+            readyPages.put(url, images);
+        }
+    }
+
+    public synchronized void onPrefetchFailed(String url, int generation) {
+        if (generation == this.generation) {
+            pendingUrls.remove(url);
+        }
+    }
+
+    /**
+     * Returns and forgets the prefetched page for the url, or null if it isn't ready.
+     * A page that is still being prefetched counts as a hit as well, since the request
+     * for it will join the running call. It's forgotten too, so that its result isn't kept
+     * for a later request, like paging back, when it may be stale.
+     */
+    public synchronized ArrayList<Image> take(String url) {
+        ArrayList<Image> images = readyPages.remove(url);
+        if (images != null) {
+            hitCount++;
+        } else if (pendingUrls.remove(url)) {
+            inFlightHitCount++;
+        } else {
+            missCount++;
+        }
+        return images;
+    }
+
+    /**
+     * Discards all prefetched pages. Prefetches that are running will be ignored when they finish.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        readyPages.clear();
+        pendingUrls.clear();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getInFlightHitCount() {
+        return inFlightHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Share of page requests that were already fetched, or being fetched, when they were asked for.
+     */
+    public synchronized float getHitRate() {
+        long total = hitCount + inFlightHitCount + missCount;
+        if (total == 0) {
+            return 0f;
+        }
+        return (float) (hitCount + inFlightHitCount) / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits: " + hitCount + ", in flight hits: " + inFlightHitCount + ", misses: " + missCount + ", hit rate: " + getHitRate();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The requests of one owner, like a fragment, so that they can be cancelled together when
+ * what they were for goes away: the filters changed or the owner is destroyed.
+ * <p>
+ * Each {@link #cancelAll()} starts a new generation. Results that were already handed to
+ * another thread before the cancel can be checked against {@link #getGeneration()} to drop them.
+ */
+public class RequestGroup {
+
+    private final List<RequestHandle> requestHandles = new ArrayList<>();
+    private int generation;
+
+    /**
+     * Adds the request to the group.
+     *
+     * @return the same handle.
+     */
+    public synchronized RequestHandle add(RequestHandle requestHandle) {
+        Iterator<RequestHandle> iterator = requestHandles.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
+        }
+        if (!requestHandle.isDone()) {
+            requestHandles.add(requestHandle);
+        }
+        return requestHandle;
+    }
+
+    /**
+     * Cancels every request in the group and starts a new generation.
+     */
+    public void cancelAll() {
+        List<RequestHandle> cancelled;
+        synchronized (this) {
+            generation++;
+            cancelled = new ArrayList<>(requestHandles);
+            requestHandles.clear();
+        }
+        for (RequestHandle requestHandle : cancelled) {
+            requestHandle.cancel();
+        }
+    }
+
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Number of requests that haven't finished yet.
+     */
+    public synchronized int getPendingCount() {
+        int pending = 0;
+        for (RequestHandle requestHandle : requestHandles) {
+            if (!requestHandle.isDone()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+}
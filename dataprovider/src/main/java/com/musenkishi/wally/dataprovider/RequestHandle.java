@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A request started through the {@link DataProvider}. Cancelling it makes sure its listener
+ * won't be called anymore. If nobody else is waiting for the same response, the network
+ * call is cancelled as well, or never sent if it was still waiting for the rate limiter.
+ */
+public class RequestHandle {
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLED = 2;
+
+    /**
+     * Leaves PENDING exactly once, so either the answer or the cancellation wins, never both.
+     */
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+
+    /**
+     * A handle for a request that was answered right away, like a page that was prefetched.
+     */
+    public static RequestHandle completed() {
+        RequestHandle requestHandle = new RequestHandle();
+        requestHandle.state.set(DONE);
+        return requestHandle;
+    }
+
+    public void cancel() {
+        if (state.compareAndSet(PENDING, CANCELLED)) {
+            onCancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * True once the listener has been called or the request was cancelled.
+     */
+    public boolean isDone() {
+        return state.get() != PENDING;
+    }
+
+    /**
+     * Marks the request as answered.
+     *
+     * @return false if the request has been cancelled or already answered, and the answer
+     * should be dropped.
+     */
+    protected boolean finish() {
+        return state.compareAndSet(PENDING, DONE);
+    }
+
+    /**
+     * Called once when a request that hasn't finished is cancelled.
+     */
+    protected void onCancel() {
+    }
+}
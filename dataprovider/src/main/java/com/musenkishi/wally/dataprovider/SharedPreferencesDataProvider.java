@@ -42,6 +42,7 @@ public class SharedPreferencesDataProvider {
     public static final String APP_START_COUNT = ".appStartCount";
     public static final String LATEST_VERSION_INSTALLED = ".lastVersionInstalled";
     public static final String WALLHAVEN_API_KEY = ".wallhavenApiKey";
+    public static final String WARM_UP_SKIPPED = ".warmUpSkipped";
 
     public static final int CRASH_LOGGING_NOT_READ = 193784;
     public static final int CRASH_LOGGING_NOT_APPROVED = 193785;
@@ -90,6 +91,18 @@ public class SharedPreferencesDataProvider {
         return sharedPreferences.getString(WALLHAVEN_API_KEY, null);
     }
 
+    /**
+     * Whether the last start skipped the connection warm-up. Debug builds alternate it to compare
+     * the time to first thumbnail.
+     */
+    public boolean wasWarmUpSkipped() {
+        return sharedPreferences.getBoolean(WARM_UP_SKIPPED, true);
+    }
+
+    public void setWarmUpSkipped(boolean skipped) {
+        sharedPreferences.edit().putBoolean(WARM_UP_SKIPPED, skipped).apply();
+    }
+
     public Filter<String, String> getTimespan(String tag){
         String savedKey = sharedPreferences.getString(tag + FILTER_KEY, FilterTimeSpanKeys.TIMESPAN_3_DAYS.getKey());
         String savedValue = sharedPreferences.getString(tag + FILTER_VALUE, FilterTimeSpanKeys.TIMESPAN_3_DAYS.getValue());
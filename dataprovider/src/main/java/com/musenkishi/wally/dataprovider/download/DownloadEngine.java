@@ -0,0 +1,1004 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.download;
+
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.dataprovider.util.RetryPolicy;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Downloads full size wallpapers to a destination file the app owns.
+ * <p>
+ * Bytes are written to a ".part" file next to the destination, which is renamed once the
+ * download is complete and has passed {@link #isCompleteImage(File, long)}. A dropped connection
+ * is retried with a Range request from where the part file ends, and a later download of
+ * the same file picks up what an earlier one left behind.
+ * <p>
+ * Large files are split into ranges that are fetched at the same time, see
+ * {@link #setChunking(long, int)}. One stream is often limited by the connection's
+ * congestion window rather than by the network, on mobile more so.
+ * <p>
+ * At most {@link #getMaxParallelDownloads()} downloads run at a time, the rest wait in order
+ * of priority, so setting a wallpaper doesn't wait behind a row of saves from the grid.
+ * With a {@link DownloadJournal} the queue survives the process, see {@link #restore(DownloadJournal, OnDownloadListener)}.
+ */
+public class DownloadEngine {
+
+    public static final int DEFAULT_MAX_PARALLEL_DOWNLOADS = 2;
+    public static final String PART_SUFFIX = ".part";
+    public static final String CHUNKED_PART_SUFFIX = ".chunked" + PART_SUFFIX;
+    /**
+     * Most originals are a few MB, only the largest uploads are worth more than one connection.
+     */
+    public static final long DEFAULT_CHUNK_THRESHOLD_BYTES = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_CHUNKS = 4;
+    static final long MIN_CHUNK_BYTES = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Callbacks come from the engine's threads.
+     */
+    public interface OnDownloadListener {
+        /**
+         * @param totalBytes the size of the file, or -1 if the server didn't say.
+         */
+        void onProgress(long id, long bytesDownloaded, long totalBytes);
+
+        /**
+         * Called before the download's place is given to the next one, so it's fine to move
+         * the file somewhere else from here.
+         */
+        void onComplete(long id, File file);
+
+        void onError(long id, DataProviderError error);
+    }
+
+    private final OkHttpClient client;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DownloadEngine #" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentHashMap<Long, Download> downloads = new ConcurrentHashMap<>();
+    private final PriorityQueue<Download> pending = new PriorityQueue<>();
+    private volatile DownloadJournal journal;
+    private long sequence;
+
+    private volatile RetryPolicy retryPolicy = new RetryPolicy(5, 1000, 15000, 120000);
+    private int maxParallelDownloads;
+    private int running;
+    private long chunkThresholdBytes = DEFAULT_CHUNK_THRESHOLD_BYTES;
+    private int maxChunks = DEFAULT_MAX_CHUNKS;
+
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+    private final AtomicLong chunkedCount = new AtomicLong();
+    private final AtomicLong bytesTransferred = new AtomicLong();
+
+    public DownloadEngine(OkHttpClient client) {
+        this(client, DEFAULT_MAX_PARALLEL_DOWNLOADS);
+    }
+
+    public DownloadEngine(OkHttpClient client, int maxParallelDownloads) {
+        this.client = client;
+        setMaxParallelDownloads(maxParallelDownloads);
+    }
+
+    /**
+     * Sets how many downloads may run at the same time. Lowering it doesn't stop running
+     * downloads, it only holds back the next ones.
+     */
+    public void setMaxParallelDownloads(int maxParallelDownloads) {
+        if (maxParallelDownloads < 1) {
+            throw new IllegalArgumentException("maxParallelDownloads must be at least 1");
+        }
+        synchronized (this) {
+            this.maxParallelDownloads = maxParallelDownloads;
+        }
+        startNext();
+    }
+
+    public synchronized int getMaxParallelDownloads() {
+        return maxParallelDownloads;
+    }
+
+    /**
+     * Files of at least thresholdBytes are fetched over up to maxChunks connections at the same
+     * time, each asking for its own range, if the server supports ranges. A maxChunks of 1
+     * downloads every file in a single stream.
+     */
+    public synchronized void setChunking(long thresholdBytes, int maxChunks) {
+        if (maxChunks < 1) {
+            throw new IllegalArgumentException("maxChunks must be at least 1");
+        }
+        this.chunkThresholdBytes = thresholdBytes;
+        this.maxChunks = maxChunks;
+    }
+
+    /**
+     * How a download that fails partway through is retried. Every retry resumes where the last attempt ended.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Queues the downloads that were in the journal and records new ones in it from now on.
+     * Part files are still on disk, so restored downloads resume where they were.
+     * <p>
+     * Downloads queued before this are kept and added to the journal. A restored download that
+     * was queued again in the meantime isn't queued twice, and one whose id has been given to
+     * a new download gets a new id.
+     *
+     * @param listener is told about the restored downloads, including the ones that finished
+     *                 just before the process died and never got to call a listener.
+     * @return the ids of the restored downloads.
+     */
+    public List<Long> restore(DownloadJournal journal, final OnDownloadListener listener) throws IOException {
+        List<DownloadJournal.Entry> entries = journal.load();
+        List<Long> ids = new ArrayList<>(entries.size());
+        List<Long> staleIds = new ArrayList<>();
+        List<DownloadJournal.Entry> newEntries = new ArrayList<>();
+        synchronized (this) {
+            for (DownloadJournal.Entry entry : entries) {
+                if (nextId.get() <= entry.id) {
+                    nextId.set(entry.id + 1);
+                }
+            }
+            if (this.journal == null) {
+                for (Download download : downloads.values()) {
+                    // Queued before the journal was loaded.
+                    newEntries.add(new DownloadJournal.Entry(download.id, download.priority, download.url,
+                            download.destination, download.title));
+                }
+            }
+            for (final DownloadJournal.Entry entry : entries) {
+                Download queued = getDownload(entry.destination);
+                if (queued != null) {
+                    if (queued.id != entry.id) {
+                        // Queued again, it resumes from the same part file.
+                        staleIds.add(entry.id);
+                    }
+                    continue;
+                }
+                final long id = downloads.containsKey(entry.id) ? nextId.getAndIncrement() : entry.id;
+                if (entry.destination.exists() && !getPartFile(entry.destination).exists()
+                        && !getChunkedPartFile(entry.destination).exists()) {
+                    // Finished just before the process died.
+                    staleIds.add(entry.id);
+                    if (listener != null) {
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onComplete(id, entry.destination);
+                            }
+                        });
+                    }
+                    continue;
+                }
+                if (id != entry.id) {
+                    staleIds.add(entry.id);
+                    newEntries.add(new DownloadJournal.Entry(id, entry.priority, entry.url, entry.destination, entry.title));
+                }
+                Download download = new Download(id, entry.url, entry.destination, entry.title,
+                        entry.priority, sequence++, listener);
+                downloads.put(download.id, download);
+                pending.add(download);
+                ids.add(download.id);
+            }
+            // Removed first, a new download may have been given the same id.
+            for (long id : staleIds) {
+                journal.remove(id);
+            }
+            for (DownloadJournal.Entry entry : newEntries) {
+                journal.add(entry);
+            }
+            this.journal = journal;
+        }
+        startNext();
+        return ids;
+    }
+
+    /**
+     * Runs {@link #restore(DownloadJournal, OnDownloadListener)} on one of the engine's threads,
+     * so that reading the journal doesn't hold up the caller, like the main thread at startup.
+     * Downloads can be queued in the meantime.
+     */
+    public CompletableFuture<List<Long>> restoreInBackground(final DownloadJournal journal, final OnDownloadListener listener) {
+        return CompletableFuture.supplyAsync(new Supplier<List<Long>>() {
+            @Override
+            public List<Long> get() {
+                try {
+                    return restore(journal, listener);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Queues a download of the url to the destination file. If the same destination is
+     * already being downloaded, no new download is started and its id is returned, after
+     * moving it up to the given priority if it's still waiting.
+     *
+     * @param title    describes the download in {@link #toString()} and {@link #getTitle(long)}.
+     * @param listener is told about progress and the result, may be null.
+     * @return an id for {@link #getProgress(long)} and {@link #cancel(long)}.
+     */
+    public long enqueue(String url, File destination, String title, RateLimiter.Priority priority, OnDownloadListener listener) {
+        Download download;
+        synchronized (this) {
+            Download queued = getDownload(destination);
+            if (queued != null) {
+                promote(queued, priority);
+                return queued.id;
+            }
+            download = new Download(nextId.getAndIncrement(), url, destination, title, priority, sequence++, listener);
+            downloads.put(download.id, download);
+            pending.add(download);
+            DownloadJournal journal = this.journal;
+            if (journal != null) {
+                try {
+                    journal.add(new DownloadJournal.Entry(download.id, priority, url, destination, title));
+                } catch (IOException e) {
+                    // The download still runs, it just won't survive the process.
+                }
+            }
+        }
+        startNext();
+        return download.id;
+    }
+
+    /**
+     * The queued or running download to the destination, or null if there is none.
+     */
+    private Download getDownload(File destination) {
+        for (Download download : downloads.values()) {
+            if (download.destination.equals(destination) && !download.cancelled) {
+                return download;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void promote(Download download, RateLimiter.Priority priority) {
+        if (priority.ordinal() >= download.priority.ordinal() || !pending.remove(download)) {
+            return;
+        }
+        download.priority = priority;
+        pending.add(download);
+        DownloadJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.setPriority(download.id, priority);
+            } catch (IOException e) {
+                // Restored with its old priority at worst.
+            }
+        }
+    }
+
+    /**
+     * Stops a download without calling its listener. The part file is kept so that
+     * downloading the same file again resumes it.
+     *
+     * @return true if the download was queued or running.
+     */
+    public boolean cancel(long id) {
+        Download download = downloads.remove(id);
+        if (download == null) {
+            return false;
+        }
+        download.cancelled = true;
+        synchronized (this) {
+            pending.remove(download);
+        }
+        removeFromJournal(download);
+        for (Call call : download.calls) {
+            call.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * The destination of every queued or running download, by id.
+     */
+    public Map<Long, File> getDestinations() {
+        HashMap<Long, File> destinations = new HashMap<>();
+        for (Download download : downloads.values()) {
+            destinations.put(download.id, download.destination);
+        }
+        return destinations;
+    }
+
+    public boolean isDownloading(long id) {
+        return downloads.containsKey(id);
+    }
+
+    /**
+     * The title the download was queued with, or null if it isn't queued or running.
+     */
+    public String getTitle(long id) {
+        Download download = downloads.get(id);
+        return download != null ? download.title : null;
+    }
+
+    /**
+     * @return how much of the download is done, from 0 to 1, or -1 if the size isn't known
+     * yet or there is no such download.
+     */
+    public float getProgress(long id) {
+        Download download = downloads.get(id);
+        if (download == null) {
+            return -1;
+        }
+        long total = download.totalBytes;
+        if (total <= 0) {
+            return -1;
+        }
+        return Math.min(1f, download.bytesDownloaded.get() / (float) total);
+    }
+
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of requests that continued a part file instead of starting over.
+     */
+    public long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * Number of downloads that completed in chunks.
+     */
+    public long getChunkedCount() {
+        return chunkedCount.get();
+    }
+
+    /**
+     * Bytes received from the network, not counting what resumed downloads already had.
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (this) {
+            builder.append("running: ").append(running)
+                    .append(", queued: ").append(pending.size())
+                    .append(", max parallel: ").append(maxParallelDownloads);
+        }
+        builder.append(", completed: ").append(completedCount.get())
+                .append(", failed: ").append(failedCount.get())
+                .append(", resumed: ").append(resumedCount.get())
+                .append(", chunked: ").append(chunkedCount.get())
+                .append(", transferred: ").append(bytesTransferred.get() / 1024).append(" kB");
+        for (Download download : downloads.values()) {
+            builder.append("\n  ").append(download.id).append(' ').append(download.title)
+                    .append(": ").append(download.bytesDownloaded.get()).append('/').append(download.totalBytes);
+            Chunk[] chunks = download.chunks;
+            if (chunks != null) {
+                builder.append(" in ").append(chunks.length).append(" chunks");
+            }
+        }
+        return builder.toString();
+    }
+
+    private void startNext() {
+        while (true) {
+            final Download download;
+            synchronized (this) {
+                if (running >= maxParallelDownloads || pending.isEmpty()) {
+                    return;
+                }
+                download = pending.poll();
+                running++;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runDownload(download);
+                    } finally {
+                        synchronized (DownloadEngine.this) {
+                            running--;
+                        }
+                        startNext();
+                    }
+                }
+            });
+        }
+    }
+
+    private void runDownload(Download download) {
+        RetryPolicy retryPolicy = this.retryPolicy;
+        long startNanos = System.nanoTime();
+        int attempts = 0;
+        while (!download.cancelled) {
+            attempts++;
+            try {
+                transfer(download);
+                finish(download);
+                return;
+            } catch (HttpStatusException e) {
+                if (!RetryPolicy.isRetryable(e.httpStatusCode)
+                        || !retryAfterDelay(download, retryPolicy, attempts, startNanos)) {
+                    fail(download, new DataProviderError(DataProviderError.Type.NETWORK, e.httpStatusCode, e.getMessage(),
+                            RetryPolicy.isRetryable(e.httpStatusCode)));
+                    return;
+                }
+            } catch (IOException e) {
+                if (download.cancelled) {
+                    return;
+                }
+                if (!RetryPolicy.isRetryable(e) || !retryAfterDelay(download, retryPolicy, attempts, startNanos)) {
+                    fail(download, new DataProviderError(DataProviderError.Type.NETWORK, 0, e.getMessage(), RetryPolicy.isRetryable(e)));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the policy says to give up.
+     */
+    private boolean retryAfterDelay(Download download, RetryPolicy retryPolicy, int attempts, long startNanos) {
+        long delayMillis = retryPolicy.getDelayMillis(attempts);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (download.cancelled || !retryPolicy.shouldRetry(attempts, elapsedMillis, delayMillis)) {
+            return false;
+        }
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends one request for whatever the part file is missing and appends the response to it.
+     * The request asks for a range even when nothing has been downloaded, so the answer tells
+     * whether the server can serve chunks and how large the file is.
+     */
+    private void transfer(Download download) throws IOException {
+        if (download.chunks != null) {
+            transferChunks(download, null);
+            return;
+        }
+        File part = getPartFile(download.destination);
+        download.partFile = part;
+        File chunkedPart = getChunkedPartFile(download.destination);
+        if (chunkedPart.exists()) {
+            // Left behind by an earlier run. Which of its chunks are done is lost with that run.
+            deleteQuietly(chunkedPart);
+        }
+        long existing = part.length();
+
+        Call call = newRangeCall(download, existing, -1);
+        try (Response response = call.execute()) {
+            ResponseBody body = response.body();
+            int code = response.code();
+            long total;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                long[] range = parseContentRange(response.header("Content-Range"));
+                if (range == null || range[0] != existing) {
+                    deleteQuietly(part);
+                    throw new IOException("Unexpected Content-Range: " + response.header("Content-Range"));
+                }
+                total = range[2];
+                if (existing > 0) {
+                    resumedCount.incrementAndGet();
+                } else if (body != null && shouldChunk(total)) {
+                    download.chunks = splitIntoChunks(total, getMaxChunks());
+                    download.totalBytes = total;
+                    download.bytesDownloaded.set(0);
+                    download.partFile = chunkedPart;
+                    transferChunks(download, body.byteStream());
+                    return;
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // The server ignored the range and sent the whole file.
+                existing = 0;
+                total = body != null ? body.contentLength() : -1;
+            } else if (code == HTTP_RANGE_NOT_SATISFIABLE && existing > 0) {
+                long[] range = parseContentRange(response.header("Content-Range"));
+                if (range != null && range[2] == existing) {
+                    // The part file already has everything.
+                    download.totalBytes = existing;
+                    download.bytesDownloaded.set(existing);
+                    return;
+                }
+                deleteQuietly(part);
+                throw new IOException("Part file doesn't match the file on the server");
+            } else {
+                throw new HttpStatusException(code, response.message());
+            }
+            if (body == null) {
+                throw new IOException("Empty response");
+            }
+
+            download.totalBytes = total;
+            download.bytesDownloaded.set(existing);
+            writeBody(download, body.byteStream(), part, existing > 0);
+        } finally {
+            download.calls.remove(call);
+        }
+
+        long total = download.totalBytes;
+        if (total >= 0 && download.bytesDownloaded.get() != total) {
+            throw new IOException("Connection closed after " + download.bytesDownloaded.get() + " of " + total + " bytes");
+        }
+    }
+
+    /**
+     * @param last the last byte to ask for, or -1 for the rest of the file.
+     */
+    private Call newRangeCall(Download download, long first, long last) {
+        Request request = new Request.Builder()
+                .url(download.url)
+                .header("Range", "bytes=" + first + "-" + (last >= 0 ? String.valueOf(last) : ""))
+                // Offsets must be counted in the bytes of the file, not of a compressed stream.
+                .header("Accept-Encoding", "identity")
+                .build();
+        Call call = client.newCall(request);
+        download.calls.add(call);
+        if (download.cancelled) {
+            call.cancel();
+        }
+        return call;
+    }
+
+    private void writeBody(Download download, InputStream in, File part, boolean append) throws IOException {
+        File parent = part.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        try (FileOutputStream out = new FileOutputStream(part, append)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (download.cancelled) {
+                    throw new IOException("Canceled");
+                }
+                out.write(buffer, 0, read);
+                onBytesWritten(download, read);
+            }
+            out.getFD().sync();
+        }
+    }
+
+    private boolean shouldChunk(long totalBytes) {
+        synchronized (this) {
+            return maxChunks > 1 && totalBytes >= chunkThresholdBytes;
+        }
+    }
+
+    private synchronized int getMaxChunks() {
+        return maxChunks;
+    }
+
+    /**
+     * Splits the file into at most maxChunks ranges of at least {@link #MIN_CHUNK_BYTES}.
+     */
+    static Chunk[] splitIntoChunks(long totalBytes, int maxChunks) {
+        int count = (int) Math.max(1, Math.min(maxChunks, totalBytes / MIN_CHUNK_BYTES));
+        long chunkSize = (totalBytes + count - 1) / count;
+        Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            long first = i * chunkSize;
+            chunks[i] = new Chunk(first, Math.min(totalBytes, first + chunkSize) - 1);
+        }
+        return chunks;
+    }
+
+    /**
+     * Fetches the chunks that aren't done yet at the same time, each writing at its own offset
+     * of a file that already has the full size. The calling thread takes the first of them.
+     * If a chunk fails the others still finish, so a retry only asks for what's missing.
+     *
+     * @param firstChunkBody the rest of a response that started at offset 0, used for the first chunk.
+     */
+    private void transferChunks(final Download download, InputStream firstChunkBody) throws IOException {
+        File part = download.partFile;
+        File parent = part.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            if (file.length() != download.totalBytes) {
+                file.setLength(download.totalBytes);
+            }
+            final FileChannel channel = file.getChannel();
+
+            List<Chunk> remaining = new ArrayList<>();
+            for (Chunk chunk : download.chunks) {
+                if (!chunk.isDone()) {
+                    remaining.add(chunk);
+                }
+            }
+            if (remaining.isEmpty()) {
+                return;
+            }
+            Chunk first = remaining.remove(0);
+            if (firstChunkBody != null && first.next != 0) {
+                firstChunkBody = null;
+            }
+
+            List<Future<Void>> futures = new ArrayList<>(remaining.size());
+            for (final Chunk chunk : remaining) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        fetchChunk(download, chunk, channel, null);
+                        return null;
+                    }
+                }));
+            }
+
+            IOException failure = null;
+            try {
+                fetchChunk(download, first, channel, firstChunkBody);
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Writes the chunk from where it last ended, with body if given, otherwise with a request of its own.
+     */
+    private void fetchChunk(Download download, Chunk chunk, FileChannel channel, InputStream body) throws IOException {
+        if (body != null) {
+            writeChunk(download, chunk, channel, body);
+            return;
+        }
+        Call call = newRangeCall(download, chunk.next, chunk.last);
+        try (Response response = call.execute()) {
+            if (response.code() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new HttpStatusException(response.code(), response.message());
+            }
+            long[] range = parseContentRange(response.header("Content-Range"));
+            if (range == null || range[0] != chunk.next) {
+                throw new IOException("Unexpected Content-Range: " + response.header("Content-Range"));
+            }
+            writeChunk(download, chunk, channel, response.body().byteStream());
+        } finally {
+            download.calls.remove(call);
+        }
+        if (!chunk.isDone()) {
+            throw new IOException("Connection closed " + (chunk.last + 1 - chunk.next) + " bytes before the end of a chunk");
+        }
+    }
+
+    /**
+     * Stops at the end of the chunk, the body of the first chunk goes on to the end of the file.
+     */
+    private void writeChunk(Download download, Chunk chunk, FileChannel channel, InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (!chunk.isDone()) {
+            int wanted = (int) Math.min(buffer.length, chunk.last + 1 - chunk.next);
+            int read = in.read(buffer, 0, wanted);
+            if (read == -1) {
+                break;
+            }
+            if (download.cancelled) {
+                throw new IOException("Canceled");
+            }
+            byteBuffer.clear().limit(read);
+            while (byteBuffer.hasRemaining()) {
+                chunk.next += channel.write(byteBuffer, chunk.next);
+            }
+            onBytesWritten(download, read);
+        }
+    }
+
+    private void onBytesWritten(Download download, int count) {
+        download.bytesDownloaded.addAndGet(count);
+        bytesTransferred.addAndGet(count);
+        long now = System.nanoTime();
+        long lastReportNanos = download.lastReportNanos.get();
+        if (now - lastReportNanos >= PROGRESS_INTERVAL_NANOS && download.lastReportNanos.compareAndSet(lastReportNanos, now)) {
+            reportProgress(download);
+        }
+    }
+
+    private void finish(Download download) throws IOException {
+        File part = download.partFile;
+        if (!isCompleteImage(part, download.totalBytes)) {
+            // Start over, resuming would only append to the broken bytes.
+            deleteQuietly(part);
+            download.chunks = null;
+            throw new IOException("Downloaded file is incomplete or not an image");
+        }
+        if (download.destination.exists() && !download.destination.delete()) {
+            throw new IOException("Couldn't replace " + download.destination);
+        }
+        if (!part.renameTo(download.destination)) {
+            throw new IOException("Couldn't move " + part + " to " + download.destination);
+        }
+        if (downloads.remove(download.id) == null) {
+            // Cancelled right at the end, the file is there anyway.
+            return;
+        }
+        removeFromJournal(download);
+        completedCount.incrementAndGet();
+        if (download.chunks != null) {
+            chunkedCount.incrementAndGet();
+        }
+        reportProgress(download);
+        if (download.listener != null) {
+            download.listener.onComplete(download.id, download.destination);
+        }
+    }
+
+    private void fail(Download download, DataProviderError error) {
+        if (downloads.remove(download.id) == null) {
+            return;
+        }
+        removeFromJournal(download);
+        failedCount.incrementAndGet();
+        if (download.listener != null) {
+            download.listener.onError(download.id, error);
+        }
+    }
+
+    private void removeFromJournal(Download download) {
+        DownloadJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.remove(download.id);
+            } catch (IOException e) {
+                // It's downloaded again after a restart, and found complete with a Range request.
+            }
+        }
+    }
+
+    private void reportProgress(Download download) {
+        if (download.listener != null) {
+            download.listener.onProgress(download.id, download.bytesDownloaded.get(), download.totalBytes);
+        }
+    }
+
+    public static File getPartFile(File destination) {
+        return new File(destination.getPath() + PART_SUFFIX);
+    }
+
+    /**
+     * Chunked downloads have a file of their own, which has the full size from the start
+     * and so can't be resumed by a single stream.
+     */
+    public static File getChunkedPartFile(File destination) {
+        return new File(destination.getPath() + CHUNKED_PART_SUFFIX);
+    }
+
+    /**
+     * Checks that the file has the expected size, starts like a JPEG, PNG, GIF or WebP,
+     * and for JPEG and PNG that it also ends like one, which catches truncated files
+     * when the server didn't send a length.
+     *
+     * @param expectedLength the size the server announced, or -1 to skip that check.
+     */
+    public static boolean isCompleteImage(File file, long expectedLength) throws IOException {
+        long length = file.length();
+        if (length < 12 || (expectedLength >= 0 && length != expectedLength)) {
+            return false;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            byte[] head = new byte[12];
+            randomAccessFile.readFully(head);
+            byte[] tail = new byte[8];
+            randomAccessFile.seek(length - tail.length);
+            randomAccessFile.readFully(tail);
+
+            if ((head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8 && (head[2] & 0xFF) == 0xFF) {
+                return (tail[6] & 0xFF) == 0xFF && (tail[7] & 0xFF) == 0xD9;
+            }
+            if ((head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+                return tail[0] == 'I' && tail[1] == 'E' && tail[2] == 'N' && tail[3] == 'D';
+            }
+            if (head[0] == 'G' && head[1] == 'I' && head[2] == 'F' && head[3] == '8') {
+                return true;
+            }
+            return head[0] == 'R' && head[1] == 'I' && head[2] == 'F' && head[3] == 'F'
+                    && head[8] == 'W' && head[9] == 'E' && head[10] == 'B' && head[11] == 'P';
+        }
+    }
+
+    /**
+     * Parses "bytes first-last/total" or "bytes *&#47;total".
+     *
+     * @return first, last and total, where an unknown value is -1, or null if the header can't be read.
+     */
+    static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+        int slash = contentRange.indexOf('/');
+        if (slash == -1) {
+            return null;
+        }
+        try {
+            String range = contentRange.substring(6, slash).trim();
+            String total = contentRange.substring(slash + 1).trim();
+            long[] result = {-1, -1, "*".equals(total) ? -1 : Long.parseLong(total)};
+            if (!"*".equals(range)) {
+                int dash = range.indexOf('-');
+                if (dash == -1) {
+                    return null;
+                }
+                result[0] = Long.parseLong(range.substring(0, dash));
+                result[1] = Long.parseLong(range.substring(dash + 1));
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static class HttpStatusException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int httpStatusCode;
+
+        private HttpStatusException(int httpStatusCode, String message) {
+            super(httpStatusCode + " " + message);
+            this.httpStatusCode = httpStatusCode;
+        }
+    }
+
+    /**
+     * A range of the file, where next is the first byte that hasn't been written yet.
+     */
+    static class Chunk {
+
+        final long first;
+        final long last;
+        volatile long next;
+
+        Chunk(long first, long last) {
+            this.first = first;
+            this.last = last;
+            this.next = first;
+        }
+
+        boolean isDone() {
+            return next > last;
+        }
+    }
+
+    private static class Download implements Comparable<Download> {
+
+        private final long id;
+        private final String url;
+        private final File destination;
+        private final String title;
+        private final OnDownloadListener listener;
+        private final long sequence;
+        private RateLimiter.Priority priority;
+
+        private final Set<Call> calls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+        private final AtomicLong bytesDownloaded = new AtomicLong();
+        private final AtomicLong lastReportNanos = new AtomicLong();
+
+        private volatile boolean cancelled;
+        private volatile long totalBytes = -1;
+        private volatile File partFile;
+        /**
+         * Set once the download is fetched in chunks, kept between retries.
+         */
+        private volatile Chunk[] chunks;
+
+        private Download(long id, String url, File destination, String title, RateLimiter.Priority priority,
+                         long sequence, OnDownloadListener listener) {
+            this.id = id;
+            this.url = url;
+            this.destination = destination;
+            this.title = title;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.listener = listener;
+        }
+
+        @Override
+        public int compareTo(Download other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
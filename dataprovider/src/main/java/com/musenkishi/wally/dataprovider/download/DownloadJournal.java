@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.dataprovider.download;
+
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An append only log of the downloads that haven't finished, so the queue can be rebuilt
+ * after the process dies. Every change is one tab separated line:
+ * <pre>
+ * A  id  priority  url  destination  title    a download was queued
+ * P  id  priority                             its priority changed
+ * R  id                                       it completed, failed or was cancelled
+ * </pre>
+ * The file is rewritten with only the queued downloads when it's loaded, when the queue is
+ * empty and whenever the removed lines outnumber them, so it stays a few lines long. A line cut off by the process
+ * dying has no line break and is skipped when reading.
+ */
+public class DownloadJournal {
+
+    private static final String ADD = "A";
+    private static final String PRIORITY = "P";
+    private static final String REMOVE = "R";
+    private static final int MIN_LINES_TO_COMPACT = 16;
+
+    public static class Entry {
+
+        public final long id;
+        public final RateLimiter.Priority priority;
+        public final String url;
+        public final File destination;
+        public final String title;
+
+        public Entry(long id, RateLimiter.Priority priority, String url, File destination, String title) {
+            this.id = id;
+            this.priority = priority;
+            this.url = url;
+            this.destination = destination;
+            this.title = title;
+        }
+
+        private Entry withPriority(RateLimiter.Priority priority) {
+            return new Entry(id, priority, url, destination, title);
+        }
+    }
+
+    private final File file;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+    private int lineCount;
+
+    public DownloadJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the downloads that were queued when the journal was last written, in the order
+     * they were queued, and compacts the file.
+     */
+    public synchronized List<Entry> load() throws IOException {
+        entries.clear();
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                StringBuilder line = new StringBuilder();
+                int c;
+                while ((c = reader.read()) != -1) {
+                    if (c == '\n') {
+                        apply(line.toString().split("\t", -1));
+                        line.setLength(0);
+                    } else {
+                        line.append((char) c);
+                    }
+                }
+                // What follows the last line break was cut off, even if it reads like a whole
+                // line: "R 12" cut short is "R 1".
+            }
+        }
+        rewrite();
+        return new ArrayList<>(entries.values());
+    }
+
+    private void apply(String[] fields) {
+        try {
+            switch (fields[0]) {
+                case ADD:
+                    if (fields.length == 6) {
+                        long id = Long.parseLong(fields[1]);
+                        entries.put(id, new Entry(id, RateLimiter.Priority.valueOf(fields[2]), fields[3], new File(fields[4]), fields[5]));
+                    }
+                    break;
+                case PRIORITY:
+                    if (fields.length == 3) {
+                        Entry entry = entries.get(Long.parseLong(fields[1]));
+                        if (entry != null) {
+                            entries.put(entry.id, entry.withPriority(RateLimiter.Priority.valueOf(fields[2])));
+                        }
+                    }
+                    break;
+                case REMOVE:
+                    if (fields.length == 2) {
+                        entries.remove(Long.parseLong(fields[1]));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            // A partly written line, the change it describes never happened.
+        }
+    }
+
+    public synchronized void add(Entry entry) throws IOException {
+        entries.put(entry.id, entry);
+        append(ADD, String.valueOf(entry.id), entry.priority.name(), clean(entry.url),
+                clean(entry.destination.getPath()), clean(entry.title));
+    }
+
+    public synchronized void setPriority(long id, RateLimiter.Priority priority) throws IOException {
+        Entry entry = entries.get(id);
+        if (entry != null && entry.priority != priority) {
+            entries.put(id, entry.withPriority(priority));
+            append(PRIORITY, String.valueOf(id), priority.name());
+        }
+    }
+
+    public synchronized void remove(long id) throws IOException {
+        if (entries.remove(id) == null) {
+            return;
+        }
+        if (entries.isEmpty() || (lineCount >= MIN_LINES_TO_COMPACT && lineCount > entries.size() * 2)) {
+            rewrite();
+        } else {
+            append(REMOVE, String.valueOf(id));
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void append(String... fields) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(join(fields));
+        }
+        lineCount++;
+    }
+
+    /**
+     * Writes the queued downloads to a new file that replaces the old one, so a crash leaves
+     * either of them and never half of each.
+     */
+    private void rewrite() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Couldn't create " + parent);
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (Entry entry : entries.values()) {
+                writer.write(join(ADD, String.valueOf(entry.id), entry.priority.name(), clean(entry.url),
+                        clean(entry.destination.getPath()), clean(entry.title)));
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+        lineCount = entries.size();
+    }
+
+    private static String join(String... fields) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                builder.append('\t');
+            }
+            builder.append(fields[i]);
+        }
+        return builder.append('\n').toString();
+    }
+
+    private static String clean(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
@@ -28,11 +28,20 @@ public class DataProviderError {
     private final int httpStatusCode;
 
     private final String message;
+    private final boolean retryable;
 
     public DataProviderError(Type mType, int httpStatusCode, String message) {
+        this(mType, httpStatusCode, message, false);
+    }
+
+    /**
+     * @param retryable whether sending the same request again might succeed, like after a timeout or a 503.
+     */
+    public DataProviderError(Type mType, int httpStatusCode, String message, boolean retryable) {
         this.type = mType;
         this.httpStatusCode = httpStatusCode;
         this.message = message;
+        this.retryable = retryable && mType == Type.NETWORK;
     }
 
     public Type getType() {
@@ -46,4 +55,8 @@ public class DataProviderError {
     public String getMessage() {
         return message;
     }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.models;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Carries a {@link DataProviderError} through the futures returned by the DataProvider.
+ */
+public class DataProviderException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DataProviderError error;
+
+    public DataProviderException(DataProviderError error) {
+        super(error.getHttpStatusCode() + " " + error.getMessage());
+        this.error = error;
+    }
+
+    public DataProviderError getError() {
+        return error;
+    }
+
+    /**
+     * Returns the error a future failed with. Timeouts are reported as retryable network errors,
+     * anything else that isn't a {@link DataProviderException} as a local error.
+     */
+    public static DataProviderError errorOf(Throwable throwable) {
+        while ((throwable instanceof CompletionException || throwable instanceof ExecutionException)
+                && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        if (throwable instanceof DataProviderException) {
+            return ((DataProviderException) throwable).getError();
+        }
+        if (throwable instanceof TimeoutException) {
+            return new DataProviderError(DataProviderError.Type.NETWORK, HttpURLConnection.HTTP_CLIENT_TIMEOUT, "Timed out", true);
+        }
+        if (throwable instanceof CancellationException) {
+            return new DataProviderError(DataProviderError.Type.LOCAL, 499, "Cancelled");
+        }
+        return new DataProviderError(DataProviderError.Type.LOCAL, 500, String.valueOf(throwable));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import androidx.annotation.NonNull;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network interceptor that decides how long Wallhaven responses may be served from the disk cache.
+ * Wallhaven marks its pages as uncacheable, so the Cache-Control header is rewritten per {@link Endpoint}.
+ * Validators (ETag / Last-Modified) are left untouched, which lets OkHttp revalidate stale
+ * entries with a conditional request instead of downloading them again.
+ */
+public class CachePolicyInterceptor implements Interceptor {
+
+    private static final long NO_STORE = -1;
+
+    private final Map<Endpoint, Long> maxAgeSeconds = new EnumMap<>(Endpoint.class);
+
+    public CachePolicyInterceptor() {
+        setFreshness(Endpoint.TOPLIST, 10, TimeUnit.MINUTES);
+        setFreshness(Endpoint.LATEST, 1, TimeUnit.MINUTES);
+        setFreshness(Endpoint.SEARCH, 5, TimeUnit.MINUTES);
+        setFreshness(Endpoint.API_SEARCH, 5, TimeUnit.MINUTES);
+        setFreshness(Endpoint.WALLPAPER, 7, TimeUnit.DAYS);
+        setFreshness(Endpoint.API_WALLPAPER, 7, TimeUnit.DAYS);
+        maxAgeSeconds.put(Endpoint.RANDOM, NO_STORE);
+    }
+
+    /**
+     * Sets how long a response of the given endpoint is considered fresh.
+     * A duration of 0 means that every use has to be revalidated with the server.
+     */
+    public synchronized void setFreshness(Endpoint endpoint, long duration, TimeUnit unit) {
+        maxAgeSeconds.put(endpoint, unit.toSeconds(duration));
+    }
+
+    private synchronized Long getMaxAgeSeconds(Endpoint endpoint) {
+        return maxAgeSeconds.get(endpoint);
+    }
+
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+
+        if (!"GET".equals(request.method()) || response.code() != 200) {
+            return response;
+        }
+
+        HttpUrl url = request.url();
+        Long maxAge = getMaxAgeSeconds(Endpoint.classify(url));
+        if (maxAge == null) {
+            return response;
+        }
+
+        String cacheControl;
+        if (maxAge == NO_STORE || "random".equals(url.queryParameter("sorting"))) {
+            cacheControl = "no-store";
+        } else {
+            cacheControl = "private, max-age=" + maxAge;
+        }
+
+        return response.newBuilder()
+                .removeHeader("Pragma")
+                .removeHeader("Expires")
+                .header("Cache-Control", cacheControl)
+                // Results can differ between API keys (NSFW), never share an entry between them.
+                .header("Vary", "X-API-Key")
+                .build();
+    }
+}
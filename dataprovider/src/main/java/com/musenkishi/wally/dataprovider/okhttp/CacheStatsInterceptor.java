@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import androidx.annotation.NonNull;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application interceptor that counts how requests were answered by the HTTP disk cache.
+ * Cache probes that had to go to the network aren't counted, the request that follows them is.
+ */
+public class CacheStatsInterceptor implements Interceptor {
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong revalidatedCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    @NonNull
+    @Override
+    public Response intercept(@NonNull Chain chain) throws IOException {
+        Response response = chain.proceed(chain.request());
+        Response cacheResponse = response.cacheResponse();
+        Response networkResponse = response.networkResponse();
+
+        if (cacheResponse == null && networkResponse == null) {
+            // An only-if-cached probe the cache couldn't answer. The request that follows it is counted.
+            return response;
+        }
+        if (cacheResponse != null && networkResponse == null) {
+            hitCount.incrementAndGet();
+        } else if (cacheResponse != null && networkResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            revalidatedCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return response;
+    }
+
+    /**
+     * Requests served from the cache without touching the network.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Requests where a conditional request got a 304 and the cached body was used.
+     */
+    public long getRevalidatedCount() {
+        return revalidatedCount.get();
+    }
+
+    /**
+     * Requests where the body had to be downloaded.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + getHitCount() + ", revalidated: " + getRevalidatedCount() + ", misses: " + getMissCount();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import androidx.annotation.NonNull;
+
+import okhttp3.Dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps resolved addresses in memory for a while, so a host that was looked up during the
+ * startup warm-up (or by the previous request) isn't resolved again on the way to the first
+ * thumbnail. If a lookup fails, the last known addresses are used, which gets the app through
+ * short DNS outages on mobile networks.
+ */
+public class CachingDns implements Dns {
+
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final Dns delegate;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    public CachingDns() {
+        this(Dns.SYSTEM, DEFAULT_TTL_MILLIS);
+    }
+
+    public CachingDns(Dns delegate, long ttlMillis) {
+        this.delegate = delegate;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    @NonNull
+    @Override
+    public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(hostname);
+        if (entry != null && now - entry.resolvedNanos < ttlNanos) {
+            hitCount.incrementAndGet();
+            return entry.addresses;
+        }
+        missCount.incrementAndGet();
+        try {
+            List<InetAddress> addresses = Collections.unmodifiableList(new ArrayList<>(delegate.lookup(hostname)));
+            entries.put(hostname, new Entry(addresses, System.nanoTime()));
+            return addresses;
+        } catch (UnknownHostException e) {
+            if (entry != null) {
+                staleCount.incrementAndGet();
+                return entry.addresses;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets every address, for example after the device switched networks.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Lookups that failed and were answered with expired addresses.
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hosts: " + entries.size()
+                + ", hits: " + hitCount.get()
+                + ", misses: " + missCount.get()
+                + ", stale: " + staleCount.get();
+    }
+
+    private static class Entry {
+
+        private final List<InetAddress> addresses;
+        private final long resolvedNanos;
+
+        private Entry(List<InetAddress> addresses, long resolvedNanos) {
+            this.addresses = addresses;
+            this.resolvedNanos = resolvedNanos;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import androidx.annotation.NonNull;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sets up connections before the first real request needs them. A HEAD request is sent to each
+ * url, which resolves the host, connects and does the TLS handshake, and leaves the connection
+ * in the pool. Hosts that are only needed later, like the one full size images come from, are
+ * just resolved.
+ * <p>
+ * Everything runs on the client's dispatcher threads, so it is safe to start from the main thread.
+ */
+public class ConnectionWarmer {
+
+    public interface OnWarmUpListener {
+        /**
+         * Called on a dispatcher thread once every url has answered or failed.
+         */
+        void onWarmUpFinished(long elapsedMillis, int connected, int failed);
+    }
+
+    private final OkHttpClient client;
+
+    public ConnectionWarmer(OkHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Whether the call was made by a warm-up, so it can be left out of statistics.
+     */
+    public static boolean isWarmUpCall(Call call) {
+        return call.request().tag(ConnectionWarmer.class) != null;
+    }
+
+    public void warmUp(final List<String> connectUrls, List<String> resolveHosts, final OnWarmUpListener onWarmUpListener) {
+        final long startNanos = System.nanoTime();
+
+        for (final String host : resolveHosts) {
+            client.dispatcher().executorService().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        client.dns().lookup(host);
+                    } catch (UnknownHostException e) {
+                        // The request that needs the host will report it.
+                    }
+                }
+            });
+        }
+
+        if (connectUrls.isEmpty()) {
+            onWarmUpListener.onWarmUpFinished(0, 0, 0);
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(connectUrls.size());
+        final AtomicInteger connected = new AtomicInteger();
+        for (String url : connectUrls) {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .head()
+                    .tag(ConnectionWarmer.class, this)
+                    .build();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    onFinished();
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    // Any answer means the connection is up, the status doesn't matter.
+                    response.close();
+                    connected.incrementAndGet();
+                    onFinished();
+                }
+
+                private void onFinished() {
+                    if (remaining.decrementAndGet() == 0) {
+                        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                        int succeeded = connected.get();
+                        onWarmUpListener.onWarmUpFinished(elapsedMillis, succeeded, connectUrls.size() - succeeded);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import okhttp3.HttpUrl;
+
+import java.util.List;
+
+/**
+ * The different kinds of Wallhaven URLs the app requests.
+ */
+public enum Endpoint {
+
+    TOPLIST,
+    LATEST,
+    RANDOM,
+    SEARCH,
+    WALLPAPER,
+    API_SEARCH,
+    API_WALLPAPER,
+    THUMBNAIL,
+    OTHER;
+
+    private static final String HOST = "wallhaven.cc";
+    private static final String THUMBNAIL_HOST = "th.wallhaven.cc";
+
+    public static Endpoint classify(HttpUrl url) {
+        if (url == null) {
+            return OTHER;
+        }
+        if (THUMBNAIL_HOST.equalsIgnoreCase(url.host())) {
+            return THUMBNAIL;
+        }
+        if (!HOST.equalsIgnoreCase(url.host())) {
+            return OTHER;
+        }
+
+        List<String> segments = url.pathSegments();
+        String first = segments.isEmpty() ? "" : segments.get(0);
+
+        if ("api".equals(first) && segments.size() >= 3) {
+            String resource = segments.get(2);
+            if ("search".equals(resource)) {
+                return API_SEARCH;
+            } else if ("w".equals(resource)) {
+                return API_WALLPAPER;
+            }
+            return OTHER;
+        }
+
+        switch (first) {
+            case "toplist":
+                return TOPLIST;
+            case "latest":
+                return LATEST;
+            case "random":
+                return RANDOM;
+            case "w":
+                return WALLPAPER;
+            case "search":
+                String sorting = url.queryParameter("sorting");
+                if ("random".equals(sorting)) {
+                    return RANDOM;
+                } else if ("date_added".equals(sorting)) {
+                    return LATEST;
+                } else if ("toplist".equals(sorting)) {
+                    return TOPLIST;
+                }
+                return SEARCH;
+            default:
+                return OTHER;
+        }
+    }
+
+    public static Endpoint classify(String url) {
+        return classify(HttpUrl.parse(url));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import androidx.annotation.NonNull;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+/**
+ * Times the phases of one call and records them in {@link NetworkMetrics} under the endpoint
+ * of the request. OkHttp only takes one listener per client, so the events are also passed
+ * on to a delegate.
+ */
+public class MetricsEventListener extends EventListener {
+
+    private final NetworkMetrics networkMetrics;
+    private final EventListener delegate;
+    private final Endpoint endpoint;
+
+    private long callStartNanos;
+    private long dnsStartNanos;
+    private long connectStartNanos;
+    private long secureConnectStartNanos;
+    private long requestSentNanos;
+    private long responseBodyStartNanos;
+
+    private MetricsEventListener(NetworkMetrics networkMetrics, EventListener delegate, Endpoint endpoint) {
+        this.networkMetrics = networkMetrics;
+        this.delegate = delegate;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Creates a listener for every call, a new one is needed since each keeps the timestamps of its call.
+     */
+    public static EventListener.Factory factory(final NetworkMetrics networkMetrics, final EventListener delegate) {
+        return new EventListener.Factory() {
+            @NonNull
+            @Override
+            public EventListener create(@NonNull Call call) {
+                // Warm-up requests would skew the connection setup times of real thumbnail loads.
+                Endpoint endpoint = ConnectionWarmer.isWarmUpCall(call) ? Endpoint.OTHER : Endpoint.classify(call.request().url());
+                return new MetricsEventListener(networkMetrics, delegate, endpoint);
+            }
+        };
+    }
+
+    @Override
+    public void callStart(@NonNull Call call) {
+        callStartNanos = System.nanoTime();
+        delegate.callStart(call);
+    }
+
+    @Override
+    public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+        dnsStartNanos = System.nanoTime();
+        delegate.dnsStart(call, domainName);
+    }
+
+    @Override
+    public void dnsEnd(@NonNull Call call, @NonNull String domainName, @NonNull List<InetAddress> inetAddressList) {
+        record(NetworkMetrics.Phase.DNS, dnsStartNanos);
+        delegate.dnsEnd(call, domainName, inetAddressList);
+    }
+
+    @Override
+    public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy) {
+        connectStartNanos = System.nanoTime();
+        delegate.connectStart(call, inetSocketAddress, proxy);
+    }
+
+    @Override
+    public void secureConnectStart(@NonNull Call call) {
+        secureConnectStartNanos = System.nanoTime();
+        delegate.secureConnectStart(call);
+    }
+
+    @Override
+    public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+        record(NetworkMetrics.Phase.TLS, secureConnectStartNanos);
+        delegate.secureConnectEnd(call, handshake);
+    }
+
+    @Override
+    public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy, Protocol protocol) {
+        record(NetworkMetrics.Phase.CONNECT, connectStartNanos);
+        delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+    }
+
+    @Override
+    public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress, @NonNull Proxy proxy, Protocol protocol, @NonNull IOException ioe) {
+        delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+        delegate.connectionAcquired(call, connection);
+    }
+
+    @Override
+    public void connectionReleased(@NonNull Call call, @NonNull Connection connection) {
+        delegate.connectionReleased(call, connection);
+    }
+
+    @Override
+    public void requestHeadersEnd(@NonNull Call call, @NonNull Request request) {
+        requestSentNanos = System.nanoTime();
+        delegate.requestHeadersEnd(call, request);
+    }
+
+    @Override
+    public void requestBodyEnd(@NonNull Call call, long byteCount) {
+        requestSentNanos = System.nanoTime();
+        delegate.requestBodyEnd(call, byteCount);
+    }
+
+    @Override
+    public void responseHeadersStart(@NonNull Call call) {
+        record(NetworkMetrics.Phase.TTFB, requestSentNanos);
+        delegate.responseHeadersStart(call);
+    }
+
+    @Override
+    public void responseHeadersEnd(@NonNull Call call, @NonNull Response response) {
+        delegate.responseHeadersEnd(call, response);
+    }
+
+    @Override
+    public void responseBodyStart(@NonNull Call call) {
+        responseBodyStartNanos = System.nanoTime();
+        delegate.responseBodyStart(call);
+    }
+
+    @Override
+    public void responseBodyEnd(@NonNull Call call, long byteCount) {
+        record(NetworkMetrics.Phase.BODY, responseBodyStartNanos);
+        networkMetrics.recordBytes(endpoint, byteCount);
+        delegate.responseBodyEnd(call, byteCount);
+    }
+
+    @Override
+    public void callEnd(@NonNull Call call) {
+        record(NetworkMetrics.Phase.CALL, callStartNanos);
+        delegate.callEnd(call);
+    }
+
+    @Override
+    public void callFailed(@NonNull Call call, @NonNull IOException ioe) {
+        delegate.callFailed(call, ioe);
+    }
+
+    @Override
+    public void canceled(@NonNull Call call) {
+        delegate.canceled(call);
+    }
+
+    private void record(NetworkMetrics.Phase phase, long startNanos) {
+        if (startNanos != 0) {
+            networkMetrics.record(endpoint, phase, System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import com.musenkishi.wally.dataprovider.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of every phase of a request, per {@link Endpoint}, so a slow grid can be
+ * traced to DNS, connection setup, the server, the transfer or our own parsing.
+ * The network phases are recorded by {@link MetricsEventListener}, parse times by whoever parses.
+ * The size of the response bodies read from the network is counted as well, so the API and the
+ * website can be compared by bytes as well as by time.
+ */
+public class NetworkMetrics {
+
+    public enum Phase {
+        DNS,
+        /**
+         * Opening the socket, including the TLS handshake.
+         */
+        CONNECT,
+        TLS,
+        /**
+         * From the request being written until the first byte of the response headers.
+         */
+        TTFB,
+        /**
+         * Reading the response body. Parsers that stream the body are counted here as well.
+         */
+        BODY,
+        PARSE,
+        /**
+         * The whole call, including waiting for a connection and cache hits.
+         */
+        CALL
+    }
+
+    private final EnumMap<Endpoint, EnumMap<Phase, LatencyHistogram>> histograms = new EnumMap<>(Endpoint.class);
+    private final AtomicLongArray bodyBytes = new AtomicLongArray(Endpoint.values().length);
+    private final AtomicLongArray bodyCounts = new AtomicLongArray(Endpoint.values().length);
+
+    public NetworkMetrics() {
+        // Everything is created up front so recording never has to lock.
+        for (Endpoint endpoint : Endpoint.values()) {
+            EnumMap<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new LatencyHistogram());
+            }
+            histograms.put(endpoint, phases);
+        }
+    }
+
+    public void record(Endpoint endpoint, Phase phase, long nanos) {
+        histograms.get(endpoint).get(phase).record(nanos);
+    }
+
+    /**
+     * Counts a response body as it came over the network, before it was decompressed.
+     * Responses from the cache don't reach the network and aren't counted.
+     */
+    public void recordBytes(Endpoint endpoint, long byteCount) {
+        bodyBytes.addAndGet(endpoint.ordinal(), byteCount);
+        bodyCounts.incrementAndGet(endpoint.ordinal());
+    }
+
+    public long getBodyBytes(Endpoint endpoint) {
+        return bodyBytes.get(endpoint.ordinal());
+    }
+
+    public long getBodyCount(Endpoint endpoint) {
+        return bodyCounts.get(endpoint.ordinal());
+    }
+
+    public long getAverageBodyBytes(Endpoint endpoint) {
+        long count = getBodyCount(endpoint);
+        return count == 0 ? 0 : getBodyBytes(endpoint) / count;
+    }
+
+    public LatencyHistogram getHistogram(Endpoint endpoint, Phase phase) {
+        return histograms.get(endpoint).get(phase);
+    }
+
+    public void reset() {
+        for (EnumMap<Phase, LatencyHistogram> phases : histograms.values()) {
+            for (LatencyHistogram histogram : phases.values()) {
+                histogram.reset();
+            }
+        }
+        for (int i = 0; i < bodyBytes.length(); i++) {
+            bodyBytes.set(i, 0);
+            bodyCounts.set(i, 0);
+        }
+    }
+
+    /**
+     * Writes one line per endpoint and phase that has samples, and one with the bytes read per endpoint.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(toString());
+        writer.flush();
+    }
+
+    /**
+     * Writes the histograms to a file, replacing its contents.
+     */
+    public void dump(File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writeTo(writer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Endpoint endpoint : Endpoint.values()) {
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = getHistogram(endpoint, phase);
+                if (histogram.getCount() > 0) {
+                    builder.append(endpoint).append(' ').append(phase).append(": ").append(histogram).append('\n');
+                }
+            }
+            long count = getBodyCount(endpoint);
+            if (count > 0) {
+                builder.append(endpoint).append(" BYTES: ")
+                        .append(count).append(" bodies, ")
+                        .append(getBodyBytes(endpoint)).append(" total, ")
+                        .append(getAverageBodyBytes(endpoint)).append(" average\n");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.dataprovider.util.WallhavenUrlBuilder;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application wide registry for the {@link OkHttpClient} used by the app.
+ * Page requests, API calls and Glide thumbnail loads all go through the same
+ * connection pool and dispatcher, so connections (and HTTP/2 sessions) to
+ * wallhaven.cc and its thumbnail host are reused instead of being set up per request.
+ * <p>
+ * Call {@link #initialize(Context)} from the Application so that page and API responses
+ * also get a disk cache. Image loads skip that cache since Glide keeps its own.
+ */
+public class OkHttpClientProvider {
+
+    private static final String TAG = "OkHttpClientProvider";
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_REQUESTS = 64;
+    private static final int MAX_REQUESTS_PER_HOST = 8;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final String CACHE_DIRECTORY = "http";
+    private static final long CACHE_SIZE_BYTES = 20L * 1024 * 1024;
+
+    /**
+     * Connected to at startup: pages and API calls, and thumbnails.
+     */
+    private static final List<String> WARM_UP_URLS = Arrays.asList(
+            WallhavenUrlBuilder.WALLHAVEN_BASE_URL,
+            "https://th.wallhaven.cc/");
+    /**
+     * Only resolved at startup, full size images aren't needed until the user opens one.
+     */
+    private static final List<String> WARM_UP_HOSTS = Collections.singletonList("w.wallhaven.cc");
+
+    private static volatile OkHttpClientProvider instance;
+
+    private final OkHttpClient client;
+    private final OkHttpClient imageClient;
+    private final ConnectionPool connectionPool;
+    private final ConnectionStatsListener connectionStatsListener;
+    private final CachingDns dns = new CachingDns();
+    private final NetworkMetrics networkMetrics = new NetworkMetrics();
+    private final CachePolicyInterceptor cachePolicyInterceptor;
+    private final CacheStatsInterceptor cacheStatsInterceptor;
+    private final Cache cache;
+    private final RateLimiter rateLimiter = new RateLimiter();
+
+    /**
+     * Sets up the shared client with a disk cache in the app's cache directory.
+     * Does nothing if the client has already been created.
+     */
+    public static OkHttpClientProvider initialize(Context context) {
+        if (instance == null) {
+            synchronized (OkHttpClientProvider.class) {
+                if (instance == null) {
+                    File cacheDirectory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+                    instance = new OkHttpClientProvider(new Cache(cacheDirectory, CACHE_SIZE_BYTES));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the shared provider. If {@link #initialize(Context)} hasn't been called,
+     * the client works without a disk cache.
+     */
+    public static OkHttpClientProvider getInstance() {
+        if (instance == null) {
+            synchronized (OkHttpClientProvider.class) {
+                if (instance == null) {
+                    instance = new OkHttpClientProvider(null);
+                }
+            }
+        }
+        return instance;
+    }
+
+    private OkHttpClientProvider(Cache cache) {
+        this.cache = cache;
+        connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+        connectionStatsListener = new ConnectionStatsListener();
+
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        imageClient = new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dns(dns)
+                .eventListenerFactory(MetricsEventListener.factory(networkMetrics, connectionStatsListener))
+                .connectTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+
+        cachePolicyInterceptor = new CachePolicyInterceptor();
+        cacheStatsInterceptor = new CacheStatsInterceptor();
+
+        // newBuilder() keeps the connection pool and dispatcher of the image client.
+        client = imageClient.newBuilder()
+                .cache(cache)
+                .addInterceptor(cacheStatsInterceptor)
+                .addNetworkInterceptor(cachePolicyInterceptor)
+                .build();
+    }
+
+    /**
+     * The client used for page and API requests.
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * The client used for image loading. Shares connection pool and dispatcher with {@link #getClient()}.
+     */
+    public OkHttpClient getImageClient() {
+        return imageClient;
+    }
+
+    /**
+     * Per endpoint freshness of cached responses.
+     */
+    public CachePolicyInterceptor getCachePolicy() {
+        return cachePolicyInterceptor;
+    }
+
+    /**
+     * Hit, revalidation and miss counters of the disk cache.
+     */
+    public CacheStatsInterceptor getCacheStats() {
+        return cacheStatsInterceptor;
+    }
+
+    /**
+     * Admission control for page and API requests, shared by everything that talks to Wallhaven.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Per endpoint latencies of DNS, connection setup, TLS, time to first byte, body transfer and parsing.
+     */
+    public NetworkMetrics getNetworkMetrics() {
+        return networkMetrics;
+    }
+
+    /**
+     * Hit and miss counters of the in-memory DNS cache.
+     */
+    public CachingDns getDns() {
+        return dns;
+    }
+
+    /**
+     * Resolves and connects to the Wallhaven hosts in the background, so the first grid
+     * doesn't wait for DNS and TLS. The connections stay in the pool for a few minutes.
+     */
+    public void warmUpConnections(ConnectionWarmer.OnWarmUpListener onWarmUpListener) {
+        new ConnectionWarmer(imageClient).warmUp(WARM_UP_URLS, WARM_UP_HOSTS, onWarmUpListener);
+    }
+
+    /**
+     * Reports the first thumbnail download (not counting the warm-up) to the startup metrics.
+     */
+    public void setStartupMetrics(StartupMetrics startupMetrics) {
+        connectionStatsListener.startupMetrics = startupMetrics;
+    }
+
+    /**
+     * A snapshot of how the connection pool is being used.
+     */
+    public ConnectionStats getStats() {
+        return new ConnectionStats(
+                connectionPool.connectionCount(),
+                connectionPool.idleConnectionCount(),
+                connectionStatsListener.connectionsOpened.get(),
+                connectionStatsListener.connectionsAcquired.get());
+    }
+
+    /**
+     * Closes idle connections. Call when the system asks the app to trim its memory.
+     */
+    public void evictIdleConnections() {
+        connectionPool.evictAll();
+    }
+
+    /**
+     * Cancels all queued and running calls and closes every pooled connection.
+     */
+    public void shutdown() {
+        client.dispatcher().cancelAll();
+        connectionPool.evictAll();
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't close the HTTP cache: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class ConnectionStatsListener extends EventListener {
+
+        private final AtomicLong connectionsOpened = new AtomicLong();
+        private final AtomicLong connectionsAcquired = new AtomicLong();
+        private volatile StartupMetrics startupMetrics;
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionsAcquired.incrementAndGet();
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            StartupMetrics startupMetrics = this.startupMetrics;
+            if (startupMetrics != null && !startupMetrics.hasFirstThumbnail()
+                    && Endpoint.classify(call.request().url()) == Endpoint.THUMBNAIL
+                    && !ConnectionWarmer.isWarmUpCall(call)) {
+                startupMetrics.onThumbnailLoaded();
+            }
+        }
+    }
+
+    /**
+     * Connection pool statistics. A reuse rate close to 1 means that almost every call
+     * was served by an already open connection.
+     */
+    public static class ConnectionStats {
+
+        private final int connectionCount;
+        private final int idleConnectionCount;
+        private final long connectionsOpened;
+        private final long connectionsAcquired;
+
+        public ConnectionStats(int connectionCount, int idleConnectionCount, long connectionsOpened, long connectionsAcquired) {
+            this.connectionCount = connectionCount;
+            this.idleConnectionCount = idleConnectionCount;
+            this.connectionsOpened = connectionsOpened;
+            this.connectionsAcquired = connectionsAcquired;
+        }
+
+        public int getConnectionCount() {
+            return connectionCount;
+        }
+
+        public int getIdleConnectionCount() {
+            return idleConnectionCount;
+        }
+
+        public long getConnectionsOpened() {
+            return connectionsOpened;
+        }
+
+        public long getConnectionsAcquired() {
+            return connectionsAcquired;
+        }
+
+        public long getConnectionsReused() {
+            return Math.max(0, connectionsAcquired - connectionsOpened);
+        }
+
+        public float getReuseRate() {
+            if (connectionsAcquired == 0) {
+                return 0f;
+            }
+            return (float) getConnectionsReused() / connectionsAcquired;
+        }
+
+        @Override
+        public String toString() {
+            return "connections: " + connectionCount
+                    + ", idle: " + idleConnectionCount
+                    + ", opened: " + connectionsOpened
+                    + ", acquired: " + connectionsAcquired
+                    + ", reuse rate: " + getReuseRate();
+        }
+    }
+}
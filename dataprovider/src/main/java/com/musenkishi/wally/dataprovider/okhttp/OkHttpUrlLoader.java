@@ -44,7 +44,7 @@ public class OkHttpUrlLoader implements ModelLoader<GlideUrl, InputStream> {
             if (internalClient == null) {
                 synchronized (Factory.class) {
                     if (internalClient == null) {
-                        internalClient = new OkHttpClient();
+                        internalClient = OkHttpClientProvider.getInstance().getImageClient();
                     }
                 }
             }
@@ -52,7 +52,7 @@ public class OkHttpUrlLoader implements ModelLoader<GlideUrl, InputStream> {
         }
 
         /**
-         * Constructor for a new Factory that runs requests using a static singleton client.
+         * Constructor for a new Factory that runs requests using the shared client from {@link OkHttpClientProvider}.
          */
         public Factory() {
             this(getInternalClient());
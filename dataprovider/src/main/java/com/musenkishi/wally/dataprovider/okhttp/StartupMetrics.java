@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.okhttp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the time from app start until the first thumbnail has been downloaded, and whether
+ * the connection warm-up was used and had finished by then.
+ */
+public class StartupMetrics {
+
+    public interface OnFirstThumbnailListener {
+        /**
+         * Called once, on the thread that finished the download.
+         */
+        void onFirstThumbnail(StartupMetrics startupMetrics);
+    }
+
+    private final long startNanos;
+    private final boolean warmUpEnabled;
+    private final OnFirstThumbnailListener onFirstThumbnailListener;
+    private final AtomicBoolean firstThumbnailSeen = new AtomicBoolean();
+
+    private volatile long warmUpFinishedNanos;
+    private volatile long firstThumbnailNanos;
+
+    /**
+     * @param startNanos when the app started, from {@link System#nanoTime()}.
+     */
+    public StartupMetrics(long startNanos, boolean warmUpEnabled, OnFirstThumbnailListener onFirstThumbnailListener) {
+        this.startNanos = startNanos;
+        this.warmUpEnabled = warmUpEnabled;
+        this.onFirstThumbnailListener = onFirstThumbnailListener;
+    }
+
+    public void onWarmUpFinished() {
+        warmUpFinishedNanos = System.nanoTime();
+    }
+
+    public void onThumbnailLoaded() {
+        if (firstThumbnailSeen.compareAndSet(false, true)) {
+            firstThumbnailNanos = System.nanoTime();
+            if (onFirstThumbnailListener != null) {
+                onFirstThumbnailListener.onFirstThumbnail(this);
+            }
+        }
+    }
+
+    public boolean hasFirstThumbnail() {
+        return firstThumbnailSeen.get();
+    }
+
+    public boolean isWarmUpEnabled() {
+        return warmUpEnabled;
+    }
+
+    /**
+     * @return -1 until the first thumbnail has been downloaded.
+     */
+    public long getTimeToFirstThumbnailMillis() {
+        return millisSinceStart(firstThumbnailNanos);
+    }
+
+    /**
+     * @return -1 if the warm-up is off or hasn't finished.
+     */
+    public long getWarmUpMillis() {
+        return millisSinceStart(warmUpFinishedNanos);
+    }
+
+    private long millisSinceStart(long nanos) {
+        if (nanos == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos - startNanos);
+    }
+
+    @Override
+    public String toString() {
+        String warmUp;
+        if (!warmUpEnabled) {
+            warmUp = "off";
+        } else if (warmUpFinishedNanos == 0) {
+            warmUp = "on, not finished";
+        } else {
+            warmUp = "on, finished after " + getWarmUpMillis() + " ms";
+        }
+        return "time to first thumbnail: " + getTimeToFirstThumbnailMillis() + " ms"
+                + ", warm-up: " + warmUp;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.parsing;
+
+import com.squareup.moshi.JsonReader;
+import okio.BufferedSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Streaming reader for Wallhaven's <code>/api/v1/search</code> response.
+ * Reads straight from the response source and reports every wallpaper as soon as its
+ * object has been read. Fields that aren't needed by the app are skipped without
+ * being decoded.
+ */
+public final class ApiSearchReader {
+
+    private static final JsonReader.Options ROOT_NAMES = JsonReader.Options.of("data");
+    private static final JsonReader.Options WALLPAPER_NAMES = JsonReader.Options.of(
+            "id", "thumbs", "dimension_x", "dimension_y", "width", "height",
+            "path", "purity", "category", "colors", "file_size", "file_type");
+    private static final JsonReader.Options THUMB_NAMES = JsonReader.Options.of("small", "large", "original");
+
+    public interface OnWallpaperReadListener {
+        void onWallpaperRead(Wallpaper wallpaper);
+    }
+
+    /**
+     * The fields of one wallpaper in the response. Any of the strings may be null if the
+     * response didn't have them.
+     */
+    public static final class Wallpaper {
+        public String id;
+        /**
+         * The small, large and original thumbnail.
+         */
+        public final String[] thumbUrls = new String[THUMB_NAMES.strings().size()];
+        public int width;
+        public int height;
+        /**
+         * The url of the full image.
+         */
+        public String path;
+        public String purity;
+        public String category;
+        public final ArrayList<String> colors = new ArrayList<>();
+        public long fileSize;
+        public String fileType;
+    }
+
+    private ApiSearchReader() {
+    }
+
+    public static int read(BufferedSource source, OnWallpaperReadListener listener) throws IOException {
+        return read(source, listener, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads at most maxItems wallpapers from the source.
+     *
+     * @return the number of wallpapers passed to the listener.
+     */
+    public static int read(BufferedSource source, OnWallpaperReadListener listener, int maxItems) throws IOException {
+        JsonReader reader = JsonReader.of(source);
+        int count = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.selectName(ROOT_NAMES) == 0 && reader.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (count >= maxItems) {
+                        return count;
+                    }
+                    if (readWallpaper(reader, listener)) {
+                        count++;
+                    }
+                }
+                reader.endArray();
+            } else {
+                skipProperty(reader);
+            }
+        }
+        reader.endObject();
+        return count;
+    }
+
+    private static boolean readWallpaper(JsonReader reader, OnWallpaperReadListener listener) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return false;
+        }
+
+        Wallpaper wallpaper = new Wallpaper();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.selectName(WALLPAPER_NAMES)) {
+                case 0:
+                    wallpaper.id = nextString(reader);
+                    break;
+                case 1:
+                    readThumbs(reader, wallpaper.thumbUrls);
+                    break;
+                case 2:
+                case 4:
+                    wallpaper.width = nextInt(reader);
+                    break;
+                case 3:
+                case 5:
+                    wallpaper.height = nextInt(reader);
+                    break;
+                case 6:
+                    wallpaper.path = nextString(reader);
+                    break;
+                case 7:
+                    wallpaper.purity = nextString(reader);
+                    break;
+                case 8:
+                    wallpaper.category = nextString(reader);
+                    break;
+                case 9:
+                    readColors(reader, wallpaper.colors);
+                    break;
+                case 10:
+                    wallpaper.fileSize = nextLong(reader);
+                    break;
+                case 11:
+                    wallpaper.fileType = nextString(reader);
+                    break;
+                default:
+                    skipProperty(reader);
+                    break;
+            }
+        }
+        reader.endObject();
+
+        listener.onWallpaperRead(wallpaper);
+        return true;
+    }
+
+    private static void readThumbs(JsonReader reader, String[] thumbUrls) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int index = reader.selectName(THUMB_NAMES);
+            if (index != -1) {
+                thumbUrls[index] = nextString(reader);
+            } else {
+                skipProperty(reader);
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readColors(JsonReader reader, ArrayList<String> colors) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String color = nextString(reader);
+            if (color != null) {
+                colors.add(color);
+            }
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Skips the name (if it hasn't been consumed by selectName) and value of the current property.
+     */
+    private static void skipProperty(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.Token.NAME) {
+            reader.skipName();
+        }
+        reader.skipValue();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonReader.Token token = reader.peek();
+        if (token == JsonReader.Token.STRING || token == JsonReader.Token.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static long nextLong(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.Token.NUMBER) {
+            return reader.nextLong();
+        }
+        String value = nextString(reader);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static int nextInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.Token.NUMBER) {
+            return reader.nextInt();
+        }
+        String value = nextString(reader);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.parsing;
+
+import okio.BufferedSource;
+import okio.ByteString;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts the thumbnails of a Wallhaven search or toplist page in one forward pass over the
+ * bytes, without building a DOM. Everything outside <code>section.thumb-listing-page</code>
+ * is skipped, and only the values that end up in the grid are decoded to Strings.
+ * <p>
+ * The scanner only understands the markup Wallhaven currently serves. When it runs into
+ * something else (unknown attribute quoting, entities, relative links, a figure without a
+ * preview link...) it returns {@link #UNRECOGNIZED} and the page should be parsed with jsoup
+ * instead. Wallpapers may already have been passed to the listener at that point.
+ */
+public final class ThumbListingScanner {
+
+    public static final int UNRECOGNIZED = -1;
+
+    private static final ByteString SECTION_OPEN = ByteString.encodeUtf8("<section class=\"thumb-listing-page\"");
+    private static final ByteString SECTION_CLOSE = ByteString.encodeUtf8("</section>");
+    private static final ByteString FIGURE_OPEN = ByteString.encodeUtf8("<figure");
+    private static final ByteString FIGURE_CLOSE = ByteString.encodeUtf8("</figure>");
+
+    private static final byte[] IMG_OPEN = bytes("<img");
+    private static final byte[] DATA_SRC = bytes(" data-src=\"");
+    private static final byte[] PREVIEW_CLASS = bytes("class=\"preview\"");
+    private static final byte[] HREF = bytes(" href=\"");
+    private static final byte[] WALL_RES_CLASS = bytes("class=\"wall-res\"");
+    private static final byte[] SPAN_CLOSE = bytes("</span>");
+
+    public interface OnThumbReadListener {
+        void onThumbRead(String id, String thumbUrl, String pageUrl, String resolution);
+    }
+
+    private ThumbListingScanner() {
+    }
+
+    /**
+     * Reads the source to its end, or until markup it doesn't recognize.
+     *
+     * @return the number of thumbnails passed to the listener, or {@link #UNRECOGNIZED}.
+     */
+    public static int scan(BufferedSource source, OnThumbReadListener listener) throws IOException {
+        int count = 0;
+        boolean foundSection = false;
+
+        long sectionStart;
+        while ((sectionStart = source.indexOf(SECTION_OPEN)) != -1) {
+            foundSection = true;
+            source.skip(sectionStart + SECTION_OPEN.size());
+            long sectionEnd = source.indexOf(SECTION_CLOSE);
+            if (sectionEnd == -1) {
+                return UNRECOGNIZED;
+            }
+
+            long figureStart;
+            while ((figureStart = source.indexOf(FIGURE_OPEN)) != -1 && figureStart < sectionEnd) {
+                source.skip(figureStart);
+                long figureEnd = source.indexOf(FIGURE_CLOSE);
+                if (figureEnd == -1 || figureEnd > sectionEnd - figureStart) {
+                    return UNRECOGNIZED;
+                }
+                long figureLength = figureEnd + FIGURE_CLOSE.size();
+                int result = readFigure(source.readByteArray(figureLength), listener);
+                if (result == UNRECOGNIZED) {
+                    return UNRECOGNIZED;
+                }
+                count += result;
+                sectionEnd -= figureStart + figureLength;
+            }
+            source.skip(sectionEnd + SECTION_CLOSE.size());
+        }
+
+        return foundSection ? count : UNRECOGNIZED;
+    }
+
+    /**
+     * @return 1 if a thumbnail was read, 0 if the figure doesn't have one or {@link #UNRECOGNIZED}.
+     */
+    private static int readFigure(byte[] figure, OnThumbReadListener listener) {
+        int imgStart = indexOf(figure, IMG_OPEN, 0, figure.length);
+        if (imgStart == -1) {
+            return 0;
+        }
+        int imgEnd = indexOf(figure, (byte) '>', imgStart);
+        String thumbUrl = attribute(figure, DATA_SRC, imgStart, imgEnd);
+        if (thumbUrl == null) {
+            return UNRECOGNIZED;
+        }
+
+        int previewClass = indexOf(figure, PREVIEW_CLASS, 0, figure.length);
+        if (previewClass == -1) {
+            return UNRECOGNIZED;
+        }
+        int anchorStart = lastIndexOf(figure, (byte) '<', previewClass);
+        int anchorEnd = indexOf(figure, (byte) '>', previewClass);
+        String pageUrl = attribute(figure, HREF, anchorStart, anchorEnd);
+        if (pageUrl == null || !(pageUrl.startsWith("https://") || pageUrl.startsWith("http://"))) {
+            return UNRECOGNIZED;
+        }
+
+        String resolution = "";
+        int resolutionClass = indexOf(figure, WALL_RES_CLASS, 0, figure.length);
+        if (resolutionClass != -1) {
+            int textStart = indexOf(figure, (byte) '>', resolutionClass) + 1;
+            int textEnd = indexOf(figure, (byte) '<', textStart);
+            if (textStart == 0 || textEnd == -1 || indexOf(figure, SPAN_CLOSE, textEnd, textEnd + SPAN_CLOSE.length) != textEnd) {
+                return UNRECOGNIZED;
+            }
+            resolution = text(figure, textStart, textEnd);
+            if (resolution == null) {
+                return UNRECOGNIZED;
+            }
+        }
+
+        String id = lastPathSegment(pageUrl);
+        if (id == null) {
+            return UNRECOGNIZED;
+        }
+        if (id.isEmpty() || thumbUrl.isEmpty()) {
+            return 0;
+        }
+        listener.onThumbRead(id, thumbUrl, pageUrl, resolution);
+        return 1;
+    }
+
+    /**
+     * Returns the value of a double quoted attribute inside the tag between start and end,
+     * "" if the tag doesn't have the attribute, or null if it can't be read without an HTML parser.
+     */
+    private static String attribute(byte[] data, byte[] name, int start, int end) {
+        if (start == -1 || end == -1) {
+            return null;
+        }
+        int nameStart = indexOf(data, name, start, end);
+        if (nameStart == -1) {
+            // The attribute might be single quoted or unquoted.
+            return indexOf(data, name, start, end - 1, name.length - 2) == -1 ? "" : null;
+        }
+        int valueStart = nameStart + name.length;
+        int valueEnd = indexOf(data, (byte) '"', valueStart);
+        if (valueEnd == -1 || valueEnd > end || indexOf(data, (byte) '&', valueStart, valueEnd) != -1) {
+            return null;
+        }
+        return new String(data, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes text content, or returns null if it would need entity decoding or whitespace normalization.
+     */
+    private static String text(byte[] data, int start, int end) {
+        while (start < end && data[start] == ' ') {
+            start++;
+        }
+        while (end > start && data[end - 1] == ' ') {
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b == '&' || (b >= 0 && b < ' ') || (b == ' ' && data[i - 1] == ' ')) {
+                return null;
+            }
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static String lastPathSegment(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query != -1) {
+            end = query;
+        }
+        int fragment = url.indexOf('#');
+        if (fragment != -1 && fragment < end) {
+            end = fragment;
+        }
+        int start = url.lastIndexOf('/', end - 1) + 1;
+        if (start == end) {
+            return null;
+        }
+        return url.substring(start, end);
+    }
+
+    private static int indexOf(byte[] data, byte b, int from) {
+        return indexOf(data, b, from, data.length);
+    }
+
+    private static int indexOf(byte[] data, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte b, int from) {
+        for (int i = from; i >= 0; i--) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, byte[] target, int from, int to) {
+        return indexOf(data, target, from, to, target.length);
+    }
+
+    /**
+     * Finds the first length bytes of target in data[from, to).
+     */
+    private static int indexOf(byte[] data, byte[] target, int from, int to, int length) {
+        int last = Math.min(to, data.length) - length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.source;
+
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.OnResultReceivedListener;
+import com.musenkishi.wally.dataprovider.RequestHandle;
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.util.Parser;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ImagePage;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+import okio.BufferedSource;
+import okio.Okio;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves recorded Wallhaven responses from a directory, after a configurable delay, so the grids
+ * and everything behind them can be driven without the live site and with the same data every time.
+ * <p>
+ * Listing pages are read from "&lt;path&gt;_&lt;page&gt;" or, if there is no file for the page,
+ * "&lt;path&gt;", so one recorded page can stand in for an endless listing. Wallpaper pages are read
+ * from "w_&lt;id&gt;" or "w". A ".json" file is parsed as an API response, a ".html" file as a page
+ * of the website. Filters are ignored, and so are query and color apart from telling keys apart.
+ */
+public class LocalWallpaperSource implements WallpaperSource {
+
+    private static final String[] EXTENSIONS = {".json", ".html"};
+    private static final String WALLPAPER_PREFIX = "w";
+
+    private final File directory;
+    private final Parser parser;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LocalWallpaperSource");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+
+    private final AtomicLong servedCount = new AtomicLong();
+    private final AtomicLong missingCount = new AtomicLong();
+
+    public LocalWallpaperSource(File directory, Parser parser) {
+        this.directory = directory;
+        this.parser = parser;
+    }
+
+    /**
+     * Delays every response by latencyMillis plus a random amount up to jitterMillis.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        if (latencyMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException("latency must not be negative");
+        }
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    @Override
+    public String getImagesKey(String path, String query, String color, int page, FilterGroupsStructure filterGroupsStructure) {
+        StringBuilder key = new StringBuilder(path).append('_').append(page);
+        if (query != null) {
+            key.append("?q=").append(query);
+        }
+        if (color != null) {
+            key.append(query != null ? '&' : '?').append("color=").append(color);
+        }
+        return key.toString();
+    }
+
+    @Override
+    public RequestHandle getImages(final String imagesKey, RateLimiter.Priority priority, OnResultReceivedListener<ArrayList<Image>> listener) {
+        return schedule(imagesKey, listener, new Loader<ArrayList<Image>>() {
+            @Override
+            public ArrayList<Image> load() throws IOException {
+                return readImages(imagesKey);
+            }
+        });
+    }
+
+    @Override
+    public ArrayList<Image> getImagesSync(String imagesKey) {
+        sleep();
+        try {
+            return readImages(imagesKey);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public RequestHandle getImagePage(final String imagePageUrl, RateLimiter.Priority priority, OnResultReceivedListener<ImagePage> listener) {
+        return schedule(imagePageUrl, listener, new Loader<ImagePage>() {
+            @Override
+            public ImagePage load() throws IOException {
+                return readImagePage(imagePageUrl);
+            }
+        });
+    }
+
+    @Override
+    public ImagePage getImagePageSync(String imagePageUrl) {
+        sleep();
+        try {
+            return readImagePage(imagePageUrl);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Requests answered from a file.
+     */
+    public long getServedCount() {
+        return servedCount.get();
+    }
+
+    /**
+     * Requests that had no file to answer them.
+     */
+    public long getMissingCount() {
+        return missingCount.get();
+    }
+
+    private ArrayList<Image> readImages(String imagesKey) throws IOException {
+        int queryStart = imagesKey.indexOf('?');
+        String name = queryStart == -1 ? imagesKey : imagesKey.substring(0, queryStart);
+        int pageStart = name.lastIndexOf('_');
+        File file = findFixture(name, pageStart == -1 ? null : name.substring(0, pageStart));
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            if (file.getName().endsWith(".json")) {
+                return parser.parseImagesFromApi(source);
+            }
+            return parser.parseImages(source);
+        }
+    }
+
+    private ImagePage readImagePage(String imagePageUrl) throws IOException {
+        String wallpaperId = WallhavenApiSource.extractWallpaperId(imagePageUrl);
+        File file = findFixture(wallpaperId != null ? WALLPAPER_PREFIX + "_" + wallpaperId : null, WALLPAPER_PREFIX);
+        String data;
+        try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+            data = source.readUtf8();
+        }
+        if (file.getName().endsWith(".json")) {
+            return parser.parseImagePageFromApi(data, imagePageUrl);
+        }
+        return parser.parseImagePage(data, imagePageUrl);
+    }
+
+    private File findFixture(String name, String fallbackName) throws FileNotFoundException {
+        for (String candidate : new String[]{name, fallbackName}) {
+            if (candidate == null) {
+                continue;
+            }
+            for (String extension : EXTENSIONS) {
+                File file = new File(directory, candidate + extension);
+                if (file.isFile()) {
+                    servedCount.incrementAndGet();
+                    return file;
+                }
+            }
+        }
+        missingCount.incrementAndGet();
+        throw new FileNotFoundException("No fixture for " + name + " in " + directory);
+    }
+
+    private <T> RequestHandle schedule(final String key, final OnResultReceivedListener<T> listener, final Loader<T> loader) {
+        final LocalRequest request = new LocalRequest();
+        request.future = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                T result;
+                try {
+                    result = loader.load();
+                } catch (FileNotFoundException e) {
+                    if (request.deliver()) {
+                        listener.onError(new DataProviderError(DataProviderError.Type.LOCAL, 404, e.getMessage()));
+                    }
+                    return;
+                } catch (IOException e) {
+                    if (request.deliver()) {
+                        listener.onError(new DataProviderError(DataProviderError.Type.LOCAL, 500, e.getMessage()));
+                    }
+                    return;
+                }
+                if (request.deliver()) {
+                    listener.onResult(result, key);
+                }
+            }
+        }, nextDelayMillis(), TimeUnit.MILLISECONDS);
+        return request;
+    }
+
+    private long nextDelayMillis() {
+        long jitter = jitterMillis;
+        return latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+    }
+
+    private void sleep() {
+        long delay = nextDelayMillis();
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    private static class LocalRequest extends RequestHandle {
+
+        private volatile ScheduledFuture<?> future;
+
+        private boolean deliver() {
+            return finish();
+        }
+
+        @Override
+        protected void onCancel() {
+            ScheduledFuture<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.source;
+
+import com.musenkishi.wally.dataprovider.NetworkDataProvider;
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.OnResultReceivedListener;
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.ResponseParser;
+import com.musenkishi.wally.dataprovider.RequestHandle;
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.util.Parser;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ImagePage;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gets listings and wallpaper details from the Wallhaven API, which needs an API key for NSFW
+ * wallpapers. The API answers with a fraction of the bytes of the website and is cheaper to
+ * parse, so it is used with or without a key.
+ * <p>
+ * If the API fails, the same listing or wallpaper is fetched from the fallback source instead.
+ * Listings that include NSFW don't fall back, since the website wouldn't show those wallpapers.
+ */
+public class WallhavenApiSource implements WallpaperSource {
+
+    public interface ApiKeyProvider {
+        /**
+         * @return the key to send, or null.
+         */
+        String getApiKey();
+    }
+
+    private static final int MAX_FALLBACK_KEYS = 64;
+
+    private final NetworkDataProvider networkDataProvider;
+    private final WallpaperSource fallbackSource;
+    private final ApiKeyProvider apiKeyProvider;
+
+    private final ResponseParser<ArrayList<Image>> imagesParser;
+    private final ResponseParser<ImagePage> imagePageParser;
+
+    /**
+     * The fallback's key for each recent listing key handed out, most recently used last.
+     */
+    private final LinkedHashMap<String, String> fallbackImagesKeys = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_FALLBACK_KEYS;
+        }
+    };
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * @param fallbackSource used for the wallpaper pages the API can't answer.
+     */
+    public WallhavenApiSource(NetworkDataProvider networkDataProvider, final Parser parser, WallpaperSource fallbackSource, ApiKeyProvider apiKeyProvider) {
+        this.networkDataProvider = networkDataProvider;
+        this.fallbackSource = fallbackSource;
+        this.apiKeyProvider = apiKeyProvider;
+        imagesParser = new ResponseParser<ArrayList<Image>>() {
+            @Override
+            public ArrayList<Image> parse(ResponseBody body, String url) throws IOException {
+                return parser.parseImagesFromApi(body.source());
+            }
+        };
+        imagePageParser = new ResponseParser<ImagePage>() {
+            @Override
+            public ImagePage parse(ResponseBody body, String url) throws IOException {
+                return parser.parseImagePageFromApi(body.string(), url);
+            }
+        };
+    }
+
+    @Override
+    public String getImagesKey(String path, String query, String color, int page, FilterGroupsStructure filterGroupsStructure) {
+        String imagesKey = networkDataProvider.buildWallhavenApiUrl(page, path, filterGroupsStructure, query, color);
+        if (!includesNsfw(filterGroupsStructure)) {
+            String fallbackKey = fallbackSource.getImagesKey(path, query, color, page, filterGroupsStructure);
+            synchronized (fallbackImagesKeys) {
+                fallbackImagesKeys.put(imagesKey, fallbackKey);
+            }
+        }
+        return imagesKey;
+    }
+
+    @Override
+    public RequestHandle getImages(final String imagesKey, final RateLimiter.Priority priority, final OnResultReceivedListener<ArrayList<Image>> listener) {
+        final FallbackRequest<ArrayList<Image>> request = new FallbackRequest<>(listener);
+        request.setCurrent(networkDataProvider.getData(imagesKey, apiKeyProvider.getApiKey(), imagesParser, priority, new OnResultReceivedListener<ArrayList<Image>>() {
+            @Override
+            public void onResult(ArrayList<Image> images, String url) {
+                request.onResult(images, url);
+            }
+
+            @Override
+            public void onError(DataProviderError error) {
+                String fallbackKey = getFallbackImagesKey(imagesKey);
+                if (fallbackKey == null || request.isCancelled()) {
+                    request.onError(error);
+                    return;
+                }
+                fallbackCount.incrementAndGet();
+                request.setCurrent(fallbackSource.getImages(fallbackKey, priority, request));
+            }
+        }));
+        return request;
+    }
+
+    @Override
+    public ArrayList<Image> getImagesSync(String imagesKey) {
+        ArrayList<Image> images = networkDataProvider.getDataSync(imagesKey, apiKeyProvider.getApiKey(), imagesParser);
+        if (images == null) {
+            String fallbackKey = getFallbackImagesKey(imagesKey);
+            if (fallbackKey != null) {
+                fallbackCount.incrementAndGet();
+                return fallbackSource.getImagesSync(fallbackKey);
+            }
+        }
+        return images;
+    }
+
+    @Override
+    public RequestHandle getImagePage(final String imagePageUrl, final RateLimiter.Priority priority, final OnResultReceivedListener<ImagePage> listener) {
+        String wallpaperId = extractWallpaperId(imagePageUrl);
+        if (wallpaperId == null) {
+            return fallbackSource.getImagePage(imagePageUrl, priority, listener);
+        }
+        String url = networkDataProvider.buildWallhavenApiWallpaperUrl(wallpaperId);
+        final FallbackRequest<ImagePage> request = new FallbackRequest<>(listener);
+        request.setCurrent(networkDataProvider.getData(url, apiKeyProvider.getApiKey(), imagePageParser, priority, new OnResultReceivedListener<ImagePage>() {
+            @Override
+            public void onResult(ImagePage imagePage, String url) {
+                if (imagePage != null) {
+                    request.onResult(imagePage, url);
+                } else {
+                    // The API answered with something the parser couldn't read.
+                    fallBack();
+                }
+            }
+
+            @Override
+            public void onError(DataProviderError error) {
+                fallBack();
+            }
+
+            private void fallBack() {
+                if (!request.isCancelled()) {
+                    fallbackCount.incrementAndGet();
+                    request.setCurrent(fallbackSource.getImagePage(imagePageUrl, priority, request));
+                }
+            }
+        }));
+        return request;
+    }
+
+    @Override
+    public ImagePage getImagePageSync(String imagePageUrl) {
+        String wallpaperId = extractWallpaperId(imagePageUrl);
+        if (wallpaperId != null) {
+            String url = networkDataProvider.buildWallhavenApiWallpaperUrl(wallpaperId);
+            ImagePage imagePage = networkDataProvider.getDataSync(url, apiKeyProvider.getApiKey(), imagePageParser);
+            if (imagePage != null) {
+                return imagePage;
+            }
+            fallbackCount.incrementAndGet();
+        }
+        return fallbackSource.getImagePageSync(imagePageUrl);
+    }
+
+    /**
+     * Number of listings and wallpapers that were fetched from the fallback source after the API failed.
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    private String getFallbackImagesKey(String imagesKey) {
+        synchronized (fallbackImagesKeys) {
+            return fallbackImagesKeys.get(imagesKey);
+        }
+    }
+
+    private static boolean includesNsfw(FilterGroupsStructure filterGroupsStructure) {
+        String purity = filterGroupsStructure.getPurityFilter();
+        return purity != null && purity.length() >= 3 && purity.charAt(2) == '1';
+    }
+
+    /**
+     * Reads the id from a page url, like "https://wallhaven.cc/w/123456" -> "123456".
+     *
+     * @return the id, or null if the url doesn't point to a wallpaper.
+     */
+    public static String extractWallpaperId(String imagePageUrl) {
+        if (imagePageUrl == null) {
+            return null;
+        }
+        int start = imagePageUrl.indexOf("/w/");
+        if (start == -1) {
+            return null;
+        }
+        start += 3;
+        int end = imagePageUrl.length();
+        for (int i = start; i < end; i++) {
+            char c = imagePageUrl.charAt(i);
+            if (c == '?' || c == '#' || c == '/') {
+                end = i;
+                break;
+            }
+        }
+        return end > start ? imagePageUrl.substring(start, end) : null;
+    }
+
+    /**
+     * The handle of a request that may be answered by the API or by the fallback, and cancels
+     * whichever of them is in flight.
+     */
+    private static class FallbackRequest<T> extends RequestHandle implements OnResultReceivedListener<T> {
+
+        private final OnResultReceivedListener<T> listener;
+        private RequestHandle current;
+
+        private FallbackRequest(OnResultReceivedListener<T> listener) {
+            this.listener = listener;
+        }
+
+        private void setCurrent(RequestHandle requestHandle) {
+            synchronized (this) {
+                if (!isCancelled()) {
+                    current = requestHandle;
+                    return;
+                }
+            }
+            requestHandle.cancel();
+        }
+
+        @Override
+        public void onResult(T result, String url) {
+            if (finish()) {
+                listener.onResult(result, url);
+            }
+        }
+
+        @Override
+        public void onError(DataProviderError error) {
+            if (finish()) {
+                listener.onError(error);
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            RequestHandle requestHandle;
+            synchronized (this) {
+                requestHandle = current;
+            }
+            if (requestHandle != null) {
+                requestHandle.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.source;
+
+import com.musenkishi.wally.dataprovider.NetworkDataProvider;
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.OnResultReceivedListener;
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.ResponseParser;
+import com.musenkishi.wally.dataprovider.RequestHandle;
+import com.musenkishi.wally.dataprovider.util.Parser;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ImagePage;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Scrapes listings and wallpaper pages from the Wallhaven website. Works without an API key,
+ * but only for SFW and sketchy wallpapers.
+ */
+public class WallhavenHtmlSource implements WallpaperSource {
+
+    private final NetworkDataProvider networkDataProvider;
+
+    private final ResponseParser<ArrayList<Image>> imagesParser;
+    private final ResponseParser<ImagePage> imagePageParser;
+
+    public WallhavenHtmlSource(NetworkDataProvider networkDataProvider, final Parser parser) {
+        this.networkDataProvider = networkDataProvider;
+        imagesParser = new ResponseParser<ArrayList<Image>>() {
+            @Override
+            public ArrayList<Image> parse(ResponseBody body, String url) throws IOException {
+                return parser.parseImages(body.source());
+            }
+        };
+        imagePageParser = new ResponseParser<ImagePage>() {
+            @Override
+            public ImagePage parse(ResponseBody body, String url) throws IOException {
+                return parser.parseImagePage(body.string(), url);
+            }
+        };
+    }
+
+    @Override
+    public String getImagesKey(String path, String query, String color, int page, FilterGroupsStructure filterGroupsStructure) {
+        return networkDataProvider.buildWallhavenUrl(page, path, filterGroupsStructure, query, color);
+    }
+
+    @Override
+    public RequestHandle getImages(String imagesKey, RateLimiter.Priority priority, OnResultReceivedListener<ArrayList<Image>> listener) {
+        return networkDataProvider.getData(imagesKey, null, imagesParser, priority, listener);
+    }
+
+    @Override
+    public ArrayList<Image> getImagesSync(String imagesKey) {
+        return networkDataProvider.getDataSync(imagesKey, null, imagesParser);
+    }
+
+    @Override
+    public RequestHandle getImagePage(String imagePageUrl, RateLimiter.Priority priority, OnResultReceivedListener<ImagePage> listener) {
+        return networkDataProvider.getData(imagePageUrl, null, imagePageParser, priority, listener);
+    }
+
+    @Override
+    public ImagePage getImagePageSync(String imagePageUrl) {
+        return networkDataProvider.getDataSync(imagePageUrl, null, imagePageParser);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.source;
+
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.OnResultReceivedListener;
+import com.musenkishi.wally.dataprovider.RequestHandle;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
+import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ImagePage;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+
+import java.util.ArrayList;
+
+/**
+ * Where wallpaper listings and details come from. {@link com.musenkishi.wally.dataprovider.DataProvider}
+ * uses the Wallhaven website or API depending on the filters, and can be pointed at another source,
+ * like {@link LocalWallpaperSource} for load tests that shouldn't depend on the live site.
+ * <p>
+ * Listeners may be called on any thread, and not at all once the returned handle has been cancelled.
+ */
+public interface WallpaperSource {
+
+    /**
+     * Identifies a page of a listing, or of search results if there is a query. Requests with the
+     * same key are the same request, and prefetched pages are stored under it. For Wallhaven it is
+     * the url of the page.
+     */
+    String getImagesKey(String path, String query, String color, int page, FilterGroupsStructure filterGroupsStructure);
+
+    RequestHandle getImages(String imagesKey, RateLimiter.Priority priority, OnResultReceivedListener<ArrayList<Image>> listener);
+
+    /**
+     * Blocks the calling thread.
+     *
+     * @return the images, or null if the request failed.
+     */
+    ArrayList<Image> getImagesSync(String imagesKey);
+
+    /**
+     * The details of a wallpaper.
+     *
+     * @param imagePageUrl the page of the wallpaper on the website, like https://wallhaven.cc/w/123456
+     */
+    RequestHandle getImagePage(String imagePageUrl, RateLimiter.Priority priority, OnResultReceivedListener<ImagePage> listener);
+
+    /**
+     * Blocks the calling thread.
+     *
+     * @return the details, or null if the request failed.
+     */
+    ImagePage getImagePageSync(String imagePageUrl);
+}
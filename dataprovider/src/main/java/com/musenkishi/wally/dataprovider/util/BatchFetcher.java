@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.util;
+
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Fetches a list of resources with at most a fixed number of requests in flight.
+ * Results are passed to the listener as each request completes, in whatever order that is.
+ * A new request is only started when another one finishes, so a large batch doesn't fill
+ * the dispatcher (or the rate limiter's queue) ahead of everything else.
+ */
+public class BatchFetcher<T> {
+
+    /**
+     * Starts an asynchronous request for the key and reports back through the callback exactly once.
+     */
+    public interface Fetcher<T> {
+        void fetch(String key, Callback<T> callback);
+    }
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(DataProviderError error);
+    }
+
+    public interface OnBatchListener<T> {
+        void onResult(String key, T result);
+
+        void onError(String key, DataProviderError error);
+
+        /**
+         * Called once after every started request has finished.
+         */
+        void onComplete(int succeeded, int failed);
+    }
+
+    private final ArrayDeque<String> pendingKeys;
+    private final int maxConcurrency;
+    private final Fetcher<T> fetcher;
+    private final OnBatchListener<T> onBatchListener;
+
+    private int inFlight;
+    private int succeeded;
+    private int failed;
+    private boolean cancelled;
+    private boolean completed;
+    private boolean draining;
+
+    private BatchFetcher(List<String> keys, int maxConcurrency, Fetcher<T> fetcher, OnBatchListener<T> onBatchListener) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.pendingKeys = new ArrayDeque<>(keys);
+        this.maxConcurrency = maxConcurrency;
+        this.fetcher = fetcher;
+        this.onBatchListener = onBatchListener;
+    }
+
+    /**
+     * Starts fetching the keys, the first maxConcurrency of them right away.
+     */
+    public static <T> BatchFetcher<T> start(List<String> keys, int maxConcurrency, Fetcher<T> fetcher, OnBatchListener<T> onBatchListener) {
+        BatchFetcher<T> batchFetcher = new BatchFetcher<>(keys, maxConcurrency, fetcher, onBatchListener);
+        batchFetcher.startNext();
+        return batchFetcher;
+    }
+
+    /**
+     * Stops starting new requests. Requests that are already in flight aren't cancelled, they
+     * still run and report their results, and {@link OnBatchListener#onComplete(int, int)} is
+     * called once they have.
+     */
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            pendingKeys.clear();
+        }
+        completeIfDone();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingKeys.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * Starts requests until maxConcurrency are in flight. Only one thread does this at a time.
+     * A fetcher that answers right away, like from a memory cache, finishes its request inside
+     * this loop, which then starts the next one instead of recursing once per key.
+     */
+    private void startNext() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        while (true) {
+            final String key;
+            synchronized (this) {
+                if (cancelled || inFlight >= maxConcurrency || pendingKeys.isEmpty()) {
+                    draining = false;
+                    break;
+                }
+                key = pendingKeys.poll();
+                inFlight++;
+            }
+            fetcher.fetch(key, new Callback<T>() {
+
+                private boolean reported;
+
+                @Override
+                public void onResult(T result) {
+                    if (markReported(true)) {
+                        onBatchListener.onResult(key, result);
+                        onFinished();
+                    }
+                }
+
+                @Override
+                public void onError(DataProviderError error) {
+                    if (markReported(false)) {
+                        onBatchListener.onError(key, error);
+                        onFinished();
+                    }
+                }
+
+                private boolean markReported(boolean success) {
+                    synchronized (BatchFetcher.this) {
+                        if (reported) {
+                            return false;
+                        }
+                        reported = true;
+                        if (success) {
+                            succeeded++;
+                        } else {
+                            failed++;
+                        }
+                        return true;
+                    }
+                }
+            });
+        }
+        completeIfDone();
+    }
+
+    private void onFinished() {
+        synchronized (this) {
+            inFlight--;
+        }
+        startNext();
+    }
+
+    private void completeIfDone() {
+        int succeeded;
+        int failed;
+        synchronized (this) {
+            if (completed || inFlight > 0 || !pendingKeys.isEmpty()) {
+                return;
+            }
+            completed = true;
+            succeeded = this.succeeded;
+            failed = this.failed;
+        }
+        onBatchListener.onComplete(succeeded, failed);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.util;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+
+/**
+ * How much the current network can take, as far as picking image sizes goes.
+ */
+public enum ConnectionQuality {
+
+    /**
+     * Wi-Fi or another connection that isn't billed by the byte.
+     */
+    UNMETERED,
+    METERED,
+    /**
+     * Too slow for anything but the smallest images, whatever it costs.
+     */
+    SLOW;
+
+    private static final int SLOW_DOWNSTREAM_KBPS = 2000;
+
+    public static ConnectionQuality of(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return UNMETERED;
+        }
+        if (isSlow(connectivityManager)) {
+            return SLOW;
+        }
+        return connectivityManager.isActiveNetworkMetered() ? METERED : UNMETERED;
+    }
+
+    private static boolean isSlow(ConnectivityManager connectivityManager) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network network = connectivityManager.getActiveNetwork();
+            NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+            if (capabilities != null) {
+                int downstreamKbps = capabilities.getLinkDownstreamBandwidthKbps();
+                return downstreamKbps > 0 && downstreamKbps < SLOW_DOWNSTREAM_KBPS;
+            }
+            return false;
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return false;
+        }
+        switch (networkInfo.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Helpers for the {@link CompletableFuture}s of the data layer: timeouts, which all share one
+ * scheduler thread, and the bounded executors that chained work runs on.
+ */
+public final class Futures {
+
+    private static final ScheduledExecutorService TIMEOUT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Futures timeout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private Futures() {
+    }
+
+    /**
+     * Fails the future with a {@link TimeoutException} if it hasn't completed within the timeout.
+     * Like {@code orTimeout}, which isn't available on older Android versions.
+     *
+     * @return the same future.
+     */
+    public static <T> CompletableFuture<T> withTimeout(final CompletableFuture<T> future, final long timeout, final TimeUnit unit) {
+        final ScheduledFuture<?> timeoutTask = TIMEOUT_SCHEDULER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.completeExceptionally(new TimeoutException("No result within " + unit.toMillis(timeout) + " ms"));
+            }
+        }, timeout, unit);
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable throwable) {
+                timeoutTask.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * A fixed size pool of daemon threads with a bounded queue. Work submitted while the queue
+     * is full is rejected with a {@link java.util.concurrent.RejectedExecutionException}
+     * instead of piling up.
+     */
+    public static ThreadPoolExecutor newBoundedExecutor(final String name, int threads, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " #" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -19,6 +19,8 @@ package com.musenkishi.wally.dataprovider.util;
 import android.net.Uri;
 import android.text.TextUtils;
 
+import com.musenkishi.wally.dataprovider.parsing.ApiSearchReader;
+import com.musenkishi.wally.dataprovider.parsing.ThumbListingScanner;
 import com.musenkishi.wally.models.Author;
 import com.musenkishi.wally.models.ExceptionReporter;
 import com.musenkishi.wally.models.Image;
@@ -28,13 +30,17 @@ import com.musenkishi.wally.models.Tag;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import okio.BufferedSource;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 
-import static com.musenkishi.wally.dataprovider.NetworkDataProvider.WALLHAVEN_BASE_URL;
+import static com.musenkishi.wally.dataprovider.util.WallhavenUrlBuilder.WALLHAVEN_BASE_URL;
 
 /**
  * A class for parsing data from Wallhaven to usable objects.
@@ -44,8 +50,28 @@ import static com.musenkishi.wally.dataprovider.NetworkDataProvider.WALLHAVEN_BA
  */
 public class Parser {
 
+    // Selectors for the wallpaper page, compiled once instead of on every page.
+    private static final String SIDEBAR_PROPERTIES_QUERY = "div.sidebar-section dl";
+    private static final Evaluator SIDEBAR_PROPERTIES = QueryParser.parse(SIDEBAR_PROPERTIES_QUERY);
+    private static final Evaluator ACTIVE_PURITY = QueryParser.parse("div.sidebar-section fieldset label.purity.active");
+    private static final Evaluator PURITY_FIELDSET = QueryParser.parse("div.sidebar-section fieldset");
+    private static final Evaluator WALLPAPER = QueryParser.parse("section#showcase img#wallpaper");
+    private static final Evaluator TAG_NAMES = QueryParser.parse("ul#tags li a.tagname");
+    private static final Evaluator LINK = QueryParser.parse("a");
+
+    /**
+     * The Properties labels in the order Wallhaven lists them, used if a page has no labels.
+     */
+    private static final String[] PROPERTY_LABELS_BY_INDEX = {
+            "Resolution", "Size", "Category", "Views", "Favorites", "Uploader", "Added", "Source", ""
+    };
+
     private final ExceptionReporter.OnReportListener onReportListener;
 
+    public interface OnImageParsedListener {
+        void onImageParsed(Image image);
+    }
+
     public Parser(ExceptionReporter.OnReportListener onReportListener) {
         this.onReportListener = onReportListener;
     }
@@ -79,6 +105,25 @@ public class Parser {
         return images;
     }
 
+    /**
+     * Scans a search or toplist page for thumbnails without building a DOM. Falls back to
+     * {@link #parseImages(String)} if the page contains markup the scanner doesn't recognize.
+     */
+    public ArrayList<Image> parseImages(BufferedSource source) throws IOException {
+        final ArrayList<Image> images = new ArrayList<Image>();
+        // Scanning a peek source keeps the bytes in the buffer in case jsoup has to read them again.
+        int count = ThumbListingScanner.scan(source.peek(), new ThumbListingScanner.OnThumbReadListener() {
+            @Override
+            public void onThumbRead(String id, String thumbUrl, String pageUrl, String resolution) {
+                images.add(Image.create(id, thumbUrl, pageUrl, resolution));
+            }
+        });
+        if (count == ThumbListingScanner.UNRECOGNIZED) {
+            return parseImages(source.readUtf8());
+        }
+        return images;
+    }
+
     public ArrayList<Image> parseImagesFromApi(String data) {
         ArrayList<Image> images = new ArrayList<Image>();
         try {
@@ -87,11 +132,23 @@ public class Parser {
             for (int i = 0; i < arr.length(); i++) {
                 JSONObject it = arr.getJSONObject(i);
                 String id = it.optString("id");
-                String thumbsSmall = it.optJSONObject("thumbs").optString("small");
+                JSONObject thumbs = it.optJSONObject("thumbs");
+                String thumbsSmall = thumbs.optString("small");
                 String pageUrl = "https://wallhaven.cc/w/" + id;
-                String resolution = it.optInt("width", 0) + " x " + it.optInt("height", 0);
+                String resolution = it.optInt("dimension_x", it.optInt("width", 0)) + " x "
+                        + it.optInt("dimension_y", it.optInt("height", 0));
                 if (!TextUtils.isEmpty(id) && !TextUtils.isEmpty(thumbsSmall)) {
-                    images.add(Image.create(id, thumbsSmall, pageUrl, resolution));
+                    ArrayList<String> colors = new ArrayList<String>();
+                    JSONArray colorArray = it.optJSONArray("colors");
+                    if (colorArray != null) {
+                        for (int c = 0; c < colorArray.length(); c++) {
+                            colors.add(colorArray.optString(c));
+                        }
+                    }
+                    images.add(Image.create(id, thumbsSmall, pageUrl, resolution,
+                            thumbs.optString("large", null), thumbs.optString("original", null),
+                            it.optString("path", null), it.optString("purity", null), it.optString("category", null),
+                            colors, it.optLong("file_size", 0), it.optString("file_type", null)));
                 }
             }
         } catch (Exception e) {
@@ -100,10 +157,44 @@ public class Parser {
         return images;
     }
 
+    public ArrayList<Image> parseImagesFromApi(BufferedSource source) {
+        return parseImagesFromApi(source, null);
+    }
+
+    /**
+     * Reads an API search response as it streams in, without building a JSON tree of it.
+     * Every image is passed to the listener as soon as it has been read.
+     */
+    public ArrayList<Image> parseImagesFromApi(BufferedSource source, final OnImageParsedListener onImageParsedListener) {
+        final ArrayList<Image> images = new ArrayList<Image>();
+        try {
+            ApiSearchReader.read(source, new ApiSearchReader.OnWallpaperReadListener() {
+                @Override
+                public void onWallpaperRead(ApiSearchReader.Wallpaper wallpaper) {
+                    if (!TextUtils.isEmpty(wallpaper.id) && !TextUtils.isEmpty(wallpaper.thumbUrls[0])) {
+                        String pageUrl = "https://wallhaven.cc/w/" + wallpaper.id;
+                        String resolution = wallpaper.width + " x " + wallpaper.height;
+                        Image image = Image.create(wallpaper.id, wallpaper.thumbUrls[0], pageUrl, resolution,
+                                wallpaper.thumbUrls[1], wallpaper.thumbUrls[2],
+                                wallpaper.path, wallpaper.purity, wallpaper.category,
+                                wallpaper.colors, wallpaper.fileSize, wallpaper.fileType);
+                        images.add(image);
+                        if (onImageParsedListener != null) {
+                            onImageParsedListener.onImageParsed(image);
+                        }
+                    }
+                }
+            });
+        } catch (Exception e) {
+            reportCrash("parseImagesFromApi", e);
+        }
+        return images;
+    }
+
     public ImagePage parseImagePage(String data, String url) {
         Document document = Jsoup.parse(data, WALLHAVEN_BASE_URL);
 
-        String title = document.head().select("title").text();
+        String title = document.title();
 
         //All titles from wallhaven ends with 'wallpaper (#123456) / Wallhaven.cc
         // which takes up unnecessary space.
@@ -112,67 +203,92 @@ public class Parser {
 
         String idUri = Uri.parse(url).getLastPathSegment();
 
-        String categoryMatch = "div.sidebar-section dl dd";
-        String category = "Unknown";
-        try {
-            Element categoryElement = document.select(categoryMatch).get(2);
-            category = categoryElement.text();
-        } catch (IndexOutOfBoundsException e) {
-            reportCrash(categoryMatch, e);
+        String category = null;
+        String uploader = null;
+        String uploadDate = null;
+        Author author = null;
+
+        // One pass over the Properties list. Fields are found by the label in front of them,
+        // or by their position if the list has no labels.
+        Element properties = document.selectFirst(SIDEBAR_PROPERTIES);
+        if (properties != null) {
+            String label = null;
+            int index = 0;
+            for (Element element : properties.children()) {
+                if (element.nameIs("dt")) {
+                    label = element.text().trim();
+                    continue;
+                }
+                if (!element.nameIs("dd")) {
+                    continue;
+                }
+                switch (label != null ? label : PROPERTY_LABELS_BY_INDEX[Math.min(index, PROPERTY_LABELS_BY_INDEX.length - 1)]) {
+                    case "Category":
+                        category = element.text();
+                        break;
+                    case "Uploader":
+                        uploader = element.text().trim();
+                        break;
+                    case "Added":
+                        uploadDate = element.text();
+                        break;
+                    case "Source":
+                        author = Author.create("Unknown", Uri.EMPTY);
+                        String linkText = element.text();
+                        if (!TextUtils.isEmpty(linkText)) {
+                            Element linkElement = element.selectFirst(LINK);
+                            String linkHref = linkElement != null ? linkElement.attr("href") : "";
+                            Uri uri = Uri.EMPTY;
+                            if (!TextUtils.isEmpty(linkHref)){
+                                uri = Uri.parse(linkHref);
+                            }
+                            author = Author.create(linkText, uri);
+                        }
+                        break;
+                }
+                index++;
+            }
+        }
+        if (category == null) {
+            category = "Unknown";
+            reportMissing("Category");
+        }
+        if (uploader == null) {
+            uploader = "Unknown";
+            reportMissing("Uploader");
+        }
+        if (uploadDate == null) {
+            uploadDate = "Unknown";
+            reportMissing("Added");
+        }
+        if (author == null) {
+            author = Author.create("Unknown", Uri.EMPTY);
+            reportMissing("Source");
         }
 
-        Element sfwElement = document.select("div.sidebar-section fieldset").first();
         String rating = "Unknown";
-        if (sfwElement != null) {
-            if (sfwElement.toString().contains("purity sfw")){
+        Element purityElement = document.selectFirst(ACTIVE_PURITY);
+        if (purityElement != null) {
+            if (purityElement.hasClass("sfw")) {
                 rating = "SFW";
-            } else if (sfwElement.toString().contains("purity sketchy")){
+            } else if (purityElement.hasClass("sketchy")) {
                 rating = "Sketchy";
+            } else if (purityElement.hasClass("nsfw")) {
+                rating = "NSFW";
             }
-        }
-
-        String uploaderMatch = "div.sidebar-section dl dd";
-        String uploader = "Unknown";
-        try {
-            Element uploaderElement = document.select(uploaderMatch).get(5);
-            uploader = uploaderElement.text();
-            if (uploader != null) {
-                uploader = uploader.trim();
-            }
-        } catch (IndexOutOfBoundsException e) {
-            reportCrash(uploaderMatch, e);
-        }
-
-        String uploadDateMatch = "div.sidebar-section dl dd";
-        String uploadDate = "Unknown";
-        try {
-            Element uploadDateElement = document.select(uploadDateMatch).get(6);
-            if (uploadDateElement.text() != null) {
-                uploadDate = uploadDateElement.text();
-            }
-        } catch (IndexOutOfBoundsException e) {
-            reportCrash(uploadDateMatch, e);
-        }
-
-        String sourceMatch = "div.sidebar-section dl dd";
-        Author author = Author.create("Unknown", Uri.EMPTY);
-        try {
-            Element sourceElement = document.select(sourceMatch).get(7);
-
-            String linkText = sourceElement.text();
-            String linkHref = sourceElement.select("a").attr("href");
-            if (!TextUtils.isEmpty(linkText)) {
-                Uri uri = Uri.EMPTY;
-                if (!TextUtils.isEmpty(linkHref)){
-                    uri = Uri.parse(linkHref);
+        } else {
+            // Pages that don't mark the active purity label are read the way they used to be.
+            Element sfwElement = document.selectFirst(PURITY_FIELDSET);
+            if (sfwElement != null) {
+                if (sfwElement.toString().contains("purity sfw")) {
+                    rating = "SFW";
+                } else if (sfwElement.toString().contains("purity sketchy")) {
+                    rating = "Sketchy";
                 }
-                author = Author.create(linkText, uri);
             }
-        } catch (IndexOutOfBoundsException e) {
-            reportCrash(sourceMatch, e);
         }
 
-        Element imageUrlElement = document.select("section#showcase img#wallpaper").first();
+        Element imageUrlElement = document.selectFirst(WALLPAPER);
         String resolution = "0 x 0";
         Uri imagePath = Uri.EMPTY;
         if (imageUrlElement != null) {
@@ -296,11 +412,7 @@ public class Parser {
 
         ArrayList<Tag> tags = new ArrayList<>();
 
-        Iterator thumbIterator = document.select("ul#tags li").iterator();
-
-        while (thumbIterator.hasNext()) {
-            Element wrapperElement = (Element) thumbIterator.next();
-            Element tagNameElement = wrapperElement.select("a.tagname").first();
+        for (Element tagNameElement : document.select(TAG_NAMES)) {
             String tagname = tagNameElement.text().trim();
             Tag tag = Tag.create(tagname);
             tags.add(tag);
@@ -313,4 +425,8 @@ public class Parser {
         onReportListener.report(getClass(), match, e.getMessage());
     }
 
+    private void reportMissing(String property) {
+        onReportListener.report(getClass(), SIDEBAR_PROPERTIES_QUERY, property + " not found");
+    }
+
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side token bucket for requests to Wallhaven, which answers with 429 once an
+ * API key goes over its budget. Requests wait in a priority queue until there is a token,
+ * so what the user is looking at is sent before prefetches and background work.
+ * <p>
+ * The bucket holds at most a minute's worth of tokens and refills continuously.
+ * After a 429, nothing is admitted until the time given by Retry-After has passed.
+ */
+public class RateLimiter {
+
+    /**
+     * Wallhaven's documented limit for API calls.
+     */
+    public static final int DEFAULT_REQUESTS_PER_MINUTE = 45;
+    public static final long DEFAULT_RETRY_AFTER_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    public enum Priority {
+        /**
+         * Content the user is waiting for, like the grid being shown or a page they opened.
+         */
+        VISIBLE,
+        /**
+         * Pages fetched ahead of time.
+         */
+        PREFETCH,
+        /**
+         * Work the user doesn't see, like Muzei updates.
+         */
+        BACKGROUND
+    }
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private final HashMap<String, Task> queuedTasks = new HashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "RateLimiter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private ScheduledFuture<?> scheduledDrain;
+
+    private double capacity;
+    private double tokens;
+    private double tokensPerNano;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+    private long sequence;
+
+    private long admittedCount;
+    private long throttledCount;
+    private int maxQueueDepth;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    public RateLimiter() {
+        this(DEFAULT_REQUESTS_PER_MINUTE);
+    }
+
+    public RateLimiter(int requestsPerMinute) {
+        lastRefillNanos = System.nanoTime();
+        pausedUntilNanos = lastRefillNanos;
+        setBudget(requestsPerMinute);
+        tokens = capacity;
+    }
+
+    /**
+     * Sets how many requests may be sent per minute.
+     */
+    public synchronized void setBudget(int requestsPerMinute) {
+        if (requestsPerMinute <= 0) {
+            throw new IllegalArgumentException("requestsPerMinute must be positive");
+        }
+        refill(System.nanoTime());
+        capacity = requestsPerMinute;
+        tokens = Math.min(tokens, capacity);
+        tokensPerNano = requestsPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+        drainLater(0);
+    }
+
+    /**
+     * Runs the task once a token is available. Tasks with the same key that are queued at the
+     * same time are expected to be one request; see {@link #promote(String, Priority)}.
+     * The task runs on the calling thread if it can be admitted right away, otherwise on the
+     * limiter's thread, so it should only start the request and return.
+     */
+    public void submit(String key, Priority priority, Runnable runnable) {
+        synchronized (this) {
+            Task task = new Task(key, priority, sequence++, System.nanoTime(), runnable);
+            queue.add(task);
+            if (key != null) {
+                queuedTasks.put(key, task);
+            }
+            maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+        }
+        drain();
+    }
+
+    /**
+     * Moves a queued task up to the given priority, used when someone starts waiting for a
+     * request that was queued with a lower priority, like a prefetch of the page being scrolled to.
+     */
+    public synchronized void promote(String key, Priority priority) {
+        Task task = queuedTasks.get(key);
+        if (task != null && priority.ordinal() < task.priority.ordinal()) {
+            queue.remove(task);
+            task.priority = priority;
+            queue.add(task);
+        }
+    }
+
+    /**
+     * Drops a queued task without spending a token, used when its request is cancelled.
+     * Only the task that was submitted with this runnable is dropped, not a newer one for the same key.
+     *
+     * @return true if the task was still waiting.
+     */
+    public synchronized boolean remove(String key, Runnable runnable) {
+        Task task = queuedTasks.get(key);
+        if (task == null || task.runnable != runnable) {
+            return false;
+        }
+        queuedTasks.remove(key);
+        return queue.remove(task);
+    }
+
+    /**
+     * Gives back the token of a request that didn't reach the network, like a cache hit.
+     */
+    public void refund() {
+        synchronized (this) {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+        drain();
+    }
+
+    /**
+     * Stops admitting requests after the server answered 429.
+     *
+     * @param retryAfterMillis the delay from the Retry-After header, or a negative value if it had none.
+     */
+    public synchronized void onTooManyRequests(long retryAfterMillis) {
+        throttledCount++;
+        if (retryAfterMillis < 0) {
+            retryAfterMillis = DEFAULT_RETRY_AFTER_MILLIS;
+        }
+        long now = System.nanoTime();
+        pausedUntilNanos = Math.max(pausedUntilNanos, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        // The server says the budget is spent, whatever our count is.
+        refill(now);
+        tokens = 0;
+    }
+
+    private void drain() {
+        List<Runnable> admitted = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            while (!queue.isEmpty() && now >= pausedUntilNanos && tokens >= 1) {
+                Task task = queue.poll();
+                if (task.key != null && queuedTasks.get(task.key) == task) {
+                    queuedTasks.remove(task.key);
+                }
+                tokens--;
+                admittedCount++;
+                long wait = now - task.enqueuedNanos;
+                totalWaitNanos += wait;
+                maxWaitNanos = Math.max(maxWaitNanos, wait);
+                admitted.add(task.runnable);
+            }
+            if (!queue.isEmpty()) {
+                long untilToken = (long) Math.ceil((1 - tokens) / tokensPerNano);
+                drainLater(Math.max(pausedUntilNanos - now, untilToken));
+            }
+        }
+        for (Runnable runnable : admitted) {
+            runnable.run();
+        }
+    }
+
+    private synchronized void drainLater(long delayNanos) {
+        if (scheduledDrain != null && !scheduledDrain.isDone()) {
+            if (scheduledDrain.getDelay(TimeUnit.NANOSECONDS) <= delayNanos) {
+                return;
+            }
+            scheduledDrain.cancel(false);
+        }
+        scheduledDrain = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RateLimiter.this) {
+                    scheduledDrain = null;
+                }
+                drain();
+            }
+        }, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Requests waiting for a token.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    /**
+     * Number of 429 responses.
+     */
+    public synchronized long getThrottledCount() {
+        return throttledCount;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+        if (admittedCount == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / admittedCount);
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "queued: " + queue.size()
+                + ", max queued: " + maxQueueDepth
+                + ", admitted: " + admittedCount
+                + ", throttled: " + throttledCount
+                + ", average wait: " + getAverageWaitMillis() + " ms"
+                + ", max wait: " + getMaxWaitMillis() + " ms";
+    }
+
+    private static class Task implements Comparable<Task> {
+
+        private final String key;
+        private final long sequence;
+        private final long enqueuedNanos;
+        private final Runnable runnable;
+        private Priority priority;
+
+        private Task(String key, Priority priority, long sequence, long enqueuedNanos, Runnable runnable) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.enqueuedNanos = enqueuedNanos;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.util;
+
+import com.musenkishi.wally.dataprovider.NetworkDataProvider.OnResultReceivedListener;
+import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import okhttp3.HttpUrl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes concurrent requests for the same resource share one network call.
+ * The first caller for a key performs the request, everyone registering for the same key
+ * before it completes gets the same parsed result.
+ */
+public class RequestCoalescer {
+
+    private final HashMap<String, List<OnResultReceivedListener<?>>> inFlightRequests = new HashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong collapsedCount = new AtomicLong();
+
+    /**
+     * Builds the key two requests have to share to be coalesced. The query parameters are sorted
+     * so that the same filters in a different order end up on the same call.
+     */
+    public static String createKey(String url, String apiKey, Object responseParser) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        String canonicalUrl = url;
+        if (httpUrl != null) {
+            List<String> parameters = new ArrayList<>(httpUrl.querySize());
+            for (int i = 0; i < httpUrl.querySize(); i++) {
+                parameters.add(httpUrl.queryParameterName(i) + "=" + httpUrl.queryParameterValue(i));
+            }
+            Collections.sort(parameters);
+            canonicalUrl = httpUrl.newBuilder().query(null).fragment(null).build() + "?" + parameters;
+        }
+        return responseParser.getClass().getName() + "|" + apiKey + "|" + canonicalUrl;
+    }
+
+    /**
+     * Adds a caller for the key.
+     *
+     * @return true if no request is running for the key and the caller has to perform it,
+     * followed by a call to {@link #complete(String, Object, String)} or {@link #fail(String, DataProviderError)}.
+     */
+    public synchronized <T> boolean register(String key, OnResultReceivedListener<T> listener) {
+        requestCount.incrementAndGet();
+        List<OnResultReceivedListener<?>> listeners = inFlightRequests.get(key);
+        if (listeners != null) {
+            collapsedCount.incrementAndGet();
+            listeners.add(listener);
+            return false;
+        }
+        listeners = new ArrayList<>();
+        listeners.add(listener);
+        inFlightRequests.put(key, listeners);
+        return true;
+    }
+
+    /**
+     * Removes a caller that isn't interested in the result anymore.
+     *
+     * @return true if it was the last caller for the key, so the request can be cancelled.
+     */
+    public synchronized boolean unregister(String key, OnResultReceivedListener<?> listener) {
+        List<OnResultReceivedListener<?>> listeners = inFlightRequests.get(key);
+        if (listeners == null || !listeners.remove(listener)) {
+            return false;
+        }
+        if (listeners.isEmpty()) {
+            inFlightRequests.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> void complete(String key, T result, String url) {
+        for (OnResultReceivedListener<?> listener : remove(key)) {
+            if (listener != null) {
+                ((OnResultReceivedListener<T>) listener).onResult(result, url);
+            }
+        }
+    }
+
+    public void fail(String key, DataProviderError error) {
+        for (OnResultReceivedListener<?> listener : remove(key)) {
+            if (listener != null) {
+                listener.onError(error);
+            }
+        }
+    }
+
+    private synchronized List<OnResultReceivedListener<?>> remove(String key) {
+        List<OnResultReceivedListener<?>> listeners = inFlightRequests.remove(key);
+        if (listeners == null) {
+            return Collections.emptyList();
+        }
+        return listeners;
+    }
+
+    /**
+     * Number of requests that went through the coalescer.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of requests that were answered by another caller's network call.
+     */
+    public long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlightRequests.size();
+    }
+
+    @Override
+    public String toString() {
+        return "requests: " + getRequestCount() + ", collapsed: " + getCollapsedCount() + ", in flight: " + getInFlightCount();
+    }
+
+    /**
+     * A listener that lets a synchronous caller wait for a result delivered by another thread.
+     */
+    public static class BlockingListener<T> implements OnResultReceivedListener<T> {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile T result;
+
+        @Override
+        public void onResult(T result, String url) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        @Override
+        public void onError(DataProviderError error) {
+            latch.countDown();
+        }
+
+        /**
+         * Blocks until the request is done or the timeout has passed.
+         *
+         * @return the result, or null if the request failed, timed out or the thread was interrupted.
+         */
+        public T await(long timeout, TimeUnit unit) {
+            try {
+                if (!latch.await(timeout, unit)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return result;
+        }
+    }
+}
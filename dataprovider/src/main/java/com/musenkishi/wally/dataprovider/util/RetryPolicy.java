@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * How often, and how long, a failed GET is tried again. Delays grow exponentially from
+ * baseDelayMillis and are drawn at random below that bound ("full jitter"), so clients that
+ * failed together don't come back together.
+ */
+public class RetryPolicy {
+
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long deadlineMillis;
+
+    /**
+     * @param maxAttempts    the number of times a request is sent, including the first one.
+     * @param deadlineMillis no retry is started if it couldn't begin within this long of the first attempt.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long deadlineMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * A policy that never retries.
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy(1, 0, 0, 0);
+    }
+
+    /**
+     * Returns a random delay before the given retry, where 1 is the first retry.
+     */
+    public long getDelayMillis(int retry) {
+        long bound = baseDelayMillis << Math.min(retry - 1, 20);
+        bound = Math.min(maxDelayMillis, bound);
+        if (bound <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * @param attempts      how many times the request has been sent.
+     * @param elapsedMillis time since the first attempt was started.
+     * @param delayMillis   how long the next attempt would wait.
+     */
+    public boolean shouldRetry(int attempts, long elapsedMillis, long delayMillis) {
+        return attempts < maxAttempts && elapsedMillis + delayMillis <= deadlineMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Whether a response with this status might succeed if sent again: timeouts, throttling
+     * and server errors. Other client errors won't change by retrying.
+     */
+    public static boolean isRetryable(int httpStatusCode) {
+        switch (httpStatusCode) {
+            case HttpURLConnection.HTTP_CLIENT_TIMEOUT:
+            case HTTP_TOO_MANY_REQUESTS:
+            case HttpURLConnection.HTTP_INTERNAL_ERROR:
+            case HttpURLConnection.HTTP_BAD_GATEWAY:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+            case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a request that failed with this exception might succeed if sent again. Only
+     * transport failures are: timeouts, refused or reset connections, DNS failures and
+     * HTTP/2 streams that were reset. They usually pass on mobile networks. A body that can't
+     * be parsed or a certificate that doesn't match won't change by downloading it again, so
+     * a TLS failure only counts if a transport failure caused it.
+     * <p>
+     * A cancelled call also ends with an IOException; callers have to check for that themselves.
+     */
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof InterruptedIOException) {
+            // Includes SocketTimeoutException and OkHttp's call timeout.
+            return true;
+        }
+        if (e instanceof SocketException || e instanceof UnknownHostException) {
+            // Includes ConnectException, NoRouteToHostException and connection resets.
+            return true;
+        }
+        if (e instanceof SSLException) {
+            Throwable cause = e.getCause();
+            return cause instanceof IOException && !(cause instanceof SSLException) && isRetryable((IOException) cause);
+        }
+        if (isOkHttpStreamFailure(e)) {
+            return true;
+        }
+        // The connection closed before the whole body had arrived.
+        return e instanceof ProtocolException && e.getMessage() != null && e.getMessage().startsWith("unexpected end of stream");
+    }
+
+    /**
+     * OkHttp's StreamResetException and ConnectionShutdownException. They're internal classes
+     * that may move between versions, so they are matched by name.
+     */
+    private static boolean isOkHttpStreamFailure(IOException e) {
+        String name = e.getClass().getSimpleName();
+        return name.equals("StreamResetException") || name.equals("ConnectionShutdownException");
+    }
+
+    @Override
+    public String toString() {
+        return "attempts: " + maxAttempts
+                + ", base delay: " + baseDelayMillis + " ms"
+                + ", max delay: " + maxDelayMillis + " ms"
+                + ", deadline: " + deadlineMillis + " ms";
+    }
+}
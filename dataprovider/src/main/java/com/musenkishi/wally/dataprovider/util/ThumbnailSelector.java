@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.dataprovider.util;
+
+import com.musenkishi.wally.models.ThumbnailVariant;
+
+/**
+ * Picks the thumbnail to show in a grid cell: the smallest one that is at least as wide as
+ * the cell, so phones don't download more than they can show and tablets don't scale up small
+ * thumbnails. The cell size is in pixels, so the screen density is already part of it.
+ * <p>
+ * On a metered connection a thumbnail may be up to a third narrower than the cell, and on a slow
+ * one the smallest thumbnail is always used.
+ */
+public final class ThumbnailSelector {
+
+    private ThumbnailSelector() {
+    }
+
+    public static ThumbnailVariant select(int cellSize, ConnectionQuality connectionQuality) {
+        if (connectionQuality == ConnectionQuality.SLOW) {
+            return ThumbnailVariant.SMALL;
+        }
+        int requiredWidth = connectionQuality == ConnectionQuality.METERED ? cellSize * 2 / 3 : cellSize;
+
+        ThumbnailVariant largest = ThumbnailVariant.SMALL;
+        for (ThumbnailVariant variant : ThumbnailVariant.values()) {
+            if (variant.getWidth() == 0) {
+                continue;
+            }
+            if (variant.getWidth() >= requiredWidth) {
+                return variant;
+            }
+            if (variant.getWidth() > largest.getWidth()) {
+                largest = variant;
+            }
+        }
+        return largest;
+    }
+}
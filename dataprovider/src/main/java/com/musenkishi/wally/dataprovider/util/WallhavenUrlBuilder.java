@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.musenkishi.wally.dataprovider.util;
+
+import com.musenkishi.wally.models.filters.FilterAspectRatioKeys;
+import com.musenkishi.wally.models.filters.FilterBoardsKeys;
+import com.musenkishi.wally.models.filters.FilterGroupsStructure;
+import com.musenkishi.wally.models.filters.FilterPurityKeys;
+import com.musenkishi.wally.models.filters.FilterResolutionKeys;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Builds Wallhaven listing and API urls. Everything up to the page number only depends on the
+ * path and the filter settings, which hardly ever change while scrolling, so that part is encoded
+ * once and kept for the most recently used filter values. A page request then only appends the
+ * page number, the query and the color.
+ * <p>
+ * Filter settings are compared by value, a new {@link FilterGroupsStructure} with the same
+ * filters hits the same entry.
+ */
+public class WallhavenUrlBuilder {
+
+    public static final String WALLHAVEN_BASE_URL = "https://wallhaven.cc/";
+    public static final String PATH_TOPLIST = "toplist";
+    public static final String PATH_RANDOM = "random";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_LATEST = "latest";
+
+    public static final int DEFAULT_CACHE_SIZE = 8;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Most recently used first.
+     */
+    private final Prefix[] prefixes;
+    private int prefixCount;
+
+    private long hitCount;
+    private long missCount;
+
+    public WallhavenUrlBuilder() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize how many filter combinations to keep, 0 encodes the filters on every call.
+     */
+    public WallhavenUrlBuilder(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cacheSize must not be negative");
+        }
+        prefixes = new Prefix[cacheSize];
+    }
+
+    /**
+     * The url of a page of thumbnails on the website. Toplist has its own page, everything else
+     * goes through search with a sorting that matches the path.
+     */
+    public String listingUrl(int page, String path, FilterGroupsStructure filterGroupsStructure, String query, String color) {
+        String prefix = getPrefix(false, path, filterGroupsStructure);
+        StringBuilder builder = newBuilder(prefix, query, color);
+        builder.append(page);
+        appendOptionalParameter(builder, "color", color);
+        appendOptionalParameter(builder, "q", query);
+        return builder.toString();
+    }
+
+    /**
+     * The url of a page of search results from the API.
+     */
+    public String apiSearchUrl(int page, String path, FilterGroupsStructure filterGroupsStructure, String query, String color) {
+        String prefix = getPrefix(true, path, filterGroupsStructure);
+        StringBuilder builder = newBuilder(prefix, query, color);
+        builder.append(page);
+        appendOptionalParameter(builder, "q", query);
+        appendOptionalParameter(builder, "color", color);
+        return builder.toString();
+    }
+
+    /**
+     * The url of a single wallpaper from the API. The id is used as it is.
+     */
+    public static String apiWallpaperUrl(String wallpaperId) {
+        return WALLHAVEN_BASE_URL + "api/v1/w/" + wallpaperId;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cached: " + prefixCount
+                + ", hits: " + hitCount
+                + ", misses: " + missCount;
+    }
+
+    private String getPrefix(boolean api, String path, FilterGroupsStructure filterGroupsStructure) {
+        String boards = filterGroupsStructure.getBoardsFilter();
+        String purity = filterGroupsStructure.getPurityFilter();
+        String resolution = filterGroupsStructure.getResolutionFilter().getValue();
+        String ratio = filterGroupsStructure.getAspectRatioFilter().getValue();
+
+        synchronized (this) {
+            for (int i = 0; i < prefixCount; i++) {
+                Prefix prefix = prefixes[i];
+                if (prefix.matches(api, path, boards, purity, resolution, ratio)) {
+                    hitCount++;
+                    // Move to the front so the filters in use are never the ones evicted.
+                    System.arraycopy(prefixes, 0, prefixes, 1, i);
+                    prefixes[0] = prefix;
+                    return prefix.encoded;
+                }
+            }
+            missCount++;
+        }
+
+        String encoded = api
+                ? encodeApiPrefix(path, boards, purity, resolution, ratio)
+                : encodeListingPrefix(path, boards, purity, resolution, ratio);
+
+        synchronized (this) {
+            if (prefixes.length > 0) {
+                int moved = Math.min(prefixCount, prefixes.length - 1);
+                System.arraycopy(prefixes, 0, prefixes, 1, moved);
+                prefixes[0] = new Prefix(api, path, boards, purity, resolution, ratio, encoded);
+                prefixCount = moved + 1;
+            }
+        }
+        return encoded;
+    }
+
+    private static String encodeListingPrefix(String path, String boards, String purity, String resolution, String ratio) {
+        StringBuilder builder = new StringBuilder(128).append(WALLHAVEN_BASE_URL);
+        if (PATH_TOPLIST.equalsIgnoreCase(path)) {
+            builder.append(path);
+            appendFirstParameter(builder, FilterBoardsKeys.PARAMETER_KEY, boards);
+            appendParameter(builder, FilterPurityKeys.PARAMETER_KEY, purity);
+            appendParameter(builder, FilterResolutionKeys.PARAMETER_KEY, resolution);
+            appendParameter(builder, FilterAspectRatioKeys.PARAMETER_KEY, ratio);
+        } else {
+            String sorting = "views";
+            if (PATH_SEARCH.equalsIgnoreCase(path)) {
+                sorting = "relevance";
+            } else if (PATH_RANDOM.equalsIgnoreCase(path)) {
+                sorting = "random";
+            } else if (PATH_LATEST.equalsIgnoreCase(path)) {
+                sorting = "date_added";
+            }
+            builder.append("search");
+            appendFirstParameter(builder, FilterBoardsKeys.PARAMETER_KEY, boards);
+            appendParameter(builder, FilterResolutionKeys.PARAMETER_KEY, resolution);
+            appendParameter(builder, FilterPurityKeys.PARAMETER_KEY, purity);
+            appendParameter(builder, FilterAspectRatioKeys.PARAMETER_KEY, ratio);
+            appendParameter(builder, "sorting", sorting);
+            appendParameter(builder, "order", "desc");
+        }
+        return builder.append("&page=").toString();
+    }
+
+    private static String encodeApiPrefix(String path, String boards, String purity, String resolution, String ratio) {
+        String sorting = "views";
+        if (PATH_SEARCH.equalsIgnoreCase(path)) {
+            sorting = "relevance";
+        } else if (PATH_RANDOM.equalsIgnoreCase(path)) {
+            sorting = "random";
+        } else if (PATH_LATEST.equalsIgnoreCase(path)) {
+            sorting = "date_added";
+        } else if (PATH_TOPLIST.equalsIgnoreCase(path)) {
+            sorting = "toplist";
+        }
+
+        StringBuilder builder = new StringBuilder(128).append(WALLHAVEN_BASE_URL).append("api/v1/search");
+        appendFirstParameter(builder, FilterBoardsKeys.PARAMETER_KEY, boards);
+        appendParameter(builder, FilterPurityKeys.PARAMETER_KEY, purity);
+        appendParameter(builder, FilterResolutionKeys.PARAMETER_KEY, resolution);
+        appendParameter(builder, FilterAspectRatioKeys.PARAMETER_KEY, ratio);
+        appendParameter(builder, "sorting", sorting);
+        appendParameter(builder, "order", "desc");
+        return builder.append("&page=").toString();
+    }
+
+    private static StringBuilder newBuilder(String prefix, String query, String color) {
+        // Room for the page number and both optional parameters, so the builder never grows.
+        int capacity = prefix.length() + 11;
+        if (query != null) {
+            capacity += 3 + query.length() * 3;
+        }
+        if (color != null) {
+            capacity += 7 + color.length() * 3;
+        }
+        return new StringBuilder(capacity).append(prefix);
+    }
+
+    private static void appendFirstParameter(StringBuilder builder, String key, String value) {
+        builder.append('?');
+        encode(builder, key);
+        builder.append('=');
+        encode(builder, value);
+    }
+
+    private static void appendOptionalParameter(StringBuilder builder, String key, String value) {
+        if (value != null) {
+            appendParameter(builder, key, value);
+        }
+    }
+
+    private static void appendParameter(StringBuilder builder, String key, String value) {
+        builder.append('&');
+        encode(builder, key);
+        builder.append('=');
+        encode(builder, value);
+    }
+
+    /**
+     * Percent-encodes the value the way android.net.Uri.encode does: letters, digits and
+     * "_-!.~'()*" are kept, everything else is encoded as UTF-8. A null value is written as "null",
+     * like Uri.Builder did.
+     */
+    public static void encode(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        int length = value.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && isAllowed(value.charAt(end))) {
+                end++;
+            }
+            builder.append(value, start, end);
+            if (end == length) {
+                return;
+            }
+            start = end;
+            while (end < length && !isAllowed(value.charAt(end))) {
+                end++;
+            }
+            byte[] bytes = value.substring(start, end).getBytes(StandardCharsets.UTF_8);
+            for (byte b : bytes) {
+                builder.append('%')
+                        .append(HEX_DIGITS[(b >> 4) & 0xF])
+                        .append(HEX_DIGITS[b & 0xF]);
+            }
+            start = end;
+        }
+    }
+
+    private static boolean isAllowed(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || "_-!.~'()*".indexOf(c) != -1;
+    }
+
+    private static class Prefix {
+
+        private final boolean api;
+        private final String path;
+        private final String boards;
+        private final String purity;
+        private final String resolution;
+        private final String ratio;
+        private final String encoded;
+
+        private Prefix(boolean api, String path, String boards, String purity, String resolution, String ratio, String encoded) {
+            this.api = api;
+            this.path = path;
+            this.boards = boards;
+            this.purity = purity;
+            this.resolution = resolution;
+            this.ratio = ratio;
+            this.encoded = encoded;
+        }
+
+        private boolean matches(boolean api, String path, String boards, String purity, String resolution, String ratio) {
+            return this.api == api
+                    && Objects.equals(this.path, path)
+                    && Objects.equals(this.boards, boards)
+                    && Objects.equals(this.purity, purity)
+                    && Objects.equals(this.resolution, resolution)
+                    && Objects.equals(this.ratio, ratio);
+        }
+    }
+}
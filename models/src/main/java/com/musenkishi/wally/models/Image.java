@@ -19,6 +19,8 @@ package com.musenkishi.wally.models;
 import android.net.Uri;
 import android.os.Parcelable;
 
+import java.util.ArrayList;
+
 import auto.parcel.AutoParcel;
 
 /**
@@ -34,9 +36,72 @@ public abstract class Image implements Parcelable {
     public abstract String thumbURL();
     public abstract String imagePageURL();
     public abstract String resolution();
+    public abstract String largeThumbURL();
+    public abstract String originalThumbURL();
 
+    /**
+     * The url of the wallpaper itself, not a thumbnail. This and the fields below are only known
+     * for images from an API search, they are empty (or 0) for images scraped from the website.
+     */
+    public abstract String fullImageURL();
+    /**
+     * "sfw", "sketchy" or "nsfw".
+     */
+    public abstract String purity();
+    public abstract String category();
+    /**
+     * The main colors as hex values, like "#cc6633".
+     */
+    public abstract ArrayList<String> colors();
+    public abstract long fileSize();
+    /**
+     * The mime type, like "image/jpeg".
+     */
+    public abstract String fileType();
+
+    /**
+     * Creates an image from its small thumbnail. The other variants are derived from its url,
+     * or are the small one if the url doesn't look like a Wallhaven thumbnail.
+     */
     public static Image create(String imageId, String thumbURL, String imageURL, String resolution) {
-        return new AutoParcel_Image(imageId, thumbURL, imageURL, resolution);
+        return create(imageId, thumbURL, imageURL, resolution,
+                ThumbnailVariant.LARGE.fromSmallURL(thumbURL),
+                ThumbnailVariant.ORIGINAL.fromSmallURL(thumbURL));
+    }
+
+    /**
+     * A null large or original url falls back to the small one.
+     */
+    public static Image create(String imageId, String thumbURL, String imageURL, String resolution, String largeThumbURL, String originalThumbURL) {
+        return create(imageId, thumbURL, imageURL, resolution, largeThumbURL, originalThumbURL,
+                null, null, null, null, 0, null);
+    }
+
+    /**
+     * An image with everything an API search knows about it. Null values are stored as empty.
+     */
+    public static Image create(String imageId, String thumbURL, String imageURL, String resolution, String largeThumbURL, String originalThumbURL,
+                               String fullImageURL, String purity, String category, ArrayList<String> colors, long fileSize, String fileType) {
+        return new AutoParcel_Image(imageId, thumbURL, imageURL, resolution,
+                largeThumbURL != null ? largeThumbURL : thumbURL,
+                originalThumbURL != null ? originalThumbURL : thumbURL,
+                fullImageURL != null ? fullImageURL : "",
+                purity != null ? purity : "",
+                category != null ? category : "",
+                colors != null ? colors : new ArrayList<String>(),
+                fileSize,
+                fileType != null ? fileType : "");
+    }
+
+    public String getThumbURL(ThumbnailVariant variant) {
+        switch (variant) {
+            case LARGE:
+                return largeThumbURL();
+            case ORIGINAL:
+                return originalThumbURL();
+            default:
+                return thumbURL();
+        }
     }
 
     public int getWidth(){
@@ -67,6 +132,18 @@ public abstract class Image implements Parcelable {
         }
     }
 
+    /**
+     * True if the url of the wallpaper is known, so it can be saved or set without
+     * fetching its page first.
+     */
+    public boolean hasFullImage() {
+        return fullImageURL().length() > 0;
+    }
+
+    public Uri getFullImageUri() {
+        return Uri.parse(fullImageURL());
+    }
+
     /**
      * Builds and returns the image page URL as a Uri with the scheme replaced with 'wally://'.
      */
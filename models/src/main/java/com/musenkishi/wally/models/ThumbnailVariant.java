@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.musenkishi.wally.models;
+
+/**
+ * The thumbnail sizes Wallhaven serves for every wallpaper. Small and large are cropped to 3:2,
+ * original keeps the aspect ratio of the wallpaper.
+ */
+public enum ThumbnailVariant {
+
+    SMALL("small", 300),
+    LARGE("lg", 640),
+    /**
+     * Its width depends on the aspect ratio, so it isn't used to fill grid cells.
+     */
+    ORIGINAL("orig", 0);
+
+    private final String pathSegment;
+    private final int width;
+
+    ThumbnailVariant(String pathSegment, int width) {
+        this.pathSegment = pathSegment;
+        this.width = width;
+    }
+
+    /**
+     * Width in pixels, or 0 if it depends on the wallpaper.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Turns a small thumbnail url, like https://th.wallhaven.cc/small/ab/abc123.jpg, into the url of
+     * this variant.
+     *
+     * @return the url, or null if the url isn't a small Wallhaven thumbnail.
+     */
+    public String fromSmallURL(String smallURL) {
+        if (smallURL == null) {
+            return null;
+        }
+        String smallSegment = "/" + SMALL.pathSegment + "/";
+        int index = smallURL.indexOf(smallSegment);
+        if (index == -1) {
+            return null;
+        }
+        return smallURL.substring(0, index + 1) + pathSegment + smallURL.substring(index + smallSegment.length() - 1);
+    }
+}
@@ -18,7 +18,6 @@ package com.musenkishi.wally.activities;
 
 import android.animation.Animator;
 import android.animation.ValueAnimator;
-import android.app.DownloadManager;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -73,7 +72,9 @@ import com.musenkishi.wally.base.WallyApplication;
 import com.musenkishi.wally.dataprovider.DataProvider;
 import com.musenkishi.wally.dataprovider.FileManager;
 import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.models.DataProviderException;
 import com.musenkishi.wally.dataprovider.models.SaveImageRequest;
+import com.musenkishi.wally.dataprovider.util.RateLimiter;
 import com.musenkishi.wally.fragments.SearchFragment;
 import com.musenkishi.wally.models.Author;
 import com.musenkishi.wally.models.Image;
@@ -87,6 +88,10 @@ import com.musenkishi.wally.views.ObservableScrollView;
 
 import uk.co.senab.photoview.PhotoViewAttacher;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
 import static com.musenkishi.wally.views.ObservableScrollView.ScrollViewListener;
 
 /**
@@ -95,7 +100,6 @@ import static com.musenkishi.wally.views.ObservableScrollView.ScrollViewListener
  */
 public class ImageDetailsActivity extends BaseActivity implements Handler.Callback {
 
-    private static final int MSG_GET_PAGE = 130;
     private static final int MSG_PAGE_FETCHED = 417892;
     private static final int MSG_PAGE_ERROR = 417891;
     private static final int MSG_IMAGE_REQUEST_READY_FOR_SETTING = 987484;
@@ -116,6 +120,7 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
 
     private Handler uiHandler;
     private Handler backgroundHandler;
+    private CompletableFuture<ImagePage> pageFuture;
 
     private ObservableScrollView scrollView;
     private ImageView photoView;
@@ -133,6 +138,10 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
     private Button buttonSetAs;
     private Button buttonSave;
     private ImagePage imagePage;
+    /**
+     * The grid item that was opened, or null if the screen was opened from a link.
+     */
+    private Image image;
     private ViewGroup imageHolder;
     private ViewGroup photoLayoutHolder;
 
@@ -201,7 +210,7 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
         Size size = new Size(16, 9);
 
         if (intent.hasExtra(INTENT_EXTRA_IMAGE)) {
-            final Image image = intent.getParcelableExtra(INTENT_EXTRA_IMAGE);
+            image = intent.getParcelableExtra(INTENT_EXTRA_IMAGE);
             final Bitmap thumbBitmap = WallyApplication.getBitmapThumb();
 
             if (thumbBitmap != null) {
@@ -354,6 +363,9 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
     @Override
     protected void onDestroy() {
         Glide.with(getApplicationContext()).clear(photoView);
+        if (pageFuture != null) {
+            pageFuture.cancel(false);
+        }
         backgroundHandler.removeCallbacksAndMessages(null);
         uiHandler.removeCallbacksAndMessages(null);
         backgroundHandler.getLooper().quit();
@@ -479,10 +491,30 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
     }
 
     private void getPage(String url) {
-        Message msgGetPage = backgroundHandler.obtainMessage();
-        msgGetPage.what = MSG_GET_PAGE;
-        msgGetPage.obj = url;
-        backgroundHandler.sendMessage(msgGetPage);
+        if (url == null) {
+            return;
+        }
+        if (pageFuture != null) {
+            pageFuture.cancel(false);
+        }
+        pageFuture = WallyApplication.getDataProviderInstance().getPageDataAsync(url);
+        pageFuture.whenComplete(new BiConsumer<ImagePage, Throwable>() {
+            @Override
+            public void accept(ImagePage imagePage, Throwable throwable) {
+                if (throwable instanceof CancellationException) {
+                    return;
+                }
+                Message msgObj = uiHandler.obtainMessage();
+                if (throwable == null) {
+                    msgObj.what = MSG_PAGE_FETCHED;
+                    msgObj.obj = imagePage;
+                } else {
+                    msgObj.what = MSG_PAGE_ERROR;
+                    msgObj.obj = DataProviderException.errorOf(throwable);
+                }
+                uiHandler.sendMessage(msgObj);
+            }
+        });
     }
 
     private void setupHandlers() {
@@ -692,12 +724,25 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
             return;
         }
 
+        // An image from an API search knows its url, so saving doesn't have to wait for the page.
+        Uri imagePath;
+        if (imagePage != null) {
+            imagePath = imagePage.imagePath();
+        } else if (image != null && image.hasFullImage()) {
+            imagePath = image.getFullImageUri();
+        } else {
+            return;
+        }
+
         SaveImageRequest saveImageRequest = WallyApplication
                 .getDataProviderInstance()
                 .downloadImageIfNeeded(
-                        imagePage.imagePath(),
+                        imagePath,
                         pageUri.getLastPathSegment(),
-                        getResources().getString(R.string.notification_title_image_saving));
+                        getResources().getString(R.string.notification_title_image_saving),
+                        handlerCode == MSG_IMAGE_REQUEST_READY_FOR_SETTING
+                                ? RateLimiter.Priority.VISIBLE
+                                : RateLimiter.Priority.BACKGROUND);
 
         if (saveImageRequest.getDownloadID() != null) {
             WallyApplication.getDownloadIDs().put(saveImageRequest.getDownloadID(), pageUri.getLastPathSegment());
@@ -708,7 +753,7 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
 
     @Override
     protected void handleReceivedIntent(Context context, Intent intent) {
-        long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0L);
+        long id = intent.getLongExtra(DataProvider.EXTRA_DOWNLOAD_ID, 0L);
         if (WallyApplication.getDownloadIDs().containsKey(id)) {
             WallyApplication.getDownloadIDs().remove(id);
             updateSaveButton();
@@ -916,31 +961,6 @@ public class ImageDetailsActivity extends BaseActivity implements Handler.Callba
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
 
-            case MSG_GET_PAGE:
-                String url = (String) msg.obj;
-                if (url != null) {
-                    WallyApplication.getDataProviderInstance().getPageData(
-                            url,
-                            new DataProvider.OnPageReceivedListener() {
-                                @Override
-                                public void onPageReceived(ImagePage imagePage) {
-                                    Message msgObj = uiHandler.obtainMessage();
-                                    msgObj.what = MSG_PAGE_FETCHED;
-                                    msgObj.obj = imagePage;
-                                    uiHandler.sendMessage(msgObj);
-                                }
-
-                                @Override
-                                public void onError(DataProviderError error) {
-                                    Message msgObj = uiHandler.obtainMessage();
-                                    msgObj.what = MSG_PAGE_ERROR;
-                                    msgObj.obj = error;
-                                    uiHandler.sendMessage(msgObj);
-                                }
-                            });
-                }
-                break;
-
             case MSG_SAVE_TO_FILE:
                 int what = msg.arg1;
                 saveToFile(what);
@@ -16,7 +16,6 @@
 
 package com.musenkishi.wally.activities;
 
-import android.app.DownloadManager;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -35,6 +34,7 @@ import com.musenkishi.wally.adapters.SmartFragmentPagerAdapter;
 import com.musenkishi.wally.base.BaseActivity;
 import com.musenkishi.wally.base.BaseFragment;
 import com.musenkishi.wally.base.WallyApplication;
+import com.musenkishi.wally.dataprovider.DataProvider;
 import com.musenkishi.wally.observers.FileReceiver;
 import com.musenkishi.wally.observers.FiltersChangeReceiver;
 import com.musenkishi.wally.views.TabBarView;
@@ -192,7 +192,7 @@ public class MainActivity extends BaseActivity {
 
     @Override
     protected void handleReceivedIntent(Context context, Intent intent) {
-        long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0L);
+        long id = intent.getLongExtra(DataProvider.EXTRA_DOWNLOAD_ID, 0L);
         if (WallyApplication.getDownloadIDs().containsKey(id)) {
             WallyApplication.getDownloadIDs().remove(id);
             if (fileReceiver != null) {
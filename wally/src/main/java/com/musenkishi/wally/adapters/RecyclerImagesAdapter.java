@@ -44,10 +44,15 @@ import com.musenkishi.paletteloader.PaletteLoader;
 import com.musenkishi.paletteloader.PaletteRequest;
 import com.musenkishi.wally.R;
 import com.musenkishi.wally.base.WallyApplication;
+import com.musenkishi.wally.dataprovider.util.ConnectionQuality;
+import com.musenkishi.wally.dataprovider.util.ThumbnailSelector;
 import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ThumbnailVariant;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Adapter that handles images coming from backend.
@@ -56,6 +61,8 @@ import java.util.HashMap;
  */
 public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAdapter.ViewHolder> {
 
+    private static final long CONNECTION_QUALITY_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
     protected int itemSize;
 
     public void setItemSize(int itemSize) {
@@ -72,6 +79,9 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
     private HashMap<String, Boolean> existingFiles = new HashMap<String, Boolean>();
     private final SparseArray<ValueAnimator> valueAnimators = new SparseArray<ValueAnimator>();
 
+    private ConnectionQuality connectionQuality;
+    private long connectionQualityCheckedNanos;
+
     /**
      * Don't use this constructor.
      */
@@ -135,7 +145,7 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
             };
 
             Glide.with(viewHolder.bottomBar.getContext())
-                    .load(image.thumbURL())
+                    .load(image.getThumbURL(getThumbnailVariant(viewHolder.itemView.getContext())))
                     .fitCenter()
                     .placeholder(R.color.Transparent)
                     .listener(glideDrawableRequestListener)
@@ -153,7 +163,7 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
                 viewHolder.imageButton.setOnClickListener(null);
             } else if (WallyApplication.getDownloadIDs().containsValue(image.imageId())) {
                 viewHolder.imageButton.setOnClickListener(null);
-                animateDownload(viewHolder, position);
+                animateDownload(viewHolder, position, image.imageId());
             } else {
                 viewHolder.imageButton.setImageResource(R.drawable.ic_action_heart_empty);
                 viewHolder.imageButton.setOnClickListener(new View.OnClickListener() {
@@ -162,7 +172,7 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
                         if (onSaveButtonClickedListener != null) {
                             v.setOnClickListener(null);
                             onSaveButtonClickedListener.onSaveButtonClicked(image);
-                            animateDownload(viewHolder, position);
+                            animateDownload(viewHolder, position, image.imageId());
                         }
                     }
                 });
@@ -175,7 +185,22 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
         viewHolder.itemView.getLayoutParams().width = itemSize;
     }
 
-    private void animateDownload(final ViewHolder viewHolder, int position) {
+    /**
+     * The connection is looked up at most every few seconds, not for every cell.
+     */
+    private ThumbnailVariant getThumbnailVariant(Context context) {
+        long now = System.nanoTime();
+        if (connectionQuality == null || now - connectionQualityCheckedNanos > CONNECTION_QUALITY_MAX_AGE_NANOS) {
+            connectionQuality = ConnectionQuality.of(context);
+            connectionQualityCheckedNanos = now;
+        }
+        return ThumbnailSelector.select(itemSize, connectionQuality);
+    }
+
+    /**
+     * Fills the heart as the download's bytes come in. Until the size is known, the fill pulses instead.
+     */
+    private void animateDownload(final ViewHolder viewHolder, int position, final String imageId) {
         viewHolder.imageButton.setImageResource(R.drawable.ic_heart_download_animation);
         if (valueAnimators.get(position) != null) {
             valueAnimators.get(position).cancel();
@@ -188,6 +213,12 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
                     layerDrawable.getDrawable(0).mutate().setColorFilter(viewHolder.textViewResolution.getCurrentTextColor(), PorterDuff.Mode.MULTIPLY);
                     if (layerDrawable.getDrawable(layerDrawable.getNumberOfLayers() - 1) instanceof ClipDrawable clipDrawable) {
                         clipDrawable.mutate().setColorFilter(viewHolder.textViewResolution.getCurrentTextColor(), PorterDuff.Mode.MULTIPLY);
+                        float progress = getDownloadProgress(imageId);
+                        if (progress >= 0) {
+                            clipDrawable.mutate().setLevel((int) (progress * 10000));
+                            clipDrawable.mutate().setAlpha(255);
+                            return;
+                        }
                         clipDrawable.mutate().setLevel((Integer) animation.getAnimatedValue());
                         float reversedValue = 10000f - ((Integer) animation.getAnimatedValue());
                         float alphaValue = reversedValue / 10000f;
@@ -207,6 +238,18 @@ public class RecyclerImagesAdapter extends RecyclerView.Adapter<RecyclerImagesAd
         valueAnimators.append(position, valueAnimator);
     }
 
+    /**
+     * @return how much of the image has been downloaded from 0 to 1, or -1 if that isn't known.
+     */
+    private static float getDownloadProgress(String imageId) {
+        for (Map.Entry<Long, String> entry : WallyApplication.getDownloadIDs().entrySet()) {
+            if (entry.getValue().equals(imageId)) {
+                return WallyApplication.getDataProviderInstance().getDownloadProgress(entry.getKey());
+            }
+        }
+        return -1;
+    }
+
     public RecyclerImagesAdapter(ArrayList<Image> images, int itemSize) {
         this.images = images;
         this.itemSize = itemSize;
@@ -22,17 +22,12 @@ import android.animation.ArgbEvaluator;
 import android.animation.ValueAnimator;
 import android.annotation.SuppressLint;
 import android.app.ActivityManager;
-import android.app.DownloadManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
-import android.os.Environment;
-import java.io.File;
 import androidx.annotation.NonNull;
 import android.widget.Toast;
 import android.graphics.Bitmap;
@@ -60,6 +55,7 @@ import android.widget.ImageView;
 
 import com.musenkishi.wally.BuildConfig;
 import com.musenkishi.wally.R;
+import com.musenkishi.wally.dataprovider.DataProvider;
 import com.musenkishi.wally.dataprovider.SharedPreferencesDataProvider;
 import com.musenkishi.wally.util.TypefaceSpan;
 
@@ -76,87 +72,23 @@ public abstract class BaseActivity extends AppCompatActivity {
 
     private Toolbar toolbar;
 
-    private final String downloadCompleteIntentName = DownloadManager.ACTION_DOWNLOAD_COMPLETE;
-    private final IntentFilter downloadCompleteIntentFilter = new IntentFilter(downloadCompleteIntentName);
+    private final IntentFilter downloadCompleteIntentFilter = new IntentFilter(DataProvider.ACTION_DOWNLOAD_COMPLETE);
     private final BroadcastReceiver downloadCompleteReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(intent.getAction())) {
-                long downloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+            if (DataProvider.ACTION_DOWNLOAD_COMPLETE.equals(intent.getAction())) {
+                long downloadId = intent.getLongExtra(DataProvider.EXTRA_DOWNLOAD_ID, -1);
                 if (downloadId != -1) {
-                    DownloadManager downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-                    DownloadManager.Query query = new DownloadManager.Query();
-                    query.setFilterById(downloadId);
-                    try {
-                        android.database.Cursor cursor = downloadManager.query(query);
-                        if (cursor != null) {
-                            try {
-                                if (cursor.moveToFirst()) {
-                                    int status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
-                                    int uriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
-                                    if (status == DownloadManager.STATUS_SUCCESSFUL && uriIndex != -1) {
-                                        String downloadedFilePath = cursor.getString(uriIndex);
-                                        if (downloadedFilePath != null) {
-                                            // Trigger MediaStore scan for the downloaded file
-                                            triggerMediaScan(context, Uri.parse(downloadedFilePath).getPath());
-                                        }
-                                        handleReceivedIntent(context, intent);
-                                    }
-                                }
-                            } finally {
-                                cursor.close();
-                            }
-                        }
-                    } catch (Exception e) {
-                        Log.e("BaseActivity", "Error processing download: ", e);
+                    if (intent.getBooleanExtra(DataProvider.EXTRA_DOWNLOAD_SUCCESSFUL, false)) {
+                        handleReceivedIntent(context, intent);
+                    } else if (WallyApplication.getDownloadIDs().remove(downloadId) != null) {
+                        Toast.makeText(context, R.string.toast_error_image_saving, Toast.LENGTH_SHORT).show();
                     }
                 }
             }
         }
     };
 
-    private void triggerMediaScan(Context context, String path) {
-        try {
-            if (path != null) {
-                // Trigger both specific file scan and full directory scan
-                MediaScannerConnection.scanFile(context, 
-                    new String[]{path}, 
-                    null,
-                    new MediaScannerConnection.OnScanCompletedListener() {
-                        @Override
-                        public void onScanCompleted(String path, Uri uri) {
-                            Log.d("MediaScan", "Scanned: " + path);
-                            // Also scan the entire Wally directory
-                            String wallyDir = Environment.getExternalStoragePublicDirectory(
-                                Environment.DIRECTORY_PICTURES).toString() + "/Wally";
-                            scanDirectory(context, wallyDir);
-                        }
-                    }
-                );
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void scanDirectory(Context context, String directoryPath) {
-        try {
-            File directory = new File(directoryPath);
-            if (directory.exists() && directory.isDirectory()) {
-                File[] files = directory.listFiles();
-                if (files != null) {
-                    String[] paths = new String[files.length];
-                    for (int i = 0; i < files.length; i++) {
-                        paths[i] = files[i].getAbsolutePath();
-                    }
-                    MediaScannerConnection.scanFile(context, paths, null, null);
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     protected abstract void handleReceivedIntent(Context context, Intent intent);
 
     @Override
@@ -213,7 +145,8 @@ public abstract class BaseActivity extends AppCompatActivity {
                                 ActivityCompat.requestPermissions(this,
                                         new String[]{
                                                 Manifest.permission.READ_MEDIA_IMAGES,
-                                                Manifest.permission.READ_MEDIA_VIDEO
+                                                Manifest.permission.READ_MEDIA_VIDEO,
+                                                Manifest.permission.POST_NOTIFICATIONS
                                         },
                                         STORAGE_PERMISSION_REQUEST_CODE);
                             })
@@ -224,7 +157,8 @@ public abstract class BaseActivity extends AppCompatActivity {
                     ActivityCompat.requestPermissions(this,
                             new String[]{
                                     Manifest.permission.READ_MEDIA_IMAGES,
-                                    Manifest.permission.READ_MEDIA_VIDEO
+                                    Manifest.permission.READ_MEDIA_VIDEO,
+                                    Manifest.permission.POST_NOTIFICATIONS
                             },
                             STORAGE_PERMISSION_REQUEST_CODE);
                 }
@@ -18,7 +18,10 @@ package com.musenkishi.wally.base;
 
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.NonNull;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.SimpleItemAnimator;
 import android.text.method.LinkMovementMethod;
@@ -26,18 +29,34 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.musenkishi.wally.R;
+import com.musenkishi.wally.activities.MainActivity;
 import com.musenkishi.wally.adapters.RecyclerImagesAdapter;
+import com.musenkishi.wally.dataprovider.RequestGroup;
+import com.musenkishi.wally.dataprovider.RequestHandle;
 import com.musenkishi.wally.dataprovider.models.DataProviderError;
+import com.musenkishi.wally.dataprovider.models.DataProviderException;
+import com.musenkishi.wally.dataprovider.models.SaveImageRequest;
+import com.musenkishi.wally.models.Image;
+import com.musenkishi.wally.models.ImagePage;
+import com.musenkishi.wally.notification.NotificationProvider;
+import com.musenkishi.wally.observers.FileReceiver;
 import com.musenkishi.wally.util.TextLinkBuilder;
 import com.musenkishi.wally.views.AutoGridView;
 
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
+
 /**
  * A base class where common logic for gridview based fragments is placed.
  * Created by Freddie (Musenkishi) Lust-Hed on 2014-10-07.
  */
-public abstract class GridFragment extends BaseFragment {
+public abstract class GridFragment extends BaseFragment implements RecyclerImagesAdapter.OnSaveButtonClickedListener {
 
     public static final short REQUEST_CODE = 25380;
 
@@ -50,6 +69,25 @@ public abstract class GridFragment extends BaseFragment {
     protected String query;
     private GridLayoutManager gridLayoutManager;
 
+    /**
+     * Image requests of this grid. They are cancelled when the grid starts over from the first
+     * page or goes away, and results of an older generation are dropped, so images for
+     * previous filters never reach the adapter.
+     */
+    protected final RequestGroup imageRequests = new RequestGroup();
+
+    /**
+     * The running feed of image pages, or null if there is none or it ended with an error.
+     */
+    private volatile Flow.Subscription imagesSubscription;
+
+    /**
+     * Wallpaper pages the save button is waiting for. Cancelled when the fragment goes away,
+     * so a late page doesn't try to save from a detached fragment.
+     */
+    private final CopyOnWriteArrayList<CompletableFuture<ImagePage>> savePageRequests = new CopyOnWriteArrayList<>();
+    private final Handler saveHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Call this to setup basic views like the gridview.
      * @param rootView
@@ -84,6 +122,151 @@ public abstract class GridFragment extends BaseFragment {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        imageRequests.cancelAll();
+        for (CompletableFuture<ImagePage> future : savePageRequests) {
+            future.cancel(false);
+        }
+        saveHandler.removeCallbacksAndMessages(null);
+    }
+
+    @Override
+    public void onSaveButtonClicked(final Image image) {
+        if (image.hasFullImage()) {
+            // Images from an API search already know where the wallpaper is.
+            saveImage(image.getFullImageUri(), image.imageId());
+            return;
+        }
+        final CompletableFuture<ImagePage> future = WallyApplication.getDataProviderInstance().getPageDataAsync(image.imagePageURL());
+        savePageRequests.add(future);
+        future.whenComplete(new BiConsumer<ImagePage, Throwable>() {
+            @Override
+            public void accept(final ImagePage imagePage, final Throwable throwable) {
+                savePageRequests.remove(future);
+                saveHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isAdded()) {
+                            return;
+                        }
+                        if (throwable == null) {
+                            if (imagePage != null) {
+                                saveImage(imagePage.imagePath(), imagePage.imageId());
+                            }
+                        } else {
+                            new NotificationProvider().cancelAll(getActivity());
+                            Toast.makeText(getActivity(), R.string.toast_error_image_saving, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the image requests that are still running and starts a new generation.
+     */
+    protected void cancelImageRequests() {
+        imagesSubscription = null;
+        imageRequests.cancelAll();
+    }
+
+    /**
+     * Saves the wallpaper to Pictures/Wally. If it already is there, the list of saved files
+     * is refreshed instead.
+     */
+    protected void saveImage(Uri imagePath, String imageId) {
+        if (!((BaseActivity) getActivity()).isStoragePermissionGranted()) {
+            Toast.makeText(getActivity(), getString(R.string.storagePermissionError), Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        SaveImageRequest saveImageRequest = WallyApplication.getDataProviderInstance().downloadImageIfNeeded(
+                imagePath,
+                imageId,
+                getResources().getString(R.string.notification_title_image_saving));
+
+        if (saveImageRequest.getDownloadID() != null && getActivity() instanceof MainActivity) {
+            WallyApplication.getDownloadIDs().put(saveImageRequest.getDownloadID(), imageId);
+        } else {
+            LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(new Intent(FileReceiver.GET_FILES));
+        }
+    }
+
+    /**
+     * Asks for the given page of images. The first page, or a page after an error, starts a new
+     * feed at that page. Later pages are requested from the running feed, which hands them out
+     * once each and in order, through {@link #onImagesReceived(ArrayList, int, int)}.
+     */
+    protected void requestImages(final int index, String query) {
+        Flow.Subscription subscription = imagesSubscription;
+        if (index == 1 || subscription == null) {
+            cancelImageRequests();
+            final int generation = imageRequests.getGeneration();
+            createImagePublisher(index, query).subscribe(new Flow.Subscriber<ArrayList<Image>>() {
+
+                private Flow.Subscription subscription;
+                private int page = index;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    imagesSubscription = subscription;
+                    if (subscription instanceof RequestHandle) {
+                        imageRequests.add((RequestHandle) subscription);
+                    }
+                }
+
+                @Override
+                public void onNext(ArrayList<Image> images) {
+                    onImagesReceived(images, page++, generation);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    if (imagesSubscription == subscription) {
+                        imagesSubscription = null;
+                    }
+                    onImagesError(DataProviderException.errorOf(throwable), page, generation);
+                }
+
+                @Override
+                public void onComplete() {
+                    if (page == index) {
+                        // Nothing matched, show an empty grid instead of the loader.
+                        onImagesReceived(new ArrayList<Image>(), page, generation);
+                    }
+                }
+            });
+            subscription = imagesSubscription;
+        }
+        if (subscription != null) {
+            subscription.request(1);
+        }
+    }
+
+    /**
+     * Creates the feed this grid shows, starting at the given page.
+     */
+    protected abstract Flow.Publisher<ArrayList<Image>> createImagePublisher(int firstPage, String query);
+
+    /**
+     * Called on a background thread with a page of images from the feed.
+     */
+    protected abstract void onImagesReceived(ArrayList<Image> images, int index, int generation);
+
+    /**
+     * Called on a background thread when a page couldn't be fetched. The feed has ended,
+     * calling {@link #requestImages(int, String)} with the same index starts a new one.
+     */
+    protected abstract void onImagesError(DataProviderError dataProviderError, int index, int generation);
+
+    protected boolean isCurrentGeneration(int generation) {
+        return generation == imageRequests.getGeneration();
+    }
+
     protected void showLoader() {
         progressBar.animate().alpha(1.0f).setDuration(300).start();
     }
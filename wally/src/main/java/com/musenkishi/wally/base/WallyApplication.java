@@ -26,7 +26,10 @@ import com.bumptech.glide.load.model.GlideUrl;
 import com.musenkishi.wally.BuildConfig;
 import com.musenkishi.wally.dataprovider.DataProvider;
 import com.musenkishi.wally.dataprovider.SharedPreferencesDataProvider;
+import com.musenkishi.wally.dataprovider.okhttp.ConnectionWarmer;
+import com.musenkishi.wally.dataprovider.okhttp.OkHttpClientProvider;
 import com.musenkishi.wally.dataprovider.okhttp.OkHttpUrlLoader;
+import com.musenkishi.wally.dataprovider.okhttp.StartupMetrics;
 import com.musenkishi.wally.fragments.SearchFragment;
 import com.musenkishi.wally.models.ExceptionReporter;
 import com.musenkishi.wally.models.filters.FilterAspectRatioKeys;
@@ -36,11 +39,16 @@ import com.musenkishi.wally.models.filters.FilterPurityKeys;
 import com.musenkishi.wally.models.filters.FilterResOptKeys;
 import com.musenkishi.wally.models.filters.FilterResolutionKeys;
 import com.musenkishi.wally.models.filters.FilterTimeSpanKeys;
-import okhttp3.OkHttpClient;
+import com.musenkishi.wally.notification.DownloadNotifier;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * Created by Musenkishi on 2014-07-25.
@@ -48,11 +56,12 @@ import java.util.HashSet;
 public class WallyApplication extends Application {
 
     private static final int FAMILIAR_USER_COUNT = 3;
+    private static final String NETWORK_METRICS_FILE = "network_metrics.txt";
 
     private static boolean SHOULD_SHOW_CRASH_LOGGING_PERMISSION = false;
     private static DataProvider dataProvider;
     private static Context applicationContext;
-    private static HashMap<Long, String> pairedDownloadIds;
+    private static Map<Long, String> pairedDownloadIds;
     private static HashSet<Long> downloadIDs;
     private static HashMap<String, Object> searchFragmentMessages;
 
@@ -60,14 +69,76 @@ public class WallyApplication extends Application {
 
     @Override
     public void onCreate(){
+        long startNanos = System.nanoTime();
         super.onCreate();
-        Glide.get(this).getRegistry().append(GlideUrl.class, InputStream.class,
-                new OkHttpUrlLoader.Factory(new OkHttpClient()));
+        OkHttpClientProvider.initialize(this);
         applicationContext = getApplicationContext();
+        startConnectionWarmUp(startNanos);
+        Glide.get(this).getRegistry().replace(GlideUrl.class, InputStream.class,
+                new OkHttpUrlLoader.Factory(OkHttpClientProvider.getInstance().getImageClient()));
         startCrashLoggingIfUserAccepted();
         checkVersionInstalled(BuildConfig.VERSION_CODE);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            if (BuildConfig.DEBUG) {
+                Log.d(WallyApplication.class.getSimpleName(), "Connection pool: " + OkHttpClientProvider.getInstance().getStats());
+                Log.d(WallyApplication.class.getSimpleName(), "HTTP cache: " + OkHttpClientProvider.getInstance().getCacheStats());
+                Log.d(WallyApplication.class.getSimpleName(), "Rate limiter: " + OkHttpClientProvider.getInstance().getRateLimiter());
+                Log.d(WallyApplication.class.getSimpleName(), "DNS cache: " + OkHttpClientProvider.getInstance().getDns());
+                Log.d(WallyApplication.class.getSimpleName(), "Network metrics:\n" + OkHttpClientProvider.getInstance().getNetworkMetrics());
+                Log.d(WallyApplication.class.getSimpleName(), "API fallbacks: " + getDataProviderInstance().getApiFallbackCount());
+                Log.d(WallyApplication.class.getSimpleName(), "ImagePage cache: " + getDataProviderInstance().getImagePageCache());
+                try {
+                    OkHttpClientProvider.getInstance().getNetworkMetrics().dump(new File(getCacheDir(), NETWORK_METRICS_FILE));
+                } catch (IOException e) {
+                    Log.w(WallyApplication.class.getSimpleName(), "Couldn't write network metrics", e);
+                }
+            }
+            OkHttpClientProvider.getInstance().evictIdleConnections();
+        }
+    }
+
+    /**
+     * Connects to Wallhaven while the first activity is being created, so the first grid doesn't
+     * wait for DNS and TLS. Debug builds skip it on every other start and log the time to the
+     * first thumbnail, so both can be compared.
+     */
+    private void startConnectionWarmUp(long startNanos) {
+        boolean warmUp = true;
+        if (BuildConfig.DEBUG) {
+            SharedPreferencesDataProvider preferences = getDataProviderInstance().getSharedPreferencesDataProviderInstance();
+            warmUp = preferences.wasWarmUpSkipped();
+            preferences.setWarmUpSkipped(!warmUp);
+        }
+
+        final StartupMetrics startupMetrics = new StartupMetrics(startNanos, warmUp, new StartupMetrics.OnFirstThumbnailListener() {
+            @Override
+            public void onFirstThumbnail(StartupMetrics startupMetrics) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(WallyApplication.class.getSimpleName(), "Startup: " + startupMetrics);
+                }
+            }
+        });
+        OkHttpClientProvider.getInstance().setStartupMetrics(startupMetrics);
+
+        if (warmUp) {
+            OkHttpClientProvider.getInstance().warmUpConnections(new ConnectionWarmer.OnWarmUpListener() {
+                @Override
+                public void onWarmUpFinished(long elapsedMillis, int connected, int failed) {
+                    startupMetrics.onWarmUpFinished();
+                    if (BuildConfig.DEBUG) {
+                        Log.d(WallyApplication.class.getSimpleName(), "Warm-up: " + connected + " connected, "
+                                + failed + " failed in " + elapsedMillis + " ms");
+                    }
+                }
+            });
+        }
+    }
+
     private void checkVersionInstalled(int currentVersion) {
         int defaultVersion = 1;
 
@@ -145,14 +216,28 @@ public class WallyApplication extends Application {
                         Log.w(WallyApplication.class.getSimpleName(), message);
                     }
                 }
-            });
+            }, new DownloadNotifier(getContext()));
         }
         return dataProvider;
     }
 
-    public static HashMap<Long, String> getDownloadIDs() {
+    public static Map<Long, String> getDownloadIDs() {
         if (pairedDownloadIds == null) {
-            pairedDownloadIds = new HashMap<Long, String>();
+            final Map<Long, String> downloadIds = new ConcurrentHashMap<>();
+            pairedDownloadIds = downloadIds;
+            // Downloads restored from before the process died are still shown as downloading.
+            getDataProviderInstance().getPendingDownloadsAsync().thenAccept(new Consumer<HashMap<Long, String>>() {
+                @Override
+                public void accept(HashMap<Long, String> pendingDownloads) {
+                    for (Map.Entry<Long, String> entry : pendingDownloads.entrySet()) {
+                        if (downloadIds.putIfAbsent(entry.getKey(), entry.getValue()) == null
+                                && !getDataProviderInstance().isDownloading(entry.getKey())) {
+                            // Finished while this ran, its broadcast has come and gone.
+                            downloadIds.remove(entry.getKey());
+                        }
+                    }
+                }
+            });
         }
         return pairedDownloadIds;
     }
@@ -285,7 +285,7 @@ public class FilterDialogFragment extends MaterialDialogFragment {
         if (checkBoxPurityNSFW.isChecked()) {
             String key = apiKeyInput.getText() != null ? apiKeyInput.getText().toString().trim() : null;
             if (key != null && key.length() > 0) {
-                WallyApplication.getDataProviderInstance().getSharedPreferencesDataProviderInstance().setWallhavenApiKey(key);
+                WallyApplication.getDataProviderInstance().setApiKey(key);
             }
         }
 
@@ -26,7 +26,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -36,7 +35,6 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
-import android.widget.Toast;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.ActivityOptionsCompat;
@@ -47,16 +45,11 @@ import com.musenkishi.wally.R;
 import com.musenkishi.wally.activities.ImageDetailsActivity;
 import com.musenkishi.wally.activities.MainActivity;
 import com.musenkishi.wally.adapters.RecyclerImagesAdapter;
-import com.musenkishi.wally.base.BaseActivity;
 import com.musenkishi.wally.base.BaseFilterFragment;
 import com.musenkishi.wally.base.WallyApplication;
-import com.musenkishi.wally.dataprovider.DataProvider;
 import com.musenkishi.wally.dataprovider.NetworkDataProvider;
 import com.musenkishi.wally.dataprovider.models.DataProviderError;
-import com.musenkishi.wally.dataprovider.models.SaveImageRequest;
 import com.musenkishi.wally.models.Image;
-import com.musenkishi.wally.models.ImagePage;
-import com.musenkishi.wally.notification.NotificationProvider;
 import com.musenkishi.wally.observers.FileReceiver;
 import com.musenkishi.wally.observers.FiltersChangeReceiver;
 import com.musenkishi.wally.views.AutoGridView;
@@ -65,6 +58,7 @@ import com.musenkishi.wally.views.swipeclearlayout.SwipeClearLayout;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Flow;
 
 import static com.musenkishi.wally.observers.FileReceiver.OnFileChangeListener;
 import static com.musenkishi.wally.observers.FiltersChangeReceiver.OnFiltersChangeListener;
@@ -75,7 +69,6 @@ import static com.musenkishi.wally.observers.FiltersChangeReceiver.OnFiltersChan
  * Created by Freddie (Musenkishi) Lust-Hed on 2014-02-28
  */
 public class RandomImagesFragment extends BaseFilterFragment implements
-        RecyclerImagesAdapter.OnSaveButtonClickedListener,
         Handler.Callback,
         OnFileChangeListener,
         SwipeClearLayout.OnRefreshListener,
@@ -83,19 +76,14 @@ public class RandomImagesFragment extends BaseFilterFragment implements
 
     public static final String TAG = "com.musenkishi.wally.RandomImagesFragment";
 
-    private static final int MSG_GET_IMAGES = 119;
     private static final int MSG_ERROR_IMAGE_REQUEST = 121;
     private static final int MSG_IMAGES_REQUEST_CREATE = 122;
     private static final int MSG_IMAGES_REQUEST_APPEND = 123;
     private static final int MSG_SAVE_LIST_OF_SAVED_IMAGES = 128;
-    private static final int MSG_ERROR_IMAGE_SAVING = 129;
-    private static final int MSG_SAVE_BUTTON_CLICKED = 130;
-    private static final int MSG_PAGE_RECEIVED = 131;
     private static final String STATE_IMAGES = "com.musenkishi.wally.RandomImagesFragment.Images";
     private static final String STATE_CURRENT_PAGE = "com.musenkishi.wally.RandomImagesFragment.Current.Page";
 
     private boolean isLoading;
-    private Handler backgroundHandler;
     private Handler uiHandler;
     private HashMap<String, Boolean> savedFiles;
     private SwipeClearLayout swipeClearLayout;
@@ -145,6 +133,7 @@ public class RandomImagesFragment extends BaseFilterFragment implements
                 Message msgObj = uiHandler.obtainMessage();
                 msgObj.what = MSG_IMAGES_REQUEST_CREATE;
                 msgObj.arg1 = 1;
+                msgObj.arg2 = imageRequests.getGeneration();
                 msgObj.obj = savedInstanceState.getParcelableArrayList(STATE_IMAGES);
                 uiHandler.sendMessage(msgObj);
                 currentPage = savedInstanceState.getInt(STATE_CURRENT_PAGE);
@@ -170,9 +159,7 @@ public class RandomImagesFragment extends BaseFilterFragment implements
     @Override
     public void onDestroy() {
         super.onDestroy();
-        backgroundHandler.removeCallbacksAndMessages(null);
         uiHandler.removeCallbacksAndMessages(null);
-        backgroundHandler.getLooper().quit();
     }
 
     @Override
@@ -241,9 +228,6 @@ public class RandomImagesFragment extends BaseFilterFragment implements
     }
 
     private void setupHandlers() {
-        HandlerThread handlerThread = new HandlerThread("RandomImages.background");
-        handlerThread.start();
-        backgroundHandler = new Handler(handlerThread.getLooper(), this);
         uiHandler = new Handler(getActivity().getMainLooper(), this);
     }
 
@@ -252,95 +236,52 @@ public class RandomImagesFragment extends BaseFilterFragment implements
         currentPage = index;
         isLoading = true;
 
-        Message msgGetImages = backgroundHandler.obtainMessage();
-        msgGetImages.what = MSG_GET_IMAGES;
-        msgGetImages.arg1 = index;
-        if (!backgroundHandler.hasMessages(msgGetImages.what)) {
-            backgroundHandler.sendMessage(msgGetImages);
+        if (index == 1) {
+            // Starting over, so pages that are already posted are for the previous filters or query.
+            uiHandler.removeMessages(MSG_IMAGES_REQUEST_CREATE);
+            uiHandler.removeMessages(MSG_IMAGES_REQUEST_APPEND);
+            uiHandler.removeMessages(MSG_ERROR_IMAGE_REQUEST);
         }
+
+        requestImages(index, query);
     }
 
-    private void showError(DataProviderError dataProviderError, int index) {
+    private void showError(DataProviderError dataProviderError, int index, int generation) {
         Message msgObj = uiHandler.obtainMessage();
         msgObj.what = MSG_ERROR_IMAGE_REQUEST;
         msgObj.obj = dataProviderError;
         msgObj.arg1 = index;
+        msgObj.arg2 = generation;
         uiHandler.sendMessageDelayed(msgObj, 1000);
     }
 
     @Override
-    public void onSaveButtonClicked(final Image image) {
-        Message msgSaveButton = backgroundHandler.obtainMessage();
-        msgSaveButton.what = MSG_SAVE_BUTTON_CLICKED;
-        msgSaveButton.obj = image;
-        backgroundHandler.sendMessage(msgSaveButton);
+    protected Flow.Publisher<ArrayList<Image>> createImagePublisher(int firstPage, String query) {
+        return WallyApplication.getDataProviderInstance().getImagePages(NetworkDataProvider.PATH_RANDOM, firstPage, WallyApplication.getFilterSettings());
     }
 
     @Override
-    public boolean handleMessage(Message msg) {
-        switch (msg.what) {
-
-            case MSG_GET_IMAGES:
-                final int index = msg.arg1;
-                WallyApplication.getDataProviderInstance().getImages(NetworkDataProvider.PATH_RANDOM, index, WallyApplication.getFilterSettings(), new DataProvider.OnImagesReceivedListener() {
-                    @Override
-                    public void onImagesReceived(ArrayList<Image> images) {
-                        Message msgObj = uiHandler.obtainMessage();
-                        msgObj.what = index == 1 ? MSG_IMAGES_REQUEST_CREATE : MSG_IMAGES_REQUEST_APPEND;
-                        msgObj.obj = images;
-                        uiHandler.sendMessage(msgObj);
-                    }
-
-                    @Override
-                    public void onError(DataProviderError dataProviderError) {
-                        showError(dataProviderError, index);
-                    }
-                });
-                break;
-
-            case MSG_SAVE_BUTTON_CLICKED:
-                Image image = (Image) msg.obj;
-                WallyApplication.getDataProviderInstance().getPageData(image.imagePageURL(), new DataProvider.OnPageReceivedListener() {
-                    @Override
-                    public void onPageReceived(ImagePage imagePage) {
-                        Message msgImagePage = uiHandler.obtainMessage();
-                        msgImagePage.what = MSG_PAGE_RECEIVED;
-                        msgImagePage.obj = imagePage;
-                        uiHandler.sendMessage(msgImagePage);
-                    }
-
-                    @Override
-                    public void onError(DataProviderError dataProviderError) {
-                        Message msgObj = uiHandler.obtainMessage();
-                        msgObj.what = MSG_ERROR_IMAGE_SAVING;
-                        msgObj.obj = dataProviderError;
-                        uiHandler.sendMessage(msgObj);
-                    }
-                });
-                break;
-
-            case MSG_PAGE_RECEIVED:
-                ImagePage imagePage = (ImagePage) msg.obj;
-                if (imagePage != null) {
-                    if (!((BaseActivity) getActivity()).isStoragePermissionGranted()) {
-                        Toast.makeText(getActivity(), getString(R.string.storagePermissionError), Toast.LENGTH_LONG).show();
-                        break;
-                    }
+    protected void onImagesReceived(ArrayList<Image> images, int index, int generation) {
+        Message msgObj = uiHandler.obtainMessage();
+        msgObj.what = index == 1 ? MSG_IMAGES_REQUEST_CREATE : MSG_IMAGES_REQUEST_APPEND;
+        msgObj.arg2 = generation;
+        msgObj.obj = images;
+        uiHandler.sendMessage(msgObj);
+    }
 
-                    SaveImageRequest saveImageRequest = WallyApplication.getDataProviderInstance().downloadImageIfNeeded(
-                            imagePage.imagePath(),
-                            imagePage.imageId(),
-                            getResources().getString(R.string.notification_title_image_saving));
+    @Override
+    protected void onImagesError(DataProviderError dataProviderError, int index, int generation) {
+        showError(dataProviderError, index, generation);
+    }
 
-                    if (saveImageRequest.getDownloadID() != null && getActivity() instanceof MainActivity) {
-                        WallyApplication.getDownloadIDs().put(saveImageRequest.getDownloadID(), imagePage.imageId());
-                    } else {
-                        LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(new Intent(FileReceiver.GET_FILES));
-                    }
-                }
-                break;
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
 
             case MSG_ERROR_IMAGE_REQUEST:
+                if (!isCurrentGeneration(msg.arg2)) {
+                    break;
+                }
                 if (getActivity() != null) {
                     DataProviderError dataProviderError = (DataProviderError) msg.obj;
                     int imagesIndex = msg.arg1;
@@ -348,15 +289,10 @@ public class RandomImagesFragment extends BaseFilterFragment implements
                 }
                 break;
 
-            case MSG_ERROR_IMAGE_SAVING:
-                if (getActivity() != null) {
-                    NotificationProvider notificationProvider = new NotificationProvider();
-                    notificationProvider.cancelAll(getActivity());
-                    Toast.makeText(getActivity(), "Couldn't save image", Toast.LENGTH_SHORT).show();
-                }
-                break;
-
             case MSG_IMAGES_REQUEST_CREATE:
+                if (!isCurrentGeneration(msg.arg2)) {
+                    break;
+                }
                 ArrayList<Image> images = (ArrayList<Image>) msg.obj;
                 boolean shouldScheduleLayoutAnimation = msg.arg1 == 0;
                 isLoading = false;
@@ -374,6 +310,9 @@ public class RandomImagesFragment extends BaseFilterFragment implements
                 break;
 
             case MSG_IMAGES_REQUEST_APPEND:
+                if (!isCurrentGeneration(msg.arg2)) {
+                    break;
+                }
                 ArrayList<Image> extraImages = (ArrayList<Image>) msg.obj;
                 isLoading = false;
                 if (extraImages != null) {
@@ -31,7 +31,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.text.Editable;
 import android.text.TextUtils;
@@ -52,7 +51,6 @@ import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
-import android.widget.Toast;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.ActivityOptionsCompat;
@@ -71,13 +69,9 @@ import com.musenkishi.wally.anim.interpolator.EaseInOutBezierInterpolator;
 import com.musenkishi.wally.base.BaseActivity;
 import com.musenkishi.wally.base.GridFragment;
 import com.musenkishi.wally.base.WallyApplication;
-import com.musenkishi.wally.dataprovider.DataProvider;
 import com.musenkishi.wally.dataprovider.NetworkDataProvider;
 import com.musenkishi.wally.dataprovider.models.DataProviderError;
-import com.musenkishi.wally.dataprovider.models.SaveImageRequest;
 import com.musenkishi.wally.models.Image;
-import com.musenkishi.wally.models.ImagePage;
-import com.musenkishi.wally.notification.NotificationProvider;
 import com.musenkishi.wally.observers.FileReceiver;
 import com.musenkishi.wally.observers.FiltersChangeReceiver;
 
@@ -86,6 +80,7 @@ import net.margaritov.preference.colorpicker.dialog.ColorPickerDialogFragment;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Flow;
 
 import static com.musenkishi.wally.observers.FileReceiver.OnFileChangeListener;
 import static com.musenkishi.wally.observers.FiltersChangeReceiver.OnFiltersChangeListener;
@@ -96,7 +91,6 @@ import static com.musenkishi.wally.observers.FiltersChangeReceiver.OnFiltersChan
  * Created by Freddie (Musenkishi) Lust-Hed on 2014-05-11.
  */
 public class SearchFragment extends GridFragment implements
-        RecyclerImagesAdapter.OnSaveButtonClickedListener,
         Handler.Callback,
         OnFileChangeListener,
         OnFiltersChangeListener {
@@ -104,16 +98,12 @@ public class SearchFragment extends GridFragment implements
     public static final String TAG = "Wally.SearchFragment";
     public static final String EXTRA_MESSAGE_TAG = TAG + ".Extra.Tag.Name";
 
-    private static final int MSG_GET_IMAGES = 119;
     private static final int MSG_ERROR_IMAGE_REQUEST = 121;
     private static final int MSG_IMAGES_REQUEST_CREATE = 122;
     private static final int MSG_IMAGES_REQUEST_APPEND = 123;
     private static final int MSG_SAVE_LIST_OF_SAVED_IMAGES = 128;
-    private static final int MSG_ERROR_IMAGE_SAVING = 129;
     private static final int MSG_NEW_COLOR_FETCHED = 130;
     private static final int MSG_RENDER_NEW_COLOR = 131;
-    private static final int MSG_SAVE_BUTTON_CLICKED = 132;
-    private static final int MSG_PAGE_RECEIVED = 133;
     private static final String STATE_IMAGES = TAG + ".Images";
     private static final String STATE_QUERY = TAG + ".Query";
     private static final String STATE_COLOR = TAG + ".CurrentColor";
@@ -121,7 +111,6 @@ public class SearchFragment extends GridFragment implements
     private static final String STATE_CURRENT_PAGE = TAG + ".Current.Page";
 
     private boolean isLoading;
-    private Handler backgroundHandler;
     private Handler uiHandler;
     private HashMap<String, Boolean> savedFiles;
 
@@ -282,6 +271,7 @@ public class SearchFragment extends GridFragment implements
                 Message msgObj = uiHandler.obtainMessage();
                 msgObj.what = MSG_IMAGES_REQUEST_CREATE;
                 msgObj.arg1 = 1;
+                msgObj.arg2 = imageRequests.getGeneration();
                 msgObj.obj = savedInstanceState.getParcelableArrayList(STATE_IMAGES);
                 uiHandler.sendMessage(msgObj);
                 currentColor = savedInstanceState.getString(STATE_COLOR);
@@ -330,9 +320,7 @@ public class SearchFragment extends GridFragment implements
     @Override
     public void onDestroy() {
         super.onDestroy();
-        backgroundHandler.removeCallbacksAndMessages(null);
         uiHandler.removeCallbacksAndMessages(null);
-        backgroundHandler.getLooper().quit();
     }
 
     @Override
@@ -446,9 +434,6 @@ public class SearchFragment extends GridFragment implements
     }
 
     private void setupHandlers() {
-        HandlerThread handlerThread = new HandlerThread("Search.background");
-        handlerThread.start();
-        backgroundHandler = new Handler(handlerThread.getLooper(), this);
         uiHandler = new Handler(getActivity().getMainLooper(), this);
     }
 
@@ -457,29 +442,43 @@ public class SearchFragment extends GridFragment implements
         currentPage = index;
         isLoading = true;
 
-        Message msgGetImages = backgroundHandler.obtainMessage();
-        msgGetImages.what = MSG_GET_IMAGES;
-        msgGetImages.arg1 = index;
-        msgGetImages.obj = query;
-        if (!backgroundHandler.hasMessages(msgGetImages.what)) {
-            backgroundHandler.sendMessage(msgGetImages);
+        if (index == 1) {
+            // Starting over, so pages that are already posted are for the previous filters or query.
+            uiHandler.removeMessages(MSG_IMAGES_REQUEST_CREATE);
+            uiHandler.removeMessages(MSG_IMAGES_REQUEST_APPEND);
+            uiHandler.removeMessages(MSG_ERROR_IMAGE_REQUEST);
         }
+
+        requestImages(index, query);
     }
 
-    private void showError(DataProviderError dataProviderError, int index) {
+    private void showError(DataProviderError dataProviderError, int index, int generation) {
         Message msgObj = uiHandler.obtainMessage();
         msgObj.what = MSG_ERROR_IMAGE_REQUEST;
         msgObj.obj = dataProviderError;
         msgObj.arg1 = index;
+        msgObj.arg2 = generation;
         uiHandler.sendMessageDelayed(msgObj, 1000);
     }
 
     @Override
-    public void onSaveButtonClicked(final Image image) {
-        Message msgSaveButton = backgroundHandler.obtainMessage();
-        msgSaveButton.what = MSG_SAVE_BUTTON_CLICKED;
-        msgSaveButton.obj = image;
-        backgroundHandler.sendMessage(msgSaveButton);
+    protected Flow.Publisher<ArrayList<Image>> createImagePublisher(int firstPage, String query) {
+        return WallyApplication.getDataProviderInstance().getImagePages(NetworkDataProvider.PATH_SEARCH, query,
+                currentColor, firstPage, WallyApplication.getFilterSettings());
+    }
+
+    @Override
+    protected void onImagesReceived(ArrayList<Image> images, int index, int generation) {
+        Message msgObj = uiHandler.obtainMessage();
+        msgObj.what = index == 1 ? MSG_IMAGES_REQUEST_CREATE : MSG_IMAGES_REQUEST_APPEND;
+        msgObj.arg2 = generation;
+        msgObj.obj = images;
+        uiHandler.sendMessage(msgObj);
+    }
+
+    @Override
+    protected void onImagesError(DataProviderError dataProviderError, int index, int generation) {
+        showError(dataProviderError, index, generation);
     }
 
     public void dismissKeyboard() {
@@ -517,7 +516,7 @@ public class SearchFragment extends GridFragment implements
             @Override
             public void onPositiveButtonClicked(DialogFragment dialogFragment) {
                 int color = ((ColorPickerDialogFragment) dialogFragment).getColor();
-                Message msgObj = backgroundHandler.obtainMessage();
+                Message msgObj = uiHandler.obtainMessage();
                 msgObj.what = MSG_NEW_COLOR_FETCHED;
                 msgObj.arg1 = color;
                 uiHandler.sendMessage(msgObj);
@@ -534,69 +533,10 @@ public class SearchFragment extends GridFragment implements
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
 
-            case MSG_GET_IMAGES:
-                final int index = msg.arg1;
-                String query = (String) msg.obj;
-                WallyApplication.getDataProviderInstance().getImages(NetworkDataProvider.PATH_SEARCH, query,
-                        currentColor, index, WallyApplication.getFilterSettings(), new DataProvider.OnImagesReceivedListener() {
-                            @Override
-                            public void onImagesReceived(ArrayList<Image> images) {
-                                Message msgObj = uiHandler.obtainMessage();
-                                msgObj.what = index == 1 ? MSG_IMAGES_REQUEST_CREATE : MSG_IMAGES_REQUEST_APPEND;
-                                msgObj.obj = images;
-                                uiHandler.sendMessage(msgObj);
-                            }
-
-                            @Override
-                            public void onError(DataProviderError dataProviderError) {
-                                showError(dataProviderError, index);
-                            }
-                        });
-                break;
-
-            case MSG_SAVE_BUTTON_CLICKED:
-                Image image = (Image) msg.obj;
-                WallyApplication.getDataProviderInstance().getPageData(image.imagePageURL(), new DataProvider.OnPageReceivedListener() {
-                    @Override
-                    public void onPageReceived(ImagePage imagePage) {
-                        Message msgImagePage = uiHandler.obtainMessage();
-                        msgImagePage.what = MSG_PAGE_RECEIVED;
-                        msgImagePage.obj = imagePage;
-                        uiHandler.sendMessage(msgImagePage);
-                    }
-
-                    @Override
-                    public void onError(DataProviderError dataProviderError) {
-                        Message msgObj = uiHandler.obtainMessage();
-                        msgObj.what = MSG_ERROR_IMAGE_SAVING;
-                        msgObj.obj = dataProviderError;
-                        uiHandler.sendMessage(msgObj);
-                    }
-                });
-                break;
-
-            case MSG_PAGE_RECEIVED:
-                ImagePage imagePage = (ImagePage) msg.obj;
-                if (imagePage != null) {
-                    if (!((BaseActivity) getActivity()).isStoragePermissionGranted()) {
-                        Toast.makeText(getActivity(), getString(R.string.storagePermissionError), Toast.LENGTH_LONG).show();
-                        break;
-                    }
-
-                    SaveImageRequest saveImageRequest = WallyApplication.getDataProviderInstance().downloadImageIfNeeded(
-                            imagePage.imagePath(),
-                            imagePage.imageId(),
-                            getResources().getString(R.string.notification_title_image_saving));
-
-                    if (saveImageRequest.getDownloadID() != null && getActivity() instanceof MainActivity) {
-                        WallyApplication.getDownloadIDs().put(saveImageRequest.getDownloadID(), imagePage.imageId());
-                    } else {
-                        LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(new Intent(FileReceiver.GET_FILES));
-                    }
-                }
-                break;
-
             case MSG_ERROR_IMAGE_REQUEST:
+                if (!isCurrentGeneration(msg.arg2)) {
+                    break;
+                }
                 if (getActivity() != null) {
                     DataProviderError dataProviderError = (DataProviderError) msg.obj;
                     int imagesIndex = msg.arg1;
@@ -604,15 +544,10 @@ public class SearchFragment extends GridFragment implements
                 }
                 break;
 
-            case MSG_ERROR_IMAGE_SAVING:
-                if (getActivity() != null) {
-                    NotificationProvider notificationProvider = new NotificationProvider();
-                    notificationProvider.cancelAll(getActivity());
-                    Toast.makeText(getActivity(), "Couldn't save image", Toast.LENGTH_SHORT).show();
-                }
-                break;
-
             case MSG_IMAGES_REQUEST_CREATE:
+                if (!isCurrentGeneration(msg.arg2)) {
+                    break;
+                }
                 ArrayList<Image> images = (ArrayList<Image>) msg.obj;
                 boolean shouldScheduleLayoutAnimation = msg.arg1 == 0;
                 isLoading = false;
@@ -630,6 +565,9 @@ public class SearchFragment extends GridFragment implements
                 break;
 
             case MSG_IMAGES_REQUEST_APPEND:
+                if (!isCurrentGeneration(msg.arg2)) {
+                    break;
+                }
                 ArrayList<Image> extraImages = (ArrayList<Image>) msg.obj;
                 isLoading = false;
                 if (extraImages != null) {
@@ -17,6 +17,7 @@
 package com.musenkishi.wally.muzei;
 
 import android.content.Intent;
+import android.net.Uri;
 import android.util.Log;
 
 import com.google.android.apps.muzei.api.provider.Artwork;
@@ -69,22 +70,37 @@ public abstract class WallyArtSource extends MuzeiArtProvider {
     }
 
     private void getImageAndPublish(final Image image, final String newToken) {
+        if (image.hasFullImage()) {
+            // The search result already has everything the artwork needs. It has no title,
+            // so the category, like "Anime", is used instead.
+            String category = image.category();
+            String title = category.isEmpty()
+                    ? image.imageId()
+                    : Character.toUpperCase(category.charAt(0)) + category.substring(1);
+            publish(image, newToken, title, image.getFullImageUri());
+            return;
+        }
+
         ImagePage imagePage = WallyApplication.getDataProviderInstance().getPageDataSync(image.imagePageURL());
 
         if (imagePage != null) {
-            Artwork artwork = new Artwork(
-                    newToken,                        // token
-                    imagePage.title(),               // title
-                    image.imagePageURL(),            // byline (source or page URL)
-                    null,                            // attribution (optional string)
-                    imagePage.imagePath(),                            // persistentUri (not needed here)
-                    image.generateWallyUri(),        // webUri (Uri for click-through)
-                    null
-            );
-
-            setArtwork(artwork);
+            publish(image, newToken, imagePage.title(), imagePage.imagePath());
         }
     }
 
+    private void publish(Image image, String newToken, String title, Uri imagePath) {
+        Artwork artwork = new Artwork(
+                newToken,                        // token
+                title,                           // title
+                image.imagePageURL(),            // byline (source or page URL)
+                null,                            // attribution (optional string)
+                imagePath,                       // persistentUri (not needed here)
+                image.generateWallyUri(),        // webUri (Uri for click-through)
+                null
+        );
+
+        setArtwork(artwork);
+    }
+
 }
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Freddie (Musenkishi) Lust-Hed
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.musenkishi.wally.notification;
+
+import android.annotation.SuppressLint;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import com.musenkishi.wally.R;
+import com.musenkishi.wally.dataprovider.DataProvider;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shows a notification for every download, while it runs and once it's saved or has failed,
+ * whether or not an activity is around to hear about it.
+ */
+public class DownloadNotifier implements DataProvider.OnDownloadStatusListener {
+
+    private static final String CHANNEL_ID = "downloads";
+    private static final String TAG = "DownloadNotifier";
+    /**
+     * The engine reports every 100 ms, the notification shade doesn't need to be redrawn that often.
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    private final Context context;
+    private final NotificationManagerCompat notificationManager;
+    private final ConcurrentHashMap<Long, Long> lastProgressMillis = new ConcurrentHashMap<>();
+
+    public DownloadNotifier(Context context) {
+        this.context = context.getApplicationContext();
+        notificationManager = NotificationManagerCompat.from(this.context);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    this.context.getString(R.string.notification_channel_downloads), NotificationManager.IMPORTANCE_LOW);
+            notificationManager.createNotificationChannel(channel);
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(long downloadId, String title, int percent) {
+        long now = SystemClock.elapsedRealtime();
+        Long last = lastProgressMillis.get(downloadId);
+        if (last != null && now - last < PROGRESS_INTERVAL_MILLIS) {
+            return;
+        }
+        lastProgressMillis.put(downloadId, now);
+        notify(downloadId, newBuilder()
+                .setContentTitle(title != null ? title : context.getString(R.string.notification_title_image_saving))
+                .setCategory(NotificationCompat.CATEGORY_PROGRESS)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(100, Math.max(percent, 0), percent < 0));
+    }
+
+    @Override
+    public void onDownloadSaved(long downloadId, String filename, Uri uri) {
+        lastProgressMillis.remove(downloadId);
+        Intent intent = new Intent(Intent.ACTION_VIEW);
+        intent.setDataAndType(uri, "image/*");
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, (int) downloadId, intent, PendingIntent.FLAG_IMMUTABLE);
+        notify(downloadId, newBuilder()
+                .setContentTitle(context.getString(R.string.notification_title_image_saved))
+                .setContentText(filename)
+                .setContentIntent(pendingIntent)
+                .setAutoCancel(true));
+    }
+
+    @Override
+    public void onDownloadFailed(long downloadId) {
+        lastProgressMillis.remove(downloadId);
+        notify(downloadId, newBuilder()
+                .setContentTitle(context.getString(R.string.notification_title_image_failed))
+                .setAutoCancel(true));
+    }
+
+    private NotificationCompat.Builder newBuilder() {
+        return new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_notification_launcher);
+    }
+
+    /**
+     * Without the notification permission nothing is shown, the image is saved anyway.
+     */
+    @SuppressLint("MissingPermission")
+    private void notify(long downloadId, NotificationCompat.Builder builder) {
+        if (notificationManager.areNotificationsEnabled()) {
+            notificationManager.notify(TAG, (int) downloadId, builder.build());
+        }
+    }
+}